@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import static org.junit.Assert.assertEquals;
+
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.FileDataSource;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+import java.util.zip.CRC32;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares reading an encrypted file through {@link AesCtrDataSource} with reading a plain file
+ * through the same upstream, both {@link FileDataSource} and {@link MappedFileDataSource}:
+ * sequential throughput, and small reads at random positions (each one a fresh open, as a seek
+ * does). Figures are logged under {@link #TAG}; only the decrypted content is asserted.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AesCtrDataSourceBenchmark {
+
+  private static final String TAG = "AesCtrBenchmark";
+
+  private static final int FILE_BYTES = 8 * 1024 * 1024;
+  private static final int READ_BUFFER_BYTES = 64 * 1024;
+  private static final int SEQUENTIAL_ITERATIONS = 5;
+  private static final int RANDOM_READS = 500;
+  private static final int RANDOM_READ_BYTES = 4 * 1024;
+
+  private final byte[] key = new byte[16];
+  private final byte[] iv = new byte[16];
+  private File plainFile;
+  private File encryptedFile;
+  private long plainCrc;
+
+  @Before
+  public void setUp() throws Exception {
+    Random random = new Random(0);
+    random.nextBytes(key);
+    random.nextBytes(iv);
+    byte[] data = new byte[FILE_BYTES];
+    random.nextBytes(data);
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    plainCrc = crc.getValue();
+
+    File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+    plainFile = new File(dir, "benchmark.plain");
+    encryptedFile = new File(dir, "benchmark.aes");
+    write(plainFile, data);
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+    write(encryptedFile, cipher.doFinal(data));
+  }
+
+  @After
+  public void tearDown() {
+    plainFile.delete();
+    encryptedFile.delete();
+  }
+
+  @Test
+  public void fileDataSource() throws Exception {
+    compare("FileDataSource", new FileDataSource(),
+        new AesCtrDataSource(key, iv, new FileDataSource()));
+  }
+
+  @Test
+  public void mappedFileDataSource() throws Exception {
+    compare("MappedFileDataSource", new MappedFileDataSource(),
+        new AesCtrDataSource(key, iv, new MappedFileDataSource()));
+  }
+
+  private void compare(String upstreamName, DataSource plainSource,
+      DataSource decryptingSource) throws Exception {
+    assertEquals(plainCrc, readAll(decryptingSource, encryptedFile));
+    assertEquals(plainCrc, readAll(plainSource, plainFile));
+
+    Log.i(TAG, upstreamName + " sequential: plain=" + sequentialMBps(plainSource, plainFile)
+        + "MB/s, decrypted=" + sequentialMBps(decryptingSource, encryptedFile) + "MB/s");
+    Log.i(TAG, upstreamName + " random " + RANDOM_READ_BYTES + "B reads: plain="
+        + randomReadUs(plainSource, plainFile) + "us, decrypted="
+        + randomReadUs(decryptingSource, encryptedFile) + "us");
+  }
+
+  private static long sequentialMBps(DataSource dataSource, File file) throws Exception {
+    long startNs = System.nanoTime();
+    for (int i = 0; i < SEQUENTIAL_ITERATIONS; i++) {
+      readAll(dataSource, file);
+    }
+    long elapsedNs = Math.max(1, System.nanoTime() - startNs);
+    return (long) FILE_BYTES * SEQUENTIAL_ITERATIONS * 1000000000L / elapsedNs / (1024 * 1024);
+  }
+
+  /**
+   * @return The average time to open at a random, unaligned position and read a few KB.
+   */
+  private static long randomReadUs(DataSource dataSource, File file) throws Exception {
+    Random random = new Random(1);
+    byte[] buffer = new byte[RANDOM_READ_BYTES];
+    Uri uri = Uri.fromFile(file);
+    long startNs = System.nanoTime();
+    for (int i = 0; i < RANDOM_READS; i++) {
+      long position = random.nextInt(FILE_BYTES - RANDOM_READ_BYTES);
+      dataSource.open(new DataSpec(uri, position, RANDOM_READ_BYTES, null));
+      try {
+        int offset = 0;
+        while (offset < buffer.length) {
+          int bytesRead = dataSource.read(buffer, offset, buffer.length - offset);
+          if (bytesRead == C.RESULT_END_OF_INPUT) {
+            break;
+          }
+          offset += bytesRead;
+        }
+      } finally {
+        dataSource.close();
+      }
+    }
+    return (System.nanoTime() - startNs) / RANDOM_READS / 1000;
+  }
+
+  /**
+   * @return The CRC32 of the whole file, as read through {@code dataSource}.
+   */
+  private static long readAll(DataSource dataSource, File file) throws Exception {
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[READ_BUFFER_BYTES];
+    dataSource.open(new DataSpec(Uri.fromFile(file), 0, C.LENGTH_UNSET, null));
+    try {
+      int bytesRead;
+      while ((bytesRead = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        crc.update(buffer, 0, bytesRead);
+      }
+    } finally {
+      dataSource.close();
+    }
+    return crc.getValue();
+  }
+
+  private static void write(File file, byte[] data) throws Exception {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.ExoPlayerFactory;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares building players from {@link ExoRenderersFactory#all} and {@link
+ * ExoRenderersFactory#audioOnly}: the average build time, and the heap each built player holds.
+ * Figures are logged under {@link #TAG}; only the renderer counts are asserted, as timings vary
+ * between devices and runs.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ExoRenderersFactoryBenchmark {
+
+  private static final String TAG = "RenderersBenchmark";
+
+  private static final int WARM_UP_ITERATIONS = 3;
+  private static final int ITERATIONS = 20;
+  private static final int HELD_PLAYERS = 10;
+
+  private Context context;
+
+  @Before
+  public void setUp() {
+    context = InstrumentationRegistry.getTargetContext();
+  }
+
+  @Test
+  public void audioOnlyVsAll() {
+    Result all = measure(ExoRenderersFactory.all(context));
+    Result audioOnly = measure(ExoRenderersFactory.audioOnly(context));
+    Log.i(TAG, "all: " + all);
+    Log.i(TAG, "audioOnly: " + audioOnly);
+    assertTrue(audioOnly.rendererCount < all.rendererCount);
+  }
+
+  private static Result measure(final ExoRenderersFactory renderersFactory) {
+    final Result result = new Result();
+    // Players are built and released on the main looper, which they deliver their events on.
+    runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+          build(renderersFactory).release();
+        }
+        long totalNs = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+          long startNs = System.nanoTime();
+          SimpleExoPlayer player = build(renderersFactory);
+          totalNs += System.nanoTime() - startNs;
+          result.rendererCount = player.getRendererCount();
+          player.release();
+        }
+        result.buildUs = totalNs / ITERATIONS / 1000;
+      }
+    });
+
+    final SimpleExoPlayer[] players = new SimpleExoPlayer[HELD_PLAYERS];
+    long usedBefore = usedHeap();
+    runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < players.length; i++) {
+          players[i] = build(renderersFactory);
+        }
+      }
+    });
+    result.heapBytes = (usedHeap() - usedBefore) / HELD_PLAYERS;
+    runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        for (SimpleExoPlayer player : players) {
+          player.release();
+        }
+      }
+    });
+    return result;
+  }
+
+  private static SimpleExoPlayer build(ExoRenderersFactory renderersFactory) {
+    return ExoPlayerFactory.newSimpleInstance(renderersFactory, new DefaultTrackSelector(),
+        new DefaultLoadControl());
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      runtime.gc();
+      System.runFinalization();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static void runOnMainSync(Runnable runnable) {
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+  }
+
+  private static final class Result {
+
+    int rendererCount;
+    long buildUs;
+    long heapBytes;
+
+    @Override
+    public String toString() {
+      return "renderers=" + rendererCount + ", build=" + buildUs + "us, heap/player="
+          + heapBytes / 1024 + "KB";
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Races two local HTTP servers sending their data after different delays: the faster one must
+ * win and serve the whole file, become the primary, and be ranked first from the figures
+ * persisted for later sessions.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MirrorRacerTest {
+
+  private static final String PREFERENCES_NAME = "kmedia_mirror_racer";
+  private static final long FAST_DELAY_MS = 0;
+  private static final long SLOW_DELAY_MS = 1500;
+  private static final int BODY_BYTES = 64 * 1024;
+
+  private Context context;
+  private byte[] body;
+  private LocalServer slowServer;
+  private LocalServer fastServer;
+
+  @Before
+  public void setUp() throws Exception {
+    context = InstrumentationRegistry.getTargetContext();
+    context.getSharedPreferences(PREFERENCES_NAME, 0).edit().clear().commit();
+    body = new byte[BODY_BYTES];
+    new Random(0).nextBytes(body);
+    slowServer = new LocalServer(SLOW_DELAY_MS, body);
+    fastServer = new LocalServer(FAST_DELAY_MS, body);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    slowServer.close();
+    fastServer.close();
+    context.getSharedPreferences(PREFERENCES_NAME, 0).edit().clear().commit();
+  }
+
+  @Test
+  public void fasterMirrorWinsAndIsRemembered() throws Exception {
+    // The slow mirror is listed, and by default ranked, first.
+    MirrorSet mirrors = new MirrorSet(Arrays.asList(slowServer.baseUrl, fastServer.baseUrl));
+    MirrorRacer racer = new MirrorRacer(context);
+    DataSource dataSource = racer.newRace(mirrors, 2)
+        .wrap(new CancelableHttpDataSource.Factory("MirrorRacerTest", null))
+        .createDataSource();
+
+    long startMs = System.currentTimeMillis();
+    byte[] data = readAll(dataSource, Uri.parse(slowServer.baseUrl + "media.bin"));
+    long elapsedMs = System.currentTimeMillis() - startMs;
+
+    assertArrayEquals(body, data);
+    assertEquals(1, mirrors.getPrimary());
+    // The loser, blocked reading, was cancelled instead of being waited for.
+    assertTrue("race took " + elapsedMs + "ms", elapsedMs < SLOW_DELAY_MS);
+
+    // A racer of a later session reads the figures back: the winner's latency and throughput,
+    // and a lower bound of the loser's latency.
+    MirrorRacer restored = new MirrorRacer(context);
+    long fastLatencyMs = restored.getLatencyMs(fastServer.baseUrl);
+    long slowLatencyMs = restored.getLatencyMs(slowServer.baseUrl);
+    assertNotEquals(C.TIME_UNSET, fastLatencyMs);
+    assertNotEquals(C.TIME_UNSET, slowLatencyMs);
+    assertTrue(fastLatencyMs <= slowLatencyMs);
+    assertTrue(restored.getThroughputBps(fastServer.baseUrl)
+        > restored.getThroughputBps(slowServer.baseUrl));
+    assertArrayEquals(new int[] {1, 0}, restored.rankMirrors(mirrors));
+  }
+
+  private static byte[] readAll(DataSource dataSource, Uri uri) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8 * 1024];
+    dataSource.open(new DataSpec(uri));
+    try {
+      int read;
+      while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      dataSource.close();
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Answers any GET right away, and sends {@code body} after {@code delayMs}.
+   */
+  private static final class LocalServer implements Runnable {
+
+    private final long delayMs;
+    private final byte[] body;
+    private final ServerSocket serverSocket;
+    private final String baseUrl;
+
+    private LocalServer(long delayMs, byte[] body) throws IOException {
+      this.delayMs = delayMs;
+      this.body = body;
+      serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+      baseUrl = "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+      Thread thread = new Thread(this, "LocalServer:" + serverSocket.getLocalPort());
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    @Override
+    public void run() {
+      while (!serverSocket.isClosed()) {
+        try {
+          final Socket socket = serverSocket.accept();
+          Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              serve(socket);
+            }
+          });
+          thread.setDaemon(true);
+          thread.start();
+        } catch (IOException e) {
+          // Closed.
+        }
+      }
+    }
+
+    private void serve(Socket socket) {
+      try {
+        InputStream in = socket.getInputStream();
+        // Skip the request, up to the blank line ending its headers.
+        int matched = 0;
+        int b;
+        while (matched < 4 && (b = in.read()) != -1) {
+          matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : 0;
+        }
+        OutputStream out = socket.getOutputStream();
+        out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\n"
+            + "Content-Length: " + body.length + "\r\nConnection: close\r\n\r\n")
+            .getBytes("US-ASCII"));
+        out.flush();
+        Thread.sleep(delayMs);
+        out.write(body);
+        out.flush();
+      } catch (IOException | InterruptedException e) {
+        // The client went away, e.g. a cancelled contender.
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // Ignore.
+        }
+      }
+    }
+
+    private void close() throws IOException {
+      serverSocket.close();
+    }
+  }
+}
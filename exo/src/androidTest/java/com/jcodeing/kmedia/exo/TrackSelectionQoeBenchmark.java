@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.source.TrackGroup;
+import com.google.android.exoplayer2.trackselection.AdaptiveTrackSelection;
+import com.google.android.exoplayer2.trackselection.TrackSelection;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.util.MimeTypes;
+import java.util.LinkedList;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Replays a fixed bandwidth trace through {@link AdaptiveTrackSelection} and {@link
+ * BufferBasedTrackSelection}, on a simulated clock, and feeds the resulting sessions to a {@link
+ * QoeMeter} each. The QoE figures are logged under {@link #TAG}; only that every session played
+ * all the media, the same way on every run, is asserted.
+ * <p>
+ * The session model: chunks are loaded one at a time while the buffer is below {@link
+ * #MAX_BUFFER_MS}, each chunk taking the time its bits need at the trace's bandwidth, and the
+ * bandwidth estimate is the throughput of the last chunk. Playback starts, and resumes after a
+ * rebuffer, as soon as a chunk is buffered.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TrackSelectionQoeBenchmark {
+
+  private static final String TAG = "TrackSelectionQoe";
+
+  private static final int[] BITRATES = {4000000, 2000000, 1000000, 500000, 250000};
+  /**
+   * Bandwidth (kbps), one sample per {@link #TRACE_SAMPLE_MS}, repeated.
+   */
+  private static final int[] BANDWIDTH_TRACE_KBPS =
+      {3000, 3000, 2500, 800, 600, 1200, 4000, 5000, 1500, 400, 2000, 3500};
+  private static final long TRACE_SAMPLE_MS = 10000;
+  private static final long CHUNK_MS = 2000;
+  private static final int CHUNK_COUNT = 150;
+  private static final long MAX_BUFFER_MS = 30000;
+
+  @Test
+  public void throughputVersusBufferBased() {
+    QoeMeter throughput = replay(false);
+    QoeMeter bufferBased = replay(true);
+    Log.i(TAG, "AdaptiveTrackSelection " + throughput);
+    Log.i(TAG, "BufferBasedTrackSelection " + bufferBased);
+
+    for (QoeMeter meter : new QoeMeter[] {throughput, bufferBased}) {
+      assertEquals(CHUNK_COUNT * CHUNK_MS, meter.getPlayingTimeMs());
+      assertNotEquals(Format.NO_VALUE, meter.getAverageBitrate());
+    }
+    assertEquals(throughput.toString(), replay(false).toString());
+    assertEquals(bufferBased.toString(), replay(true).toString());
+  }
+
+  private static QoeMeter replay(boolean bufferBased) {
+    Format[] formats = new Format[BITRATES.length];
+    for (int i = 0; i < BITRATES.length; i++) {
+      formats[i] = Format.createVideoSampleFormat(String.valueOf(i), MimeTypes.VIDEO_H264, null,
+          BITRATES[i], Format.NO_VALUE, 1280, 720, Format.NO_VALUE, null, null);
+    }
+    TrackGroup group = new TrackGroup(formats);
+    int[] tracks = new int[formats.length];
+    for (int i = 0; i < tracks.length; i++) {
+      tracks[i] = i;
+    }
+    Session session = new Session();
+    TrackSelection selection = bufferBased
+        ? new BufferBasedTrackSelection.Factory(session, null, null)
+        .createTrackSelection(group, tracks)
+        : new AdaptiveTrackSelection(group, tracks, session);
+    session.run(selection);
+    return session.meter;
+  }
+
+  /**
+   * A simulated session, also the bandwidth meter of its selection.
+   */
+  private static final class Session implements BandwidthMeter {
+
+    private final QoeMeter meter = new QoeMeter();
+    /**
+     * The bitrates of the buffered chunks, the one playing first.
+     */
+    private final LinkedList<Integer> buffer = new LinkedList<>();
+    /**
+     * Origin of the simulated clock. {@link BufferBasedTrackSelection} reads the real clock once,
+     * when created, as the time of its last switch: starting a whole up-switch interval later
+     * makes every replay the same.
+     */
+    private long startMs;
+    private long nowMs;
+    private long playingChunkRemainingMs;
+    private boolean ready;
+    private int playingBitrate = Format.NO_VALUE;
+    private long bitrateEstimate = NO_ESTIMATE;
+
+    @Override
+    public long getBitrateEstimate() {
+      return bitrateEstimate;
+    }
+
+    private void run(TrackSelection selection) {
+      startMs = SystemClock.elapsedRealtime()
+          + BufferBasedTrackSelection.DEFAULT_MIN_UP_SWITCH_INTERVAL_MS;
+      meter.onPlayerStateChanged(startMs, true, ExoPlayer.STATE_BUFFERING);
+      for (int chunk = 0; chunk < CHUNK_COUNT; chunk++) {
+        if (bufferedMs() + CHUNK_MS > MAX_BUFFER_MS) {
+          playFor(bufferedMs() + CHUNK_MS - MAX_BUFFER_MS);
+        }
+        long bufferedUs = bufferedMs() * 1000;
+        if (selection instanceof BufferBasedTrackSelection) {
+          ((BufferBasedTrackSelection) selection).updateSelectedTrack(bufferedUs, startMs + nowMs);
+        } else {
+          selection.updateSelectedTrack(bufferedUs);
+        }
+        int bitrate = selection.getSelectedFormat().bitrate;
+        long loadMs = loadDurationMs(bitrate * CHUNK_MS / 1000);
+        playFor(loadMs);
+        bitrateEstimate = bitrate * CHUNK_MS / Math.max(loadMs, 1);
+        buffer.addLast(bitrate);
+        if (buffer.size() == 1) {
+          playingChunkRemainingMs = CHUNK_MS;
+        }
+        if (!ready) {
+          ready = true;
+          meter.onPlayerStateChanged(startMs + nowMs, true, ExoPlayer.STATE_READY);
+        }
+      }
+      playFor(bufferedMs());
+      meter.onPlayerStateChanged(startMs + nowMs, true, ExoPlayer.STATE_ENDED);
+    }
+
+    private long bufferedMs() {
+      return buffer.isEmpty() ? 0 : (buffer.size() - 1) * CHUNK_MS + playingChunkRemainingMs;
+    }
+
+    /**
+     * @return The time from now to load {@code bits} at the trace's bandwidth.
+     */
+    private long loadDurationMs(long bits) {
+      long timeMs = nowMs;
+      while (true) {
+        long sampleEndMs = (timeMs / TRACE_SAMPLE_MS + 1) * TRACE_SAMPLE_MS;
+        long bitsPerMs = BANDWIDTH_TRACE_KBPS[(int) (timeMs / TRACE_SAMPLE_MS
+            % BANDWIDTH_TRACE_KBPS.length)];
+        long sampleBits = (sampleEndMs - timeMs) * bitsPerMs;
+        if (bits <= sampleBits) {
+          return timeMs + (bits + bitsPerMs - 1) / bitsPerMs - nowMs;
+        }
+        bits -= sampleBits;
+        timeMs = sampleEndMs;
+      }
+    }
+
+    /**
+     * Advances the clock by {@code durationMs}, playing the buffer meanwhile.
+     */
+    private void playFor(long durationMs) {
+      long endMs = nowMs + durationMs;
+      while (ready && nowMs < endMs) {
+        int bitrate = buffer.getFirst();
+        if (bitrate != playingBitrate) {
+          playingBitrate = bitrate;
+          meter.onBitrateChanged(startMs + nowMs, bitrate);
+        }
+        long stepMs = Math.min(endMs - nowMs, playingChunkRemainingMs);
+        nowMs += stepMs;
+        playingChunkRemainingMs -= stepMs;
+        if (playingChunkRemainingMs == 0) {
+          buffer.removeFirst();
+          playingChunkRemainingMs = CHUNK_MS;
+          if (buffer.isEmpty()) {
+            ready = false;
+            meter.onPlayerStateChanged(startMs + nowMs, true, ExoPlayer.STATE_BUFFERING);
+          }
+        }
+      }
+      nowMs = endMs;
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A {@link DataSource} decrypting AES-CTR encrypted data from an upstream source as it is read.
+ * <p>
+ * In CTR mode, the keystream at any offset only depends on the block counter, so opening at an
+ * arbitrary position computes the counter ({@code iv + position / 16}) and discards {@code
+ * position % 16} keystream bytes, instead of decrypting from the start. The upstream can be any
+ * source of the encrypted bytes, e.g. a {@link MappedFileDataSource} or a {@code
+ * CacheDataSource}, so the cache holds encrypted data only.
+ */
+public final class AesCtrDataSource implements DataSource {
+
+  /**
+   * Factory for {@link AesCtrDataSource} instances.
+   */
+  public static final class Factory implements DataSource.Factory {
+
+    private final byte[] key;
+    private final byte[] iv;
+    private final DataSource.Factory upstreamFactory;
+
+    /**
+     * @param key The AES key, 16, 24 or 32 bytes.
+     * @param iv The initial counter block, 16 bytes.
+     * @param upstreamFactory The source of the encrypted data.
+     */
+    public Factory(byte[] key, byte[] iv, DataSource.Factory upstreamFactory) {
+      this.key = key;
+      this.iv = iv;
+      this.upstreamFactory = upstreamFactory;
+    }
+
+    @Override
+    public AesCtrDataSource createDataSource() {
+      return new AesCtrDataSource(key, iv, upstreamFactory.createDataSource());
+    }
+  }
+
+  private static final int BLOCK_SIZE = 16;
+
+  private final SecretKeySpec key;
+  private final byte[] iv;
+  private final DataSource upstream;
+
+  private Cipher cipher;
+
+  /**
+   * @param key The AES key, 16, 24 or 32 bytes.
+   * @param iv The initial counter block, 16 bytes.
+   * @param upstream The source of the encrypted data.
+   */
+  public AesCtrDataSource(byte[] key, byte[] iv, DataSource upstream) {
+    if (iv.length != BLOCK_SIZE) {
+      throw new IllegalArgumentException("IV must be " + BLOCK_SIZE + " bytes");
+    }
+    this.key = new SecretKeySpec(key, "AES");
+    this.iv = iv.clone();
+    this.upstream = upstream;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    long length = upstream.open(dataSpec);
+    try {
+      cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      cipher.init(Cipher.DECRYPT_MODE, key,
+          new IvParameterSpec(counterAt(iv, dataSpec.position / BLOCK_SIZE)));
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+    int skip = (int) (dataSpec.position % BLOCK_SIZE);
+    if (skip > 0) {
+      byte[] skipped = cipher.update(new byte[skip]);
+      if (skipped == null || skipped.length != skip) {
+        throw new IOException("Cipher buffered the keystream skip, can't seek");
+      }
+    }
+    return length;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    int bytesRead = upstream.read(buffer, offset, readLength);
+    if (bytesRead == C.RESULT_END_OF_INPUT || bytesRead == 0) {
+      return bytesRead;
+    }
+    int bytesDecrypted;
+    try {
+      // Decrypts in place. CTR never buffers, so all bytes are returned right away.
+      bytesDecrypted = cipher.update(buffer, offset, bytesRead, buffer, offset);
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+    if (bytesDecrypted != bytesRead) {
+      // A provider that buffers would hand out ciphertext as plaintext.
+      throw new IOException("Cipher decrypted " + bytesDecrypted + " of " + bytesRead + " bytes");
+    }
+    return bytesRead;
+  }
+
+  @Override
+  public Uri getUri() {
+    return upstream.getUri();
+  }
+
+  @Override
+  public void close() throws IOException {
+    cipher = null;
+    upstream.close();
+  }
+
+  /**
+   * @return {@code iv + blockIndex}, as 128-bit big-endian integers.
+   */
+  private static byte[] counterAt(byte[] iv, long blockIndex) {
+    byte[] counter = iv.clone();
+    long carry = blockIndex;
+    for (int i = BLOCK_SIZE - 1; i >= 0 && carry != 0; i--) {
+      long sum = (counter[i] & 0xFF) + (carry & 0xFF);
+      counter[i] = (byte) sum;
+      carry = (carry >>> 8) + (sum >>> 8);
+    }
+    return counter;
+  }
+}
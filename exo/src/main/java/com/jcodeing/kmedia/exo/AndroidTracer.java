@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * A {@link Tracer} backed by {@link Trace}, so the sections show up in systrace. Does nothing
+ * below API 18.
+ */
+@TargetApi(18)
+public final class AndroidTracer implements Tracer {
+
+  private static final boolean SUPPORTED = Build.VERSION.SDK_INT >= 18;
+  private static final int MAX_NAME_LENGTH = 127;
+
+  @Override
+  public void beginSection(String name) {
+    if (SUPPORTED) {
+      Trace.beginSection(name.length() > MAX_NAME_LENGTH
+          ? name.substring(0, MAX_NAME_LENGTH) : name);
+    }
+  }
+
+  @Override
+  public void endSection() {
+    if (SUPPORTED) {
+      Trace.endSection();
+    }
+  }
+}
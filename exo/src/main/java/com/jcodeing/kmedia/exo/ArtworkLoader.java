@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Decodes artwork off the main thread, downsampled at decode time to the size it is displayed
+ * at, and keeps the decoded bitmaps in a process-wide cache bounded by bytes.
+ * <p>
+ * Embedded artwork is keyed by a hash of its content (plus the sample size), so the same cover
+ * is decoded once no matter how many tracks, views or {@code onTracksChanged} calls refer to it.
+ * Resource artwork is keyed by resource id and shared by all views.
+ */
+public final class ArtworkLoader {
+
+  /**
+   * Receives a decoded bitmap on the main thread. The bitmap is null if decoding failed.
+   */
+  public interface Callback {
+
+    void onArtworkLoaded(Bitmap bitmap);
+  }
+
+  /**
+   * A pending load. Cancelling only suppresses the callback; an already running decode still
+   * completes and populates the cache.
+   */
+  public static final class Request {
+
+    private volatile boolean canceled;
+
+    public void cancel() {
+      canceled = true;
+    }
+
+    public boolean isCanceled() {
+      return canceled;
+    }
+  }
+
+  private static final int MAX_CACHE_BYTES =
+      (int) Math.min(Runtime.getRuntime().maxMemory() / 16, 16 * 1024 * 1024);
+
+  private static final LruCache<String, Bitmap> cache =
+      new LruCache<String, Bitmap>(MAX_CACHE_BYTES) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+          return value.getRowBytes() * value.getHeight();
+        }
+      };
+
+  private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "ArtworkLoader");
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+
+  private ArtworkLoader() {
+  }
+
+  /**
+   * Decodes encoded image {@code data}, downsampled so it is not (much) larger than {@code
+   * reqWidth} x {@code reqHeight}. Non-positive sizes disable downsampling.
+   */
+  public static Request load(final byte[] data, final int reqWidth, final int reqHeight,
+      final Callback callback) {
+    final Request request = new Request();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (request.isCanceled()) {
+          return;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        String key = contentKey(data) + "/" + options.inSampleSize;
+        Bitmap bitmap = cache.get(key);
+        if (bitmap == null && options.outWidth > 0 && options.outHeight > 0) {
+          bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+          if (bitmap != null) {
+            cache.put(key, bitmap);
+          }
+        }
+        deliver(request, bitmap, callback);
+      }
+    });
+    return request;
+  }
+
+  /**
+   * Decodes a bitmap resource once per process and shares it between all callers.
+   */
+  public static Request loadResource(final Resources resources, final int resId,
+      final Callback callback) {
+    final Request request = new Request();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (request.isCanceled()) {
+          return;
+        }
+        String key = resourceKey(resId);
+        Bitmap bitmap = cache.get(key);
+        if (bitmap == null) {
+          bitmap = BitmapFactory.decodeResource(resources, resId);
+          if (bitmap != null) {
+            cache.put(key, bitmap);
+          }
+        }
+        deliver(request, bitmap, callback);
+      }
+    });
+    return request;
+  }
+
+  /**
+   * @return The cached bitmap of resource {@code resId}, or null if it has not been decoded yet.
+   */
+  public static Bitmap getCachedResource(int resId) {
+    return cache.get(resourceKey(resId));
+  }
+
+  /**
+   * Evicts all decoded bitmaps. Bitmaps currently displayed stay valid.
+   */
+  public static void clearCache() {
+    cache.evictAll();
+  }
+
+  /**
+   * @return The bytes of the bitmaps currently cached.
+   */
+  public static int getCacheSize() {
+    return cache.size();
+  }
+
+  /**
+   * Trims the cache to {@code maxBytes}.
+   */
+  public static void trimCache(int maxBytes) {
+    cache.trimToSize(maxBytes);
+  }
+
+  private static void deliver(final Request request, final Bitmap bitmap,
+      final Callback callback) {
+    mainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (!request.isCanceled()) {
+          callback.onArtworkLoaded(bitmap);
+        }
+      }
+    });
+  }
+
+  private static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth,
+      int reqHeight) {
+    int inSampleSize = 1;
+    if (reqWidth <= 0 || reqHeight <= 0) {
+      return inSampleSize;
+    }
+    int halfWidth = options.outWidth / 2;
+    int halfHeight = options.outHeight / 2;
+    while (halfWidth / inSampleSize >= reqWidth && halfHeight / inSampleSize >= reqHeight) {
+      inSampleSize *= 2;
+    }
+    return inSampleSize;
+  }
+
+  private static String contentKey(byte[] data) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(data, 0, data.length);
+    return "apic:" + data.length + ":" + Long.toHexString(crc32.getValue());
+  }
+
+  private static String resourceKey(int resId) {
+    return "res:" + resId;
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.source.TrackGroup;
+import com.google.android.exoplayer2.trackselection.BaseTrackSelection;
+import com.google.android.exoplayer2.trackselection.TrackSelection;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+
+/**
+ * A buffer-occupancy based adaptive {@link TrackSelection} (BOLA).
+ * <p>
+ * Each track gets a utility {@code ln(bitrate / lowestBitrate) + 1}; the selected track is the
+ * one maximizing {@code (V * (utility + gp) - buffer) / bitrate}, so quality follows the buffer
+ * level instead of throughput samples. Throughput is only used, if a {@link BandwidthMeter} is
+ * given, for the initial pick. Hysteresis: quality goes up at most one step at a time and not
+ * more often than every {@code minUpSwitchIntervalMs}; it goes down immediately.
+ */
+public final class BufferBasedTrackSelection extends BaseTrackSelection {
+
+  /**
+   * Listener of switch decisions, called on the handler given to the {@link Factory}.
+   */
+  public interface EventListener {
+
+    void onBufferBasedSwitch(Format from, Format to, long bufferedDurationMs);
+  }
+
+  /**
+   * Factory for {@link BufferBasedTrackSelection} instances.
+   */
+  public static final class Factory implements TrackSelection.Factory {
+
+    private final BandwidthMeter bandwidthMeter;
+    private final Handler eventHandler;
+    private final EventListener eventListener;
+    private final long bufferTargetMs;
+    private final long minUpSwitchIntervalMs;
+
+    /**
+     * @param bandwidthMeter Used for the initial selection only, may be null.
+     * @param eventHandler A handler for events, may be null if delivery of events is not
+     * required.
+     * @param eventListener A listener of events, may be null if delivery of events is not
+     * required.
+     */
+    public Factory(BandwidthMeter bandwidthMeter, Handler eventHandler,
+        EventListener eventListener) {
+      this(bandwidthMeter, eventHandler, eventListener, DEFAULT_BUFFER_TARGET_MS,
+          DEFAULT_MIN_UP_SWITCH_INTERVAL_MS);
+    }
+
+    /**
+     * @param bandwidthMeter Used for the initial selection only, may be null.
+     * @param eventHandler A handler for events, may be null if delivery of events is not
+     * required.
+     * @param eventListener A listener of events, may be null if delivery of events is not
+     * required.
+     * @param bufferTargetMs The buffer level at which the highest quality is selected. Should
+     * not exceed the maximum buffer of the load control.
+     * @param minUpSwitchIntervalMs The minimum time between two switches to a higher quality.
+     */
+    public Factory(BandwidthMeter bandwidthMeter, Handler eventHandler,
+        EventListener eventListener, long bufferTargetMs, long minUpSwitchIntervalMs) {
+      this.bandwidthMeter = bandwidthMeter;
+      this.eventHandler = eventHandler;
+      this.eventListener = eventListener;
+      this.bufferTargetMs = bufferTargetMs;
+      this.minUpSwitchIntervalMs = minUpSwitchIntervalMs;
+    }
+
+    @Override
+    public BufferBasedTrackSelection createTrackSelection(TrackGroup group, int... tracks) {
+      return new BufferBasedTrackSelection(group, tracks, bandwidthMeter, eventHandler,
+          eventListener, bufferTargetMs, minUpSwitchIntervalMs);
+    }
+  }
+
+  public static final long DEFAULT_BUFFER_TARGET_MS = 25000;
+  public static final long DEFAULT_MIN_UP_SWITCH_INTERVAL_MS = 4000;
+
+  /**
+   * Buffer level (s) below which the lowest quality is always chosen.
+   */
+  private static final double MINIMUM_BUFFER_S = 10;
+  private static final float INITIAL_BANDWIDTH_FRACTION = 0.75f;
+
+  private final Handler eventHandler;
+  private final EventListener eventListener;
+  private final long minUpSwitchIntervalMs;
+  private final double[] utilities;
+  private final double gp;
+  private final double vp;
+
+  private int selectedIndex;
+  private int reason;
+  private long lastSwitchTimeMs;
+
+  private BufferBasedTrackSelection(TrackGroup group, int[] tracks,
+      BandwidthMeter bandwidthMeter, Handler eventHandler, EventListener eventListener,
+      long bufferTargetMs, long minUpSwitchIntervalMs) {
+    super(group, tracks);
+    this.eventHandler = eventHandler;
+    this.eventListener = eventListener;
+    this.minUpSwitchIntervalMs = minUpSwitchIntervalMs;
+    // Tracks are sorted by decreasing bitrate, the last one is the lowest.
+    utilities = new double[length];
+    double lowestBitrate = bitrateOf(length - 1);
+    for (int i = 0; i < length; i++) {
+      utilities[i] = Math.log(bitrateOf(i) / lowestBitrate) + 1;
+    }
+    double bufferTargetS = Math.max(bufferTargetMs / 1000d, MINIMUM_BUFFER_S + 1);
+    // A single track (utility 1) would make gp zero.
+    gp = Math.max((utilities[0] - 1) / (bufferTargetS / MINIMUM_BUFFER_S - 1), 1e-6);
+    vp = MINIMUM_BUFFER_S / gp;
+    selectedIndex = initialIndex(bandwidthMeter);
+    reason = C.SELECTION_REASON_INITIAL;
+    lastSwitchTimeMs = SystemClock.elapsedRealtime();
+  }
+
+  @Override
+  public void updateSelectedTrack(long bufferedDurationUs) {
+    updateSelectedTrack(bufferedDurationUs, SystemClock.elapsedRealtime());
+  }
+
+  /**
+   * {@link #updateSelectedTrack(long)} at a given time, for replaying a recorded or simulated
+   * session.
+   */
+  void updateSelectedTrack(long bufferedDurationUs, long nowMs) {
+    int currentIndex = selectedIndex;
+    int idealIndex = idealIndex(bufferedDurationUs / 1000000d, nowMs);
+    int newIndex = idealIndex;
+    if (idealIndex < currentIndex && !isBlacklisted(currentIndex, nowMs)) {
+      // Up-switch: hysteresis.
+      if (nowMs - lastSwitchTimeMs < minUpSwitchIntervalMs) {
+        newIndex = currentIndex;
+      } else {
+        newIndex = currentIndex - 1;
+        while (newIndex > idealIndex && isBlacklisted(newIndex, nowMs)) {
+          newIndex--;
+        }
+      }
+    }
+    if (newIndex != currentIndex) {
+      selectedIndex = newIndex;
+      reason = C.SELECTION_REASON_ADAPTIVE;
+      lastSwitchTimeMs = nowMs;
+      notifySwitch(getFormat(currentIndex), getFormat(newIndex), C.usToMs(bufferedDurationUs));
+    }
+  }
+
+  @Override
+  public int getSelectedIndex() {
+    return selectedIndex;
+  }
+
+  @Override
+  public int getSelectionReason() {
+    return reason;
+  }
+
+  @Override
+  public Object getSelectionData() {
+    return null;
+  }
+
+  private int idealIndex(double bufferS, long nowMs) {
+    int bestIndex = C.INDEX_UNSET;
+    double bestScore = 0;
+    for (int i = 0; i < length; i++) {
+      if (isBlacklisted(i, nowMs)) {
+        continue;
+      }
+      double score = (vp * (utilities[i] + gp) - bufferS) / bitrateOf(i);
+      if (bestIndex == C.INDEX_UNSET || score > bestScore) {
+        bestIndex = i;
+        bestScore = score;
+      }
+    }
+    return bestIndex == C.INDEX_UNSET ? length - 1 : bestIndex;
+  }
+
+  private int initialIndex(BandwidthMeter bandwidthMeter) {
+    long bitrateEstimate = bandwidthMeter == null ? BandwidthMeter.NO_ESTIMATE
+        : bandwidthMeter.getBitrateEstimate();
+    if (bitrateEstimate != BandwidthMeter.NO_ESTIMATE) {
+      long effectiveBitrate = (long) (bitrateEstimate * INITIAL_BANDWIDTH_FRACTION);
+      for (int i = 0; i < length; i++) {
+        if (getFormat(i).bitrate <= effectiveBitrate) {
+          return i;
+        }
+      }
+    }
+    return length - 1;
+  }
+
+  private double bitrateOf(int index) {
+    // Unknown bitrates (Format.NO_VALUE) would break the utility function.
+    return Math.max(getFormat(index).bitrate, 1);
+  }
+
+  private void notifySwitch(final Format from, final Format to, final long bufferedDurationMs) {
+    if (eventHandler != null && eventListener != null) {
+      eventHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          eventListener.onBufferBasedSwitch(from, to, bufferedDurationMs);
+        }
+      });
+    }
+  }
+}
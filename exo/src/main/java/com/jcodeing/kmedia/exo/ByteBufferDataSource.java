@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DataSource} reading from the remaining bytes of a {@link ByteBuffer}, heap or direct,
+ * without copying them. The buffer's position and limit are not modified; its content must not
+ * change while it is read.
+ */
+public final class ByteBufferDataSource implements DataSource {
+
+  /**
+   * Factory for {@link ByteBufferDataSource} instances over the same data.
+   */
+  public static final class Factory implements DataSource.Factory {
+
+    private final ByteBuffer data;
+
+    public Factory(ByteBuffer data) {
+      this.data = data;
+    }
+
+    @Override
+    public ByteBufferDataSource createDataSource() {
+      return new ByteBufferDataSource(data);
+    }
+  }
+
+  private final ByteBuffer data;
+  private final int start;
+  private final int size;
+
+  private Uri uri;
+  private int position;
+  private int bytesRemaining;
+
+  public ByteBufferDataSource(ByteBuffer data) {
+    // A view sharing the content, with its own position.
+    this.data = data.duplicate();
+    start = data.position();
+    size = data.remaining();
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    uri = dataSpec.uri;
+    if (dataSpec.position > size) {
+      throw new EOFException();
+    }
+    position = (int) dataSpec.position;
+    bytesRemaining = dataSpec.length == C.LENGTH_UNSET ? size - position
+        : (int) dataSpec.length;
+    if (bytesRemaining < 0 || position + bytesRemaining > size) {
+      throw new EOFException();
+    }
+    return bytesRemaining;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) {
+    if (readLength == 0) {
+      return 0;
+    } else if (bytesRemaining == 0) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    int bytesRead = Math.min(readLength, bytesRemaining);
+    data.position(start + position);
+    data.get(buffer, offset, bytesRead);
+    position += bytesRead;
+    bytesRemaining -= bytesRead;
+    return bytesRead;
+  }
+
+  @Override
+  public Uri getUri() {
+    return uri;
+  }
+
+  @Override
+  public void close() {
+    uri = null;
+  }
+}
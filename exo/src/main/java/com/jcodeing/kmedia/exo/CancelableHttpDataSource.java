@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DefaultHttpDataSource;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+
+/**
+ * A {@link DefaultHttpDataSource} that another thread can {@link #cancel()}: the connection is
+ * disconnected, which fails a read blocked on it. An open still connecting is left to the
+ * connect timeout, then fails as cancelled.
+ * <p>
+ * Registers with {@link MirrorRacer} when opened, so a race contender reading through it is
+ * aborted as soon as it loses.
+ */
+public class CancelableHttpDataSource extends DefaultHttpDataSource
+    implements MirrorRacer.Cancelable {
+
+  /**
+   * Factory for {@link CancelableHttpDataSource} instances.
+   */
+  public static final class Factory extends HttpDataSource.BaseFactory {
+
+    private final String userAgent;
+    private final TransferListener<? super DefaultHttpDataSource> listener;
+
+    /**
+     * @param userAgent The User-Agent string sent with requests.
+     * @param listener An optional listener.
+     */
+    public Factory(String userAgent, TransferListener<? super DefaultHttpDataSource> listener) {
+      this.userAgent = userAgent;
+      this.listener = listener;
+    }
+
+    @Override
+    protected CancelableHttpDataSource createDataSourceInternal(
+        RequestProperties defaultRequestProperties) {
+      return new CancelableHttpDataSource(userAgent, listener, defaultRequestProperties);
+    }
+  }
+
+  /**
+   * The connection once opened, for {@link #cancel()} on other threads.
+   */
+  private volatile HttpURLConnection openConnection;
+  private volatile boolean cancelled;
+  private DataSpec dataSpec;
+
+  public CancelableHttpDataSource(String userAgent,
+      TransferListener<? super DefaultHttpDataSource> listener,
+      RequestProperties defaultRequestProperties) {
+    super(userAgent, null, listener, DEFAULT_CONNECT_TIMEOUT_MILLIS,
+        DEFAULT_READ_TIMEOUT_MILLIS, false, defaultRequestProperties);
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws HttpDataSourceException {
+    this.dataSpec = dataSpec;
+    MirrorRacer.onOpen(this);
+    checkNotCancelled(HttpDataSourceException.TYPE_OPEN);
+    long length = super.open(dataSpec);
+    openConnection = getConnection();
+    if (cancelled) {
+      // Cancelled while connecting; the caller closes.
+      openConnection = null;
+      checkNotCancelled(HttpDataSourceException.TYPE_OPEN);
+    }
+    return length;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws HttpDataSourceException {
+    checkNotCancelled(HttpDataSourceException.TYPE_READ);
+    return super.read(buffer, offset, readLength);
+  }
+
+  @Override
+  public void close() throws HttpDataSourceException {
+    openConnection = null;
+    super.close();
+  }
+
+  @Override
+  public void cancel() {
+    cancelled = true;
+    HttpURLConnection connection = openConnection;
+    if (connection != null) {
+      connection.disconnect();
+    }
+  }
+
+  private void checkNotCancelled(int type) throws HttpDataSourceException {
+    if (cancelled) {
+      throw new HttpDataSourceException(new InterruptedIOException(), dataSpec, type);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorsFactory;
+import com.google.android.exoplayer2.extractor.mkv.MatroskaExtractor;
+import com.google.android.exoplayer2.extractor.mp3.Mp3Extractor;
+import com.google.android.exoplayer2.extractor.mp4.Mp4Extractor;
+import com.google.android.exoplayer2.extractor.ogg.OggExtractor;
+import com.google.android.exoplayer2.extractor.ts.AdtsExtractor;
+import com.google.android.exoplayer2.extractor.wav.WavExtractor;
+
+/**
+ * An {@link ExtractorsFactory} creating the extractor of one known container only.
+ * <p>
+ * The media source still sniffs the input with that one extractor, and fails if it doesn't
+ * match; what's saved is creating and sniffing with all the other extractors {@link
+ * DefaultExtractorsFactory} tries before it.
+ */
+public final class ContainerExtractorsFactory implements ExtractorsFactory {
+
+  public static final int CONTAINER_MP3 = 1;
+  public static final int CONTAINER_MP4 = 2;
+  public static final int CONTAINER_OGG = 3;
+  public static final int CONTAINER_WAV = 4;
+  public static final int CONTAINER_AAC = 5;
+  public static final int CONTAINER_MATROSKA = 6;
+
+  private final int container;
+
+  /**
+   * @param container One of the {@code CONTAINER_*} constants.
+   */
+  public ContainerExtractorsFactory(int container) {
+    if (container < CONTAINER_MP3 || container > CONTAINER_MATROSKA) {
+      throw new IllegalArgumentException("Unsupported container: " + container);
+    }
+    this.container = container;
+  }
+
+  @Override
+  public Extractor[] createExtractors() {
+    switch (container) {
+      case CONTAINER_MP3:
+        return new Extractor[] {new Mp3Extractor()};
+      case CONTAINER_MP4:
+        return new Extractor[] {new Mp4Extractor()};
+      case CONTAINER_OGG:
+        return new Extractor[] {new OggExtractor()};
+      case CONTAINER_WAV:
+        return new Extractor[] {new WavExtractor()};
+      case CONTAINER_AAC:
+        return new Extractor[] {new AdtsExtractor()};
+      default:
+        return new Extractor[] {new MatroskaExtractor()};
+    }
+  }
+}
@@ -47,6 +47,7 @@ import com.google.android.exoplayer2.trackselection.MappingTrackSelector.MappedT
 import com.google.android.exoplayer2.trackselection.TrackSelection;
 import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
 import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.MimeTypes;
 import com.google.android.exoplayer2.video.VideoRendererEventListener;
 import com.jcodeing.kmedia.utils.L;
 
@@ -60,7 +61,7 @@ import java.util.Locale;
 /* package */ public final class EventLogger implements ExoPlayer.EventListener,
     AudioRendererEventListener, VideoRendererEventListener, AdaptiveMediaSourceEventListener,
     ExtractorMediaSource.EventListener, DefaultDrmSessionManager.EventListener,
-    MetadataRenderer.Output {
+    MetadataRenderer.Output, BufferBasedTrackSelection.EventListener {
 
   private static final String TAG = "EventLogger";
   private static final int MAX_TIMELINE_ITEM_LINES = 3;
@@ -77,12 +78,50 @@ import java.util.Locale;
   private final Timeline.Window window;
   private final Timeline.Period period;
   private final long startTimeMs;
+  private final QoeMeter qoeMeter;
+  private volatile QoeMeter publishedQoeMeter;
+  /**
+   * Whether a video track is selected, so the QoE bitrate is the video's, or else the audio's.
+   */
+  private boolean videoSelected;
+  private volatile SessionTraceRecorder traceRecorder;
 
   public EventLogger(MappingTrackSelector trackSelector) {
     this.trackSelector = trackSelector;
     window = new Timeline.Window();
     period = new Timeline.Period();
     startTimeMs = SystemClock.elapsedRealtime();
+    qoeMeter = new QoeMeter();
+    publishedQoeMeter = new QoeMeter();
+  }
+
+  /**
+   * Returns a snapshot of the {@link QoeMeter} fed by the events passing through this logger,
+   * accounted up to now. Safe to call from any thread.
+   */
+  public QoeMeter getQoeMeter() {
+    QoeMeter snapshot = publishedQoeMeter.copy();
+    snapshot.advance(SystemClock.elapsedRealtime());
+    return snapshot;
+  }
+
+  /**
+   * Publishes a copy of {@link #qoeMeter}, which only the playback thread touches, for {@link
+   * #getQoeMeter()}.
+   */
+  private void publishQoeMeter() {
+    publishedQoeMeter = qoeMeter.copy();
+  }
+
+  /**
+   * Records the events passing through this logger to {@code traceRecorder}, null to stop.
+   */
+  public void setTraceRecorder(SessionTraceRecorder traceRecorder) {
+    this.traceRecorder = traceRecorder;
+  }
+
+  public SessionTraceRecorder getTraceRecorder() {
+    return traceRecorder;
   }
 
   // ExoPlayer.EventListener
@@ -90,12 +129,23 @@ import java.util.Locale;
   @Override
   public void onLoadingChanged(boolean isLoading) {
     L.d(TAG, "loading [" + isLoading + "]");
+    SessionTraceRecorder traceRecorder = this.traceRecorder;
+    if (traceRecorder != null) {
+      traceRecorder.recordLoading(SystemClock.elapsedRealtime(), isLoading);
+    }
   }
 
   @Override
   public void onPlayerStateChanged(boolean playWhenReady, int state) {
     L.d(TAG, "state [" + getSessionTimeString() + ", " + playWhenReady + ", "
         + getStateString(state) + "]");
+    long nowMs = SystemClock.elapsedRealtime();
+    qoeMeter.onPlayerStateChanged(nowMs, playWhenReady, state);
+    publishQoeMeter();
+    SessionTraceRecorder traceRecorder = this.traceRecorder;
+    if (traceRecorder != null) {
+      traceRecorder.recordState(nowMs, playWhenReady, state);
+    }
   }
 
   @Override
@@ -106,6 +156,10 @@ import java.util.Locale;
   @Override
   public void onPositionDiscontinuity() {
     L.d(TAG, "positionDiscontinuity");
+    SessionTraceRecorder traceRecorder = this.traceRecorder;
+    if (traceRecorder != null) {
+      traceRecorder.recordDiscontinuity(SystemClock.elapsedRealtime());
+    }
   }
 
   @Override
@@ -139,10 +193,37 @@ import java.util.Locale;
   @Override
   public void onPlayerError(ExoPlaybackException e) {
     L.e(TAG, "playerFailed [" + getSessionTimeString() + "]", e);
+    SessionTraceRecorder traceRecorder = this.traceRecorder;
+    if (traceRecorder != null) {
+      traceRecorder.recordError(SystemClock.elapsedRealtime(), SessionTraceRecorder.ERROR_PLAYER);
+      // The session likely ends here, don't lose its last records.
+      traceRecorder.flush();
+    }
   }
 
   @Override
   public void onTracksChanged(TrackGroupArray ignored, TrackSelectionArray trackSelections) {
+    Tracer tracer = Tracing.begin("EventLogger.onTracksChanged");
+    try {
+      videoSelected = hasVideo(trackSelections);
+      printTracks(trackSelections);
+    } finally {
+      Tracing.end(tracer);
+    }
+  }
+
+  private static boolean hasVideo(TrackSelectionArray trackSelections) {
+    for (int i = 0; i < trackSelections.length; i++) {
+      TrackSelection trackSelection = trackSelections.get(i);
+      if (trackSelection != null
+          && MimeTypes.isVideo(trackSelection.getSelectedFormat().sampleMimeType)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void printTracks(TrackSelectionArray trackSelections) {
     MappedTrackInfo mappedTrackInfo = trackSelector.getCurrentMappedTrackInfo();
     if (mappedTrackInfo == null) {
       L.d(TAG, "Tracks []");
@@ -249,6 +330,10 @@ import java.util.Locale;
   public void onAudioTrackUnderrun(int bufferSize, long bufferSizeMs, long elapsedSinceLastFeedMs) {
     printInternalError("audioTrackUnderrun [" + bufferSize + ", " + bufferSizeMs + ", "
         + elapsedSinceLastFeedMs + "]", null);
+    SessionTraceRecorder traceRecorder = this.traceRecorder;
+    if (traceRecorder != null) {
+      traceRecorder.recordUnderrun(SystemClock.elapsedRealtime(), bufferSizeMs);
+    }
   }
 
   // VideoRendererEventListener
@@ -278,6 +363,10 @@ import java.util.Locale;
   @Override
   public void onDroppedFrames(int count, long elapsed) {
     L.d(TAG, "droppedFrames [" + getSessionTimeString() + ", " + count + "]");
+    SessionTraceRecorder traceRecorder = this.traceRecorder;
+    if (traceRecorder != null) {
+      traceRecorder.recordDroppedFrames(SystemClock.elapsedRealtime(), count);
+    }
   }
 
   @Override
@@ -296,6 +385,10 @@ import java.util.Locale;
   @Override
   public void onDrmSessionManagerError(Exception e) {
     printInternalError("drmSessionManagerError", e);
+    SessionTraceRecorder traceRecorder = this.traceRecorder;
+    if (traceRecorder != null) {
+      traceRecorder.recordError(SystemClock.elapsedRealtime(), SessionTraceRecorder.ERROR_DRM);
+    }
   }
 
   @Override
@@ -318,6 +411,7 @@ import java.util.Locale;
   @Override
   public void onLoadError(IOException error) {
     printInternalError("loadError", error);
+    recordLoadError();
   }
 
   // AdaptiveMediaSourceEventListener
@@ -335,6 +429,7 @@ import java.util.Locale;
       long mediaEndTimeMs, long elapsedRealtimeMs, long loadDurationMs, long bytesLoaded,
       IOException error, boolean wasCanceled) {
     printInternalError("loadError", error);
+    recordLoadError();
   }
 
   @Override
@@ -348,7 +443,11 @@ import java.util.Locale;
   public void onLoadCompleted(DataSpec dataSpec, int dataType, int trackType, Format trackFormat,
       int trackSelectionReason, Object trackSelectionData, long mediaStartTimeMs,
       long mediaEndTimeMs, long elapsedRealtimeMs, long loadDurationMs, long bytesLoaded) {
-    // Do nothing.
+    SessionTraceRecorder traceRecorder = this.traceRecorder;
+    if (traceRecorder != null) {
+      traceRecorder.recordLoadCompleted(elapsedRealtimeMs, trackType, loadDurationMs,
+          bytesLoaded);
+    }
   }
 
   @Override
@@ -359,11 +458,43 @@ import java.util.Locale;
   @Override
   public void onDownstreamFormatChanged(int trackType, Format trackFormat, int trackSelectionReason,
       Object trackSelectionData, long mediaTimeMs) {
-    // Do nothing.
+    // Muxed (default) tracks, video tracks, or audio tracks of audio-only streams.
+    if (trackFormat != null && (trackType == C.TRACK_TYPE_VIDEO
+        || trackType == C.TRACK_TYPE_DEFAULT
+        || (trackType == C.TRACK_TYPE_AUDIO && !videoSelected))) {
+      long nowMs = SystemClock.elapsedRealtime();
+      qoeMeter.onBitrateChanged(nowMs, trackFormat.bitrate);
+      publishQoeMeter();
+      SessionTraceRecorder traceRecorder = this.traceRecorder;
+      if (traceRecorder != null) {
+        traceRecorder.recordBitrate(nowMs, trackFormat.bitrate);
+      }
+    }
+  }
+
+  // BufferBasedTrackSelection.EventListener
+
+  @Override
+  public void onBufferBasedSwitch(Format from, Format to, long bufferedDurationMs) {
+    L.d(TAG, "abrSwitch [" + getSessionTimeString() + ", buffer=" + bufferedDurationMs + "ms, "
+        + Format.toLogString(from) + " -> " + Format.toLogString(to) + "]");
+    // The QoE meter counts the switch once the new format plays out, like any other switch.
+    SessionTraceRecorder traceRecorder = this.traceRecorder;
+    if (traceRecorder != null) {
+      traceRecorder.recordSwitch(SystemClock.elapsedRealtime(), from.bitrate, to.bitrate,
+          bufferedDurationMs);
+    }
   }
 
   // Internal methods
 
+  private void recordLoadError() {
+    SessionTraceRecorder traceRecorder = this.traceRecorder;
+    if (traceRecorder != null) {
+      traceRecorder.recordError(SystemClock.elapsedRealtime(), SessionTraceRecorder.ERROR_LOAD);
+    }
+  }
+
   private void printInternalError(String type, Exception e) {
     L.e(TAG, "internalError [" + getSessionTimeString() + ", " + type + "]", e);
   }
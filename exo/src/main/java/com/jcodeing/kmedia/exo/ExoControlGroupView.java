@@ -286,9 +286,14 @@ public class ExoControlGroupView extends AControlGroupView {
 
   @Override
   protected void updateAll() {
-    updatePlayPauseButton();
-    updateNavigation();
-    updateProgress();
+    Tracer tracer = Tracing.begin("ExoControlGroupView.updateAll");
+    try {
+      updatePlayPauseButton();
+      updateNavigation();
+      updateProgress();
+    } finally {
+      Tracing.end(tracer);
+    }
   }
 
   private void updatePlayPauseButton() {
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.google.android.exoplayer2.upstream.Allocator;
+import com.google.android.exoplayer2.util.Util;
+
+/**
+ * A {@link LoadControl} with the watermarks of {@link DefaultLoadControl}, whose buffer targets
+ * can be scaled down at runtime, e.g. under memory pressure.
+ * <p>
+ * Scaling down lowers both the buffered duration and the allocated bytes the player loads up to.
+ * Media already buffered is kept and played out; loading resumes once the buffer has drained
+ * below the new low watermark. The low watermark never goes below the buffer needed to start
+ * playback after a rebuffer, so a scaled player still plays.
+ * <p>
+ * Buffers come from a {@link SharedAllocator} client, so loading also stops once the player holds
+ * its share of the global budget, see {@link #setPriority}.
+ */
+public final class ExoLoadControl implements LoadControl {
+
+  public static final int DEFAULT_MIN_BUFFER_MS = DefaultLoadControl.DEFAULT_MIN_BUFFER_MS;
+  public static final int DEFAULT_MAX_BUFFER_MS = DefaultLoadControl.DEFAULT_MAX_BUFFER_MS;
+  public static final long DEFAULT_BUFFER_FOR_PLAYBACK_MS =
+      DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_MS;
+  public static final long DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS =
+      DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS;
+
+  private static final int ABOVE_HIGH_WATERMARK = 0;
+  private static final int BETWEEN_WATERMARKS = 1;
+  private static final int BELOW_LOW_WATERMARK = 2;
+
+  private final SharedAllocator.Client allocator;
+  private final long minBufferUs;
+  private final long maxBufferUs;
+  private final long bufferForPlaybackUs;
+  private final long bufferForPlaybackAfterRebufferUs;
+
+  private volatile float bufferScale = 1f;
+  private volatile long bufferFloorUs;
+  private volatile int targetBufferSize;
+  private boolean isBuffering;
+
+  public ExoLoadControl() {
+    this(SharedAllocator.getInstance(), DEFAULT_MIN_BUFFER_MS, DEFAULT_MAX_BUFFER_MS,
+        DEFAULT_BUFFER_FOR_PLAYBACK_MS, DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS);
+  }
+
+  /**
+   * @param sharedAllocator The pool buffers are allocated from.
+   * @param minBufferMs The duration the player always tries to keep buffered, unscaled.
+   * @param maxBufferMs The duration the player stops loading at, unscaled.
+   * @param bufferForPlaybackMs The duration needed to start or resume playback after a seek.
+   * @param bufferForPlaybackAfterRebufferMs The duration needed to resume playback after a
+   * rebuffer.
+   */
+  public ExoLoadControl(SharedAllocator sharedAllocator, int minBufferMs, int maxBufferMs,
+      long bufferForPlaybackMs, long bufferForPlaybackAfterRebufferMs) {
+    allocator = sharedAllocator.newClient();
+    minBufferUs = minBufferMs * 1000L;
+    maxBufferUs = maxBufferMs * 1000L;
+    bufferForPlaybackUs = bufferForPlaybackMs * 1000L;
+    bufferForPlaybackAfterRebufferUs = bufferForPlaybackAfterRebufferMs * 1000L;
+  }
+
+  /**
+   * Scales the buffer targets, e.g. 0.5 to buffer half as much. Can be called from any thread.
+   *
+   * @param scale In (0,1], 1 by default.
+   */
+  public void setBufferScale(float scale) {
+    bufferScale = Math.max(0.01f, Math.min(1f, scale));
+    // Lowers this player's demand on the shared budget right away.
+    allocator.setTargetBufferSize(scaledTargetBufferSize());
+  }
+
+  public float getBufferScale() {
+    return bufferScale;
+  }
+
+  /**
+   * Keeps at least {@code floorUs} buffered ahead of the playback position, above the (scaled)
+   * low watermark, e.g. up to the next segment boundary. Capped at the unscaled max buffer. Can be
+   * called from any thread.
+   */
+  public void setBufferFloorUs(long floorUs) {
+    bufferFloorUs = Math.min(Math.max(0, floorUs), maxBufferUs);
+  }
+
+  /**
+   * Sets the priority of this player's share of the shared budget, e.g. {@link
+   * SharedAllocator#PRIORITY_FOREGROUND} while playing. {@link
+   * SharedAllocator#PRIORITY_BACKGROUND}, for preloading, also caps the buffer at the duration
+   * needed to start playback.
+   */
+  public void setPriority(int priority) {
+    allocator.setPriority(priority);
+  }
+
+  /**
+   * @return The allocator client, for utilisation metrics.
+   */
+  public SharedAllocator.Client getSharedAllocatorClient() {
+    return allocator;
+  }
+
+  // ============================@LoadControl@============================
+  @Override
+  public void onPrepared() {
+    reset(false);
+  }
+
+  @Override
+  public void onTracksSelected(Renderer[] renderers, TrackGroupArray trackGroups,
+      TrackSelectionArray trackSelections) {
+    int size = 0;
+    for (int i = 0; i < renderers.length; i++) {
+      if (trackSelections.get(i) != null) {
+        size += Util.getDefaultBufferSize(renderers[i].getTrackType());
+      }
+    }
+    targetBufferSize = size;
+    allocator.setTargetBufferSize(scaledTargetBufferSize());
+  }
+
+  @Override
+  public void onStopped() {
+    reset(true);
+  }
+
+  @Override
+  public void onReleased() {
+    reset(true);
+  }
+
+  @Override
+  public Allocator getAllocator() {
+    return allocator;
+  }
+
+  @Override
+  public boolean shouldStartPlayback(long bufferedDurationUs, boolean rebuffering) {
+    long minBufferDurationUs = rebuffering ? bufferForPlaybackAfterRebufferUs
+        : bufferForPlaybackUs;
+    return minBufferDurationUs <= 0 || bufferedDurationUs >= minBufferDurationUs;
+  }
+
+  @Override
+  public boolean shouldContinueLoading(long bufferedDurationUs) {
+    float scale = bufferScale;
+    long lowUs = Math.max((long) (minBufferUs * scale), bufferForPlaybackAfterRebufferUs);
+    lowUs = Math.max(lowUs, bufferFloorUs);
+    long highUs = Math.max((long) (maxBufferUs * scale), lowUs);
+    if (allocator.getPriority() == SharedAllocator.PRIORITY_BACKGROUND) {
+      // Preloading: just enough to start right away once in use.
+      lowUs = Math.min(lowUs, bufferForPlaybackUs);
+      highUs = lowUs;
+    }
+    int bufferTimeState = bufferedDurationUs > highUs ? ABOVE_HIGH_WATERMARK
+        : bufferedDurationUs < lowUs ? BELOW_LOW_WATERMARK : BETWEEN_WATERMARKS;
+    boolean targetBufferSizeReached = allocator.getTotalBytesAllocated()
+        >= Math.min(scaledTargetBufferSize(), allocator.getShareBytes());
+    // The foreground player always loads up to its low watermark, the others only within the
+    // budget.
+    boolean mayExceedShare = allocator.getPriority() == SharedAllocator.PRIORITY_FOREGROUND
+        || !allocator.isOverBudget();
+    isBuffering = (bufferTimeState == BELOW_LOW_WATERMARK && mayExceedShare)
+        || (bufferTimeState == BETWEEN_WATERMARKS && isBuffering && !targetBufferSizeReached);
+    return isBuffering;
+  }
+
+  private int scaledTargetBufferSize() {
+    return (int) (targetBufferSize * bufferScale);
+  }
+
+  private void reset(boolean resetAllocator) {
+    targetBufferSize = 0;
+    isBuffering = false;
+    if (resetAllocator) {
+      allocator.setTargetBufferSize(0);
+    }
+  }
+}
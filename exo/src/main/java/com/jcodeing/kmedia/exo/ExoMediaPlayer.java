@@ -18,26 +18,34 @@ package com.jcodeing.kmedia.exo;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
 import android.view.SurfaceView;
 import android.view.TextureView;
+import android.view.View;
 import com.google.android.exoplayer2.C;
-import com.google.android.exoplayer2.DefaultLoadControl;
 import com.google.android.exoplayer2.ExoPlaybackException;
 import com.google.android.exoplayer2.ExoPlayer;
 import com.google.android.exoplayer2.ExoPlayerFactory;
+import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.PlaybackParameters;
 import com.google.android.exoplayer2.SimpleExoPlayer;
 import com.google.android.exoplayer2.Timeline;
 import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
 import com.google.android.exoplayer2.source.ExtractorMediaSource;
 import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.source.MergingMediaSource;
+import com.google.android.exoplayer2.source.SingleSampleMediaSource;
+import com.google.android.exoplayer2.source.TrackGroup;
 import com.google.android.exoplayer2.source.TrackGroupArray;
 import com.google.android.exoplayer2.source.dash.DashMediaSource;
 import com.google.android.exoplayer2.source.dash.DefaultDashChunkSource;
+import com.google.android.exoplayer2.source.dash.manifest.DashManifest;
 import com.google.android.exoplayer2.source.hls.HlsMediaSource;
 import com.google.android.exoplayer2.source.smoothstreaming.DefaultSsChunkSource;
 import com.google.android.exoplayer2.source.smoothstreaming.SsMediaSource;
@@ -45,14 +53,25 @@ import com.google.android.exoplayer2.trackselection.AdaptiveTrackSelection;
 import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
 import com.google.android.exoplayer2.trackselection.TrackSelection;
 import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
 import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
+import com.google.android.exoplayer2.util.MimeTypes;
 import com.google.android.exoplayer2.util.Util;
 import com.jcodeing.kmedia.AMediaPlayer;
 
 import com.jcodeing.kmedia.utils.L;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ExoMediaPlayer extends AMediaPlayer {
 
@@ -62,66 +81,611 @@ public class ExoMediaPlayer extends AMediaPlayer {
 
   private EventLogger eventLogger;
   private PlayerListener playerListener;
-  private final SimpleExoPlayer internalPlayer;
+  private final AbrTrackSelectionFactory trackSelectionFactory;
+  private final DefaultTrackSelector trackSelector;
+  private final boolean videoEnabled;
 
   public ExoMediaPlayer(Context context) {
+    this(context, null, null);
+  }
+
+  /**
+   * @param renderersFactory The renderers to build, e.g. {@link ExoRenderersFactory#audioOnly}
+   * for a lighter audio-only player without any video surface wiring. Null builds all renderers.
+   */
+  public ExoMediaPlayer(Context context, ExoRenderersFactory renderersFactory) {
+    this(context, renderersFactory, null);
+  }
+
+  /**
+   * @param renderersFactory The renderers to build, e.g. {@link ExoRenderersFactory#audioOnly}
+   * for a lighter audio-only player without any video surface wiring. Null builds all renderers.
+   * @param playbackLooper The looper the player, its media sources and all listeners ({@code
+   * notifyOn*}) run on, e.g. of a dedicated {@link android.os.HandlerThread} to keep heavy
+   * listener work away from the UI. Null uses the looper of the calling thread.
+   * <p>
+   * With a dedicated looper, control methods called from other threads are posted to it, and
+   * state getters return a non-blocking snapshot (the position is extrapolated while playing).
+   * Video outputs should still be set from the main thread.
+   * <p>
+   * Only lightweight objects are created here; the internal player and data sources are built on
+   * first use (e.g. {@code setDataSource}), or ahead of time by {@link #warmUp()}.
+   */
+  public ExoMediaPlayer(Context context, ExoRenderersFactory renderersFactory,
+      Looper playbackLooper) {
     this.context = context.getApplicationContext();
+    if (renderersFactory == null) {
+      renderersFactory = ExoRenderersFactory.all(this.context);
+    }
+    videoEnabled = renderersFactory.hasVideoRenderer();
+    // A copy, as the factory may be shared; each player brings its own peak processor.
+    renderersFactory = renderersFactory.withAudioProcessor(peakProcessor);
     // =========@Init@=========
     DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
 
     // =========@Player
-    TrackSelection.Factory trackSelectionFactory =
-        new AdaptiveTrackSelection.Factory(bandwidthMeter);
-    DefaultTrackSelector trackSelector = new DefaultTrackSelector(trackSelectionFactory);
+    eventHandler = playbackLooper != null ? new Handler(playbackLooper) : new Handler();
+    mainHandler = new Handler(Looper.getMainLooper());
+    trackSelectionFactory = new AbrTrackSelectionFactory(bandwidthMeter);
+    trackSelector = new DefaultTrackSelector(trackSelectionFactory);
     eventLogger = new EventLogger(trackSelector);
     playerListener = new PlayerListener();
-    internalPlayer = ExoPlayerFactory
-        .newSimpleInstance(this.context, trackSelector, new DefaultLoadControl(),
-            null);
-    internalPlayer.addListener(eventLogger);
-    internalPlayer.addListener(playerListener);
-    internalPlayer.setVideoListener(playerListener);
-    internalPlayer.setPlayWhenReady(false);
-
-    // =========@Source
-    mainHandler = new Handler();
-    userAgent = Util.getUserAgent(this.context, "ExoMediaPlayer");
-    mediaDataSourceFactory = new DefaultDataSourceFactory(this.context, userAgent, bandwidthMeter);
+    this.renderersFactory = renderersFactory;
+    this.bandwidthMeter = bandwidthMeter;
+    MemoryPressureCoordinator coordinator = MemoryPressureCoordinator.getInstance();
+    coordinator.install(this.context);
+    coordinator.addParticipant(bufferPressure, MemoryPressureCoordinator.ORDER_BUFFERS);
+    coordinator.addParticipant(idlePressure, MemoryPressureCoordinator.ORDER_PLAYERS);
+    applyBufferScale(coordinator.getPressure(), false);
   }
 
+  /**
+   * @return The internal player, or null if not built yet. On the playback thread it is built
+   * if needed; other threads never wait for the build, which is started with {@link #warmUp()}
+   * instead. It is not thread-safe; with a dedicated playback looper, access it on that looper
+   * only.
+   */
   public SimpleExoPlayer internalPlayer() {
+    SimpleExoPlayer player = internalPlayer;
+    if (player == null && !released) {
+      if (canBuildOnThisThread()) {
+        return player();
+      }
+      warmUp();
+    }
+    return player;
+  }
+
+  // ============================@Lazy Init@============================
+  private final Object buildLock = new Object();
+  private volatile SimpleExoPlayer internalPlayer;
+  private ExoRenderersFactory renderersFactory;
+  private DefaultBandwidthMeter bandwidthMeter;
+  private final ExoLoadControl loadControl = new ExoLoadControl();
+  private volatile boolean released;
+  /**
+   * Set before the build, for the build to apply. Guarded by the build lock.
+   */
+  private float pendingVolume = 1f;
+  private float pendingSpeed = 1f;
+
+  /**
+   * Builds the internal player and data source factory ahead of time, off the calling thread, so
+   * that the first {@code setDataSource}/{@link #prepareAsync()} doesn't pay for it. Optional.
+   */
+  public void warmUp() {
+    if (internalPlayer != null) {
+      return;
+    }
+    Runnable build = new Runnable() {
+      @Override
+      public void run() {
+        if (!released) {
+          player();
+          dataSourceFactory();
+        }
+      }
+    };
+    if (eventHandler.getLooper() == Looper.getMainLooper()) {
+      backgroundExecutor.execute(build);
+    } else {
+      eventHandler.post(build);
+    }
+  }
+
+  /**
+   * @return The internal player, built on first use. Only for threads that {@link
+   * #canBuildOnThisThread() can build it}; others never wait for a build.
+   */
+  private SimpleExoPlayer player() {
+    SimpleExoPlayer player = internalPlayer;
+    if (player != null) {
+      return player;
+    }
+    if (released) {
+      throw new IllegalStateException("Player released");
+    }
+    if (!canBuildOnThisThread()) {
+      throw new IllegalStateException("Player not built yet, use it on the playback thread");
+    }
+    boolean built = false;
+    synchronized (buildLock) {
+      if (internalPlayer == null) {
+        internalPlayer = buildInternalPlayer();
+        built = true;
+      }
+    }
+    if (built) {
+      synchronized (owners) {
+        owners.put(internalPlayer, this);
+      }
+      // Settings made before the build that need a player on their thread.
+      eventHandler.post(liveModeUpdate);
+      mainHandler.post(videoAfterBuild);
+    }
     return internalPlayer;
   }
 
+  /**
+   * ExoPlayer delivers its events on the looper it is built on, or on the main looper if the
+   * building thread has none. The build lock is only taken by threads that never wait for
+   * another looper while holding it.
+   */
+  private boolean canBuildOnThisThread() {
+    return isPlaybackThread()
+        || (Looper.myLooper() == null && eventHandler.getLooper() == Looper.getMainLooper());
+  }
+
+  private SimpleExoPlayer buildInternalPlayer() {
+    long startMs = SystemClock.elapsedRealtime();
+    SimpleExoPlayer player = ExoPlayerFactory
+        .newSimpleInstance(renderersFactory, trackSelector, loadControl);
+    player.addListener(eventLogger);
+    player.addListener(playerListener);
+    if (videoEnabled) {
+      player.setVideoListener(playerListener);
+    }
+    player.setPlayWhenReady(false);
+    player.setVolume(pendingVolume);
+    if (pendingSpeed != 1f) {
+      player.setPlaybackParameters(new PlaybackParameters(pendingSpeed, 1f));
+    }
+    if (videoDisabledWhileHidden) {
+      disableVideoRenderers(player, true);
+    }
+    renderersFactory = null;
+    L.dd(TAG, "buildInternalPlayer() in " + (SystemClock.elapsedRealtime() - startMs) + "ms");
+    return player;
+  }
+
+  private DefaultDataSourceFactory dataSourceFactory() {
+    synchronized (buildLock) {
+      if (mediaDataSourceFactory == null) {
+        userAgent = Util.getUserAgent(context, "ExoMediaPlayer");
+        // Cancelable, so a mirror race can abort its losers.
+        mediaDataSourceFactory = new DefaultDataSourceFactory(context, bandwidthMeter,
+            new CancelableHttpDataSource.Factory(userAgent, bandwidthMeter));
+      }
+      return mediaDataSourceFactory;
+    }
+  }
+
+  // ============================@Playback Thread@============================
+  private static final long SNAPSHOT_REFRESH_INTERVAL_MS = 500;
+
+  private Handler eventHandler;
+  /**
+   * For view checks, which must run on the main thread whatever the playback looper is.
+   */
+  private Handler mainHandler;
+  private volatile Snapshot snapshot = Snapshot.IDLE;
+  private final Runnable snapshotRefresh = new Runnable() {
+    @Override
+    public void run() {
+      updateSnapshot();
+    }
+  };
+
+  /**
+   * @return The looper the player and its listeners run on.
+   */
+  public Looper getPlaybackLooper() {
+    return eventHandler.getLooper();
+  }
+
+  private boolean isPlaybackThread() {
+    return Looper.myLooper() == eventHandler.getLooper();
+  }
+
+  /**
+   * @return Whether getters can read the internal player instead of the snapshot.
+   */
+  private boolean canReadPlayer() {
+    return internalPlayer != null && isPlaybackThread();
+  }
+
+  private void runOnPlaybackThread(Runnable runnable) {
+    if (isPlaybackThread()) {
+      runnable.run();
+    } else {
+      eventHandler.post(runnable);
+    }
+  }
+
+  /**
+   * Captures the player state for getters called from other threads. Runs on the playback
+   * thread, and keeps refreshing itself while playing to correct the position extrapolation.
+   */
+  private void updateSnapshot() {
+    eventHandler.removeCallbacks(snapshotRefresh);
+    SimpleExoPlayer player = internalPlayer;
+    if (player == null) {
+      return;
+    }
+    Snapshot s = new Snapshot(player.getPlayWhenReady(), player.getPlaybackState(),
+        player.getCurrentPosition(), SystemClock.elapsedRealtime(), player.getDuration(),
+        player.getPlaybackParameters().speed, player.getVolume());
+    if (shedForMemory) {
+      s = s.withPosition(shedPositionMs);
+    }
+    snapshot = s;
+    if (s.isPlaying()) {
+      eventHandler.postDelayed(snapshotRefresh, SNAPSHOT_REFRESH_INTERVAL_MS);
+    }
+    // Segments follow the same state changes.
+    checkSegment();
+  }
+
+  /**
+   * An immutable view of the player state, published as a whole so readers never see a torn
+   * position/time pair.
+   */
+  private static final class Snapshot {
+
+    static final Snapshot IDLE = new Snapshot(false, ExoPlayer.STATE_IDLE, 0, 0, C.TIME_UNSET,
+        1f, 1f);
+
+    final boolean playWhenReady;
+    final int playbackState;
+    final long positionMs;
+    final long realtimeMs;
+    final long durationMs;
+    final float speed;
+    final float volume;
+
+    Snapshot(boolean playWhenReady, int playbackState, long positionMs, long realtimeMs,
+        long durationMs, float speed, float volume) {
+      this.playWhenReady = playWhenReady;
+      this.playbackState = playbackState;
+      this.positionMs = positionMs;
+      this.realtimeMs = realtimeMs;
+      this.durationMs = durationMs;
+      this.speed = speed;
+      this.volume = volume;
+    }
+
+    boolean isPlaying() {
+      return playWhenReady && playbackState == ExoPlayer.STATE_READY;
+    }
+
+    long currentPositionMs() {
+      if (!isPlaying()) {
+        return positionMs;
+      }
+      long positionMs = this.positionMs
+          + (long) ((SystemClock.elapsedRealtime() - realtimeMs) * speed);
+      return durationMs == C.TIME_UNSET ? positionMs : Math.min(positionMs, durationMs);
+    }
+
+    Snapshot withPosition(long positionMs) {
+      return new Snapshot(playWhenReady, playbackState, positionMs,
+          SystemClock.elapsedRealtime(), durationMs, speed, volume);
+    }
+
+    Snapshot withVolume(float volume) {
+      return new Snapshot(playWhenReady, playbackState, positionMs, realtimeMs, durationMs,
+          speed, volume);
+    }
+
+    Snapshot withSpeed(float speed) {
+      return new Snapshot(playWhenReady, playbackState, positionMs, realtimeMs, durationMs,
+          speed, volume);
+    }
+  }
+
+  public DefaultTrackSelector trackSelector() {
+    return trackSelector;
+  }
+
+  // ============================@Track Selection@============================
+  /**
+   * Throughput-driven adaptive bitrate ({@link AdaptiveTrackSelection}), the default.
+   */
+  public static final int ABR_THROUGHPUT = 0;
+  /**
+   * Buffer-occupancy-driven adaptive bitrate ({@link BufferBasedTrackSelection}), steadier on
+   * bursty links.
+   */
+  public static final int ABR_BUFFER_BASED = 1;
+
+  /**
+   * Sets the adaptive bitrate algorithm, {@link #ABR_THROUGHPUT} or {@link #ABR_BUFFER_BASED}.
+   * Takes effect at the next track selection, so call it before {@link #prepareAsync()}.
+   */
+  public void setAdaptiveAlgorithm(int algorithm) {
+    trackSelectionFactory.setAlgorithm(algorithm);
+  }
+
+  public int getAdaptiveAlgorithm() {
+    return trackSelectionFactory.algorithm;
+  }
+
+  /**
+   * Returns startup time, rebuffer ratio, average bitrate and switch count of the session, e.g.
+   * to compare {@link #setAdaptiveAlgorithm adaptive algorithms}. The meter is a snapshot taken
+   * at the call, later playback doesn't update it.
+   */
+  public QoeMeter getQoeMeter() {
+    return eventLogger != null ? eventLogger.getQoeMeter() : null;
+  }
+
+  /**
+   * Records the events of this player into a binary trace, to be replayed offline with {@link
+   * TraceReplay}. Null stops recording. The recorder is flushed on {@link #release()}, closing it
+   * is up to the caller.
+   */
+  public void setTraceRecorder(SessionTraceRecorder traceRecorder) {
+    if (eventLogger != null) {
+      eventLogger.setTraceRecorder(traceRecorder);
+    }
+  }
+
+  private ViewportTrackConstraint viewportConstraint;
+
+  /**
+   * Returns the constraint limiting the video resolution to the size it is displayed at. Pass it
+   * to {@link ExoPlayerView#setContentSizeListener} to have it follow layout changes.
+   */
+  public ViewportTrackConstraint viewportConstraint() {
+    if (viewportConstraint == null) {
+      viewportConstraint = new ViewportTrackConstraint(trackSelector);
+    }
+    return viewportConstraint;
+  }
+
   // ============================@Source@============================
   private String userAgent;
-  private Handler mainHandler;
+  /**
+   * The source set last, prepared by {@link #prepareAsync()}. Playback thread only, see {@link
+   * #setMediaSource}.
+   */
   private MediaSource mediaSource;
+  /**
+   * Built lazily, use {@link #dataSourceFactory()}.
+   */
   private DefaultDataSourceFactory mediaDataSourceFactory;
 
   @Override
   public void setDataSource(Context context, Uri uri, Map<String, String> headers)
       throws IOException, IllegalArgumentException, SecurityException, IllegalStateException {
+    setDataSource(context, uri, headers, null);
+  }
+
+  /**
+   * Sets a data source served by several mirrors. {@code uri} must start with one of their base
+   * URLs; manifest and segment loads then fail over to the other mirrors on errors, see {@link
+   * #setLoadRetryPolicy}.
+   */
+  public void setMirroredDataSource(Context context, Uri uri, MirrorSet mirrors)
+      throws IOException, IllegalArgumentException, SecurityException, IllegalStateException {
+    setDataSource(context, uri, null, mirrors);
+  }
+
+  private void setDataSource(Context context, Uri uri, Map<String, String> headers,
+      MirrorSet mirrors)
+      throws IOException, IllegalArgumentException, SecurityException, IllegalStateException {
     super.setDataSource(context, uri, headers);
-    mediaSource = buildMediaSource(uri, "");
+    this.mirrors = mirrors;
+    mirrorRace = mirrors != null && mirrorRacer != null
+        ? mirrorRacer.newRace(mirrors, mirrorRaceCount) : null;
+    if (prefetcher != null) {
+      prefetcher.onPlay(uri);
+    }
+    peakProcessor.setContentId(uri.toString());
+    PcmClipCache.Clip clip = cachedClip(uri, headers);
+    setMediaSource(clip != null ? buildClipSource(clip) : buildMediaSource(uri, ""), clip);
+    sideloadedSubtitles.clear();
+    setPlaybackState(STATE_GOT_SOURCE);
+  }
+
+  /**
+   * Sets in-memory media as the data source, e.g. a short clip. The data is read in place, not
+   * copied, and must not change until the player is reset or released.
+   *
+   * @param data The media, from its position to its limit. Heap and direct buffers are supported.
+   * @param container The container of the media, one of the {@code CONTAINER_*} constants of
+   * {@link ContainerExtractorsFactory}.
+   */
+  public void setDataSource(ByteBuffer data, int container) {
+    Uri uri = Uri.parse("bytes://" + Integer.toHexString(System.identityHashCode(data)));
+    peakProcessor.setContentId(null);
+    clipContentId = null;
+    setMediaSource(new ExtractorMediaSource(uri, new ByteBufferDataSource.Factory(data),
+        new ContainerExtractorsFactory(container), eventHandler, eventLogger), null);
+    sideloadedSubtitles.clear();
     setPlaybackState(STATE_GOT_SOURCE);
   }
 
+  /**
+   * @see #setDataSource(ByteBuffer, int)
+   */
+  public void setDataSource(byte[] data, int container) {
+    setDataSource(ByteBuffer.wrap(data), container);
+  }
+
+  /**
+   * Sets AES-CTR encrypted progressive media (e.g. offline content) as the data source. It is
+   * decrypted on the fly as it is read, local file or through the prefetch cache alike; seeks
+   * don't decrypt from the start.
+   *
+   * @param key The AES key, 16, 24 or 32 bytes.
+   * @param iv The initial counter block, 16 bytes.
+   */
+  public void setEncryptedDataSource(Uri uri, byte[] key, byte[] iv)
+      throws IOException, IllegalArgumentException, SecurityException, IllegalStateException {
+    super.setDataSource(context, uri, null);
+    mirrors = null;
+    mirrorRace = null;
+    if (prefetcher != null) {
+      prefetcher.onPlay(uri);
+    }
+    peakProcessor.setContentId(uri.toString());
+    clipContentId = null;
+    setMediaSource(new ExtractorMediaSource(uri,
+        new AesCtrDataSource.Factory(key, iv, mediaDataSourceFactory(uri)),
+        new DefaultExtractorsFactory(), eventHandler, eventLogger), null);
+    sideloadedSubtitles.clear();
+    setPlaybackState(STATE_GOT_SOURCE);
+  }
+
+  /**
+   * Makes {@code source} the current source on the playback thread, which owns it, after the
+   * control calls already posted there. {@code clip}, the decoded clip it plays or null, is held
+   * right away so it can't be evicted in between.
+   */
+  private void setMediaSource(final MediaSource source, final PcmClipCache.Clip clip) {
+    if (clip != null) {
+      clip.acquire();
+    }
+    runOnPlaybackThread(new Runnable() {
+      @Override
+      public void run() {
+        if (released) {
+          if (clip != null) {
+            clip.release();
+          }
+          return;
+        }
+        mediaSource = source;
+        // Hands the hold taken above over to sourceClip.
+        PcmClipCache.Clip previous = sourceClip.getAndSet(clip);
+        if (previous != null) {
+          previous.release();
+        }
+      }
+    });
+  }
+
+  private DataSource.Factory mediaDataSourceFactory(Uri uri) {
+    if (memoryMappedFiles && isLocalFile(uri)) {
+      return new MappedFileDataSource.Factory();
+    } else if (prefetcher != null) {
+      // The player's factory as upstream, so its bandwidth meter sees the transfers.
+      return withRetry(prefetcher.dataSourceFactory(dataSourceFactory()));
+    }
+    return withRetry(dataSourceFactory());
+  }
+
+  private DataSource.Factory manifestDataSourceFactory() {
+    dataSourceFactory(); // Initializes the user agent, even when the prefetcher serves media.
+    return withRetry(new DefaultDataSourceFactory(context, null,
+        new CancelableHttpDataSource.Factory(userAgent, null)));
+  }
+
+  // =========@Retry
+  private volatile LoadRetryPolicy loadRetryPolicy = LoadRetryPolicy.NONE;
+  private MirrorSet mirrors;
+
+  /**
+   * Sets how failed manifest and segment loads are retried, e.g. {@link
+   * LoadRetryPolicy#DEFAULT}. By default, {@link LoadRetryPolicy#NONE}, loads are only retried by
+   * ExoPlayer's own loaders. With a policy (or mirrors) retrying, the loaders don't retry on top
+   * of it, so a load fails once the policy gives up. Takes effect at the next {@code
+   * setDataSource}.
+   */
+  public void setLoadRetryPolicy(LoadRetryPolicy policy) {
+    loadRetryPolicy = policy;
+  }
+
+  private MirrorRacer mirrorRacer;
+  private int mirrorRaceCount = MirrorRacer.DEFAULT_RACE_COUNT;
+  private MirrorRacer.Race mirrorRace;
+
+  /**
+   * Sets the racer picking the fastest mirror of sources set with a {@link MirrorSet}: the first
+   * request is raced across the {@code raceCount} best-ranked mirrors. Usually shared by all
+   * players, so its figures build up. Takes effect at the next {@code setDataSource}.
+   */
+  public void setMirrorRacer(MirrorRacer racer, int raceCount) {
+    mirrorRacer = racer;
+    mirrorRaceCount = raceCount;
+  }
+
+  private DataSource.Factory withRetry(DataSource.Factory factory) {
+    if (mirrorRace != null) {
+      factory = mirrorRace.wrap(factory);
+    }
+    if (!isRetryingLoads()) {
+      return factory;
+    }
+    return new RetryingDataSource.Factory(factory, loadRetryPolicy, mirrors);
+  }
+
+  private boolean isRetryingLoads() {
+    return loadRetryPolicy.maxAttempts > 1 || mirrors != null;
+  }
+
+  /**
+   * @param defaultCount The loader retry count of the source type.
+   * @return The retry count for the loaders of a source: none while {@link #withRetry} retries,
+   * so the two don't multiply.
+   */
+  private int minLoadableRetryCount(int defaultCount) {
+    return isRetryingLoads() ? 0 : defaultCount;
+  }
+
   private MediaSource buildMediaSource(Uri uri, String overrideExtension) {
+    Tracer tracer = Tracing.begin("ExoMediaPlayer.buildMediaSource");
+    try {
+      return createMediaSource(uri, overrideExtension);
+    } finally {
+      Tracing.end(tracer);
+    }
+  }
+
+  private MediaSource createMediaSource(Uri uri, String overrideExtension) {
     int type = TextUtils.isEmpty(overrideExtension) ? Util.inferContentType(uri)
         : Util.inferContentType("." + overrideExtension);
+    DataSource.Factory mediaDataSourceFactory = mediaDataSourceFactory(uri);
     switch (type) {
       case C.TYPE_SS:
-        return new SsMediaSource(uri, new DefaultDataSourceFactory(context, userAgent),
-            new DefaultSsChunkSource.Factory(mediaDataSourceFactory), mainHandler, eventLogger);
-      case C.TYPE_DASH:
-        return new DashMediaSource(uri, new DefaultDataSourceFactory(context, userAgent),
-            new DefaultDashChunkSource.Factory(mediaDataSourceFactory), mainHandler, eventLogger);
+        return new SsMediaSource(uri, manifestDataSourceFactory(),
+            new DefaultSsChunkSource.Factory(mediaDataSourceFactory),
+            minLoadableRetryCount(SsMediaSource.DEFAULT_MIN_LOADABLE_RETRY_COUNT),
+            SsMediaSource.DEFAULT_LIVE_PRESENTATION_DELAY_MS, eventHandler, eventLogger);
+      case C.TYPE_DASH: {
+        int retryCount = minLoadableRetryCount(DashMediaSource.DEFAULT_MIN_LOADABLE_RETRY_COUNT);
+        DashManifest manifest = prefetcher != null ? prefetcher.getDashManifest(uri) : null;
+        if (manifest != null) {
+          return new DashMediaSource(manifest,
+              new DefaultDashChunkSource.Factory(mediaDataSourceFactory), retryCount,
+              eventHandler, eventLogger);
+        }
+        // In live mode, start at the target offset instead of the manifest's suggested delay.
+        return new DashMediaSource(uri, manifestDataSourceFactory(),
+            new DefaultDashChunkSource.Factory(mediaDataSourceFactory), retryCount,
+            liveMode ? liveTargetOffsetMs
+                : DashMediaSource.DEFAULT_LIVE_PRESENTATION_DELAY_PREFER_MANIFEST_MS,
+            eventHandler, eventLogger);
+      }
       case C.TYPE_HLS:
-        return new HlsMediaSource(uri, mediaDataSourceFactory, mainHandler, eventLogger);
+        return new HlsMediaSource(uri, mediaDataSourceFactory,
+            minLoadableRetryCount(HlsMediaSource.DEFAULT_MIN_LOADABLE_RETRY_COUNT), eventHandler,
+            eventLogger);
       case C.TYPE_OTHER:
         return new ExtractorMediaSource(uri, mediaDataSourceFactory, new DefaultExtractorsFactory(),
-            mainHandler, eventLogger);
+            minLoadableRetryCount(ExtractorMediaSource.MIN_RETRY_COUNT_DEFAULT_FOR_MEDIA),
+            eventHandler, eventLogger);
       default: {
         throw new IllegalStateException("Unsupported type: " + type);
       }
@@ -130,78 +694,1296 @@ public class ExoMediaPlayer extends AMediaPlayer {
 
   @Override
   public void prepareAsync() throws IllegalStateException {
-    if (mediaSource != null) {
-      internalPlayer.prepare(mediaSource);
-      playerListener.isPreparing = true;
+    Tracer tracer = Tracing.begin("ExoMediaPlayer.prepareAsync");
+    try {
+      // The source is read on the playback thread, after the setDataSource posted before.
+      runOnPlaybackThread(new Runnable() {
+        @Override
+        public void run() {
+          if (mediaSource == null || released) {
+            return;
+          }
+          Tracer tracer = Tracing.begin("ExoMediaPlayer.prepare");
+          try {
+            MediaSource source = mergeSideloadedSubtitles(mediaSource);
+            peakProcessor.onPositionReset(0);
+            player().prepare(source);
+            preparedSource = source;
+            hold(preparedClip, sourceClip.get());
+            shedForMemory = false;
+            pendingClip = null;
+            if (playerListener != null) {
+              playerListener.isPreparing = true;
+            }
+            updateSnapshot();
+          } finally {
+            Tracing.end(tracer);
+          }
+        }
+      });
+    } finally {
+      Tracing.end(tracer);
+    }
+  }
+
+  private boolean memoryMappedFiles;
+
+  /**
+   * Sets whether local files are read through a {@link MappedFileDataSource}. Disabled by
+   * default: a mapped file truncated while played crashes the process with SIGBUS, so only
+   * enable it for files that don't change, e.g. in the app's own storage. Takes effect at the
+   * next {@code setDataSource}.
+   */
+  public void setMemoryMappedFiles(boolean memoryMappedFiles) {
+    this.memoryMappedFiles = memoryMappedFiles;
+  }
+
+  private static boolean isLocalFile(Uri uri) {
+    String scheme = uri.getScheme();
+    String path = uri.getPath();
+    return (TextUtils.isEmpty(scheme) || "file".equals(scheme))
+        && path != null && !path.startsWith("/android_asset/");
+  }
+
+  // =========@Live
+  private volatile boolean liveMode;
+  private volatile long liveTargetOffsetMs = LiveLatencyController.DEFAULT_TARGET_OFFSET_MS;
+  private volatile LiveLatencyController liveLatencyController;
+  /**
+   * Applies the live mode on the playback thread, once the player is built.
+   */
+  private final Runnable liveModeUpdate = new Runnable() {
+    @Override
+    public void run() {
+      SimpleExoPlayer player = internalPlayer;
+      if (player == null || released) {
+        return;
+      }
+      if (liveMode) {
+        if (liveLatencyController == null) {
+          liveLatencyController = new LiveLatencyController(player, eventHandler);
+        }
+        liveLatencyController.setTargetOffsetMs(liveTargetOffsetMs);
+        liveLatencyController.start();
+      } else if (liveLatencyController != null) {
+        liveLatencyController.stop();
+      }
+    }
+  };
+
+  /**
+   * Sets the low-latency live mode. While playing a live DASH/HLS stream, the latency to the live
+   * edge is kept at {@code targetOffsetMs} by slightly adjusting the playback speed (which
+   * overrides {@link #setPlaybackSpeed}; the speed set there is restored when the mode is turned
+   * off). DASH streams also start at that offset if the mode is set before {@code
+   * setDataSource}.
+   */
+  public void setLiveMode(boolean enabled, long targetOffsetMs) {
+    liveTargetOffsetMs = targetOffsetMs;
+    liveMode = enabled;
+    runOnPlaybackThread(liveModeUpdate);
+  }
+
+  /**
+   * @return The latency to the live edge, or {@link C#TIME_UNSET} if not playing live or the
+   * {@link #setLiveMode live mode} is off.
+   */
+  public long getLiveLatencyMs() {
+    LiveLatencyController controller = liveLatencyController;
+    return liveMode && controller != null ? controller.getLiveLatencyMs() : C.TIME_UNSET;
+  }
+
+  // =========@Prefetch
+  private MediaPrefetcher prefetcher;
+
+  /**
+   * Sets the prefetcher warming the items likely to be played next, usually shared by all
+   * players. Media is then read through its cache. Call before {@code setDataSource}.
+   */
+  public void setPrefetcher(MediaPrefetcher prefetcher) {
+    this.prefetcher = prefetcher;
+  }
+
+  /**
+   * Sets the items likely to be played after the current one, most likely first, to be
+   * prefetched in the background. Requires a {@link #setPrefetcher prefetcher}.
+   */
+  public void setNextUris(List<Uri> uris) {
+    if (prefetcher != null) {
+      prefetcher.prefetch(uris);
+    }
+  }
+
+  // =========@Clip Cache
+  private volatile PcmClipCache clipCache;
+  private volatile String clipContentId;
+  private PcmClipCache.Clip pendingClip;
+  /**
+   * The clips of the current and the prepared source, held so that their files outlive an
+   * eviction from the cache while they may still be read.
+   */
+  private final AtomicReference<PcmClipCache.Clip> sourceClip = new AtomicReference<>();
+  private final AtomicReference<PcmClipCache.Clip> preparedClip = new AtomicReference<>();
+
+  /**
+   * Sets the cache of decoded short audio clips, usually {@link PcmClipCache#getInstance()}.
+   * Short audio is then decoded once in the background and played from PCM, with instant,
+   * sample-accurate seeks. The first play of a clip starts from the original media, and switches
+   * to the PCM once decoded: right away if paused, at the next seek if playing. Null, the
+   * default, disables it. Call before {@code setDataSource}.
+   */
+  public void setPcmClipCache(PcmClipCache cache) {
+    clipCache = cache;
+  }
+
+  /**
+   * @return The cached clip of {@code uri}, or null if not cached yet (it is then decoded for the
+   * next time) or not a clip.
+   */
+  private PcmClipCache.Clip cachedClip(Uri uri, Map<String, String> headers) {
+    PcmClipCache cache = clipCache;
+    String scheme = uri.getScheme();
+    if (cache == null || !(isLocalFile(uri) || "content".equals(scheme)
+        || "http".equals(scheme) || "https".equals(scheme))) {
+      clipContentId = null;
+      return null;
+    }
+    String contentId = uri.toString();
+    clipContentId = contentId;
+    PcmClipCache.Clip clip = cache.get(contentId);
+    if (clip == null) {
+      cache.loadAsync(context, uri, headers, contentId, eventHandler, clipCallback);
+    }
+    return clip;
+  }
+
+  private final PcmClipCache.Callback clipCallback = new PcmClipCache.Callback() {
+    @Override
+    public void onClipLoaded(String contentId, PcmClipCache.Clip clip) {
+      if (!released && contentId.equals(clipContentId)) {
+        useClip(clip, C.TIME_UNSET);
+      }
+    }
+
+    @Override
+    public void onClipError(String contentId, IOException error) {
+      L.dd(TAG, "onClipError(" + contentId + ") " + error.getMessage());
+    }
+  };
+
+  private MediaSource buildClipSource(PcmClipCache.Clip clip) {
+    Uri uri;
+    DataSource.Factory factory;
+    ByteBuffer data = clip.getData();
+    if (data != null) {
+      uri = Uri.parse("pcm://" + Integer.toHexString(clip.getContentId().hashCode()));
+      factory = new ByteBufferDataSource.Factory(data);
+    } else {
+      uri = Uri.fromFile(clip.getFile());
+      factory = new MappedFileDataSource.Factory();
+    }
+    return new ExtractorMediaSource(uri, factory,
+        new ContainerExtractorsFactory(ContainerExtractorsFactory.CONTAINER_WAV), eventHandler,
+        eventLogger);
+  }
+
+  /**
+   * Switches the current content to its decoded clip, keeping the position. Deferred to the next
+   * seek while playing, to not interrupt it. Playback thread only.
+   *
+   * @param seekPositionMs The position to continue from, or {@link C#TIME_UNSET} for the current
+   * one.
+   */
+  private void useClip(PcmClipCache.Clip clip, long seekPositionMs) {
+    MediaSource clipSource = buildClipSource(clip);
+    mediaSource = clipSource;
+    hold(sourceClip, clip);
+    pendingClip = null;
+    SimpleExoPlayer player = internalPlayer;
+    if (player == null || preparedSource == null) {
+      // Not prepared yet, prepareAsync() picks it up.
+      return;
+    } else if (shedForMemory) {
+      preparedSource = mergeSideloadedSubtitles(clipSource);
+      hold(preparedClip, clip);
+      return;
+    } else if (seekPositionMs == C.TIME_UNSET && player.getPlayWhenReady()
+        && player.getPlaybackState() != ExoPlayer.STATE_ENDED) {
+      pendingClip = clip;
+      return;
+    }
+    long positionMs = seekPositionMs != C.TIME_UNSET ? seekPositionMs
+        : player.getCurrentPosition();
+    preparedSource = mergeSideloadedSubtitles(clipSource);
+    hold(preparedClip, clip);
+    peakProcessor.onPositionReset(positionMs);
+    player.prepare(preparedSource);
+    player.seekTo(positionMs);
+    updateSnapshot();
+    L.dd(TAG, "useClip(" + clip.getContentId() + ") at " + positionMs + "ms");
+  }
+
+  /**
+   * Holds {@code clip} (may be null) in {@code holder}, releasing the clip held before.
+   */
+  private static void hold(AtomicReference<PcmClipCache.Clip> holder, PcmClipCache.Clip clip) {
+    if (clip != null) {
+      clip.acquire();
+    }
+    PcmClipCache.Clip previous = holder.getAndSet(clip);
+    if (previous != null) {
+      previous.release();
+    }
+  }
+
+  // =========@Peaks
+  private final PeakAudioProcessor peakProcessor = new PeakAudioProcessor();
+
+  /**
+   * Sets where the waveform {@link PeakIndex} of each content is kept. With a store, peaks are
+   * computed from the PCM as it plays, and loaded right away for content played before; see
+   * {@link #getPeakIndex()}. Null, the default, disables it. Takes effect at the next {@code
+   * setDataSource}.
+   * <p>
+   * Use {@link PeakAnalyzer} to index content without playing it.
+   */
+  public void setPeakStore(PeakStore store) {
+    peakProcessor.setStore(store);
+  }
+
+  /**
+   * @return The peaks of the current content, keyed by its URI, filling in as it plays; null
+   * without a {@link #setPeakStore store}.
+   */
+  public PeakIndex getPeakIndex() {
+    return peakProcessor.getPeakIndex();
+  }
+
+  // ============================@Subtitle@============================
+  private final List<SideloadedSubtitle> sideloadedSubtitles = new CopyOnWriteArrayList<>();
+  private SubtitleIndex.Callback subtitleIndexCallback;
+
+  /**
+   * Sideloads a subtitle file (e.g. {@link MimeTypes#APPLICATION_SUBRIP}, {@link
+   * MimeTypes#TEXT_VTT}, {@link MimeTypes#APPLICATION_TTML}) for the current data source. Call
+   * after {@code setDataSource} and before {@link #prepareAsync()}.
+   * <p>
+   * Besides being rendered as a text track, the file is parsed once in the background into a
+   * {@link SubtitleIndex}, delivered through {@link #setSubtitleIndexCallback}. Both read the
+   * same fetch of the file.
+   */
+  public void addSubtitle(Uri uri, String mimeType, String language) {
+    SideloadedSubtitle subtitle = new SideloadedSubtitle(uri, mimeType, language);
+    sideloadedSubtitles.add(subtitle);
+    SubtitleIndex.loadAsync(subtitle.dataSourceFactory, uri, mimeType, eventHandler, subtitle);
+  }
+
+  /**
+   * @return The index of the sideloaded subtitle {@code uri}, or null if it is not loaded (yet).
+   */
+  public SubtitleIndex getSubtitleIndex(Uri uri) {
+    for (SideloadedSubtitle subtitle : sideloadedSubtitles) {
+      if (subtitle.uri.equals(uri)) {
+        return subtitle.index;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Sets the callback notified when the index of a sideloaded subtitle is loaded.
+   */
+  public void setSubtitleIndexCallback(SubtitleIndex.Callback callback) {
+    subtitleIndexCallback = callback;
+  }
+
+  private MediaSource mergeSideloadedSubtitles(MediaSource contentSource) {
+    if (sideloadedSubtitles.isEmpty()) {
+      return contentSource;
+    }
+    MediaSource[] sources = new MediaSource[sideloadedSubtitles.size() + 1];
+    sources[0] = contentSource;
+    for (int i = 0; i < sideloadedSubtitles.size(); i++) {
+      SideloadedSubtitle subtitle = sideloadedSubtitles.get(i);
+      Format format = Format.createTextSampleFormat(null, subtitle.mimeType,
+          i == 0 ? C.SELECTION_FLAG_DEFAULT : 0, subtitle.language);
+      sources[i + 1] = new SingleSampleMediaSource(subtitle.uri, subtitle.dataSourceFactory,
+          format, C.TIME_UNSET);
+    }
+    return new MergingMediaSource(sources);
+  }
+
+  private final class SideloadedSubtitle implements SubtitleIndex.Callback {
+
+    private final Uri uri;
+    private final String mimeType;
+    private final String language;
+    /**
+     * Shared by the index and the text track, so the file is fetched once.
+     */
+    private final FetchOnceDataSource.Factory dataSourceFactory;
+    private SubtitleIndex index;
+
+    private SideloadedSubtitle(Uri uri, String mimeType, String language) {
+      this.uri = uri;
+      this.mimeType = mimeType;
+      this.language = language;
+      dataSourceFactory = new FetchOnceDataSource.Factory(dataSourceFactory());
+    }
+
+    @Override
+    public void onSubtitleIndexLoaded(Uri uri, SubtitleIndex index) {
+      this.index = index;
+      if (subtitleIndexCallback != null && sideloadedSubtitles.contains(this)) {
+        subtitleIndexCallback.onSubtitleIndexLoaded(uri, index);
+      }
+    }
+
+    @Override
+    public void onSubtitleIndexError(Uri uri, IOException error) {
+      L.e(TAG, "subtitleIndexError " + uri, error);
+      if (subtitleIndexCallback != null && sideloadedSubtitles.contains(this)) {
+        subtitleIndexCallback.onSubtitleIndexError(uri, error);
+      }
+    }
+  }
+
+
+  // ============================@Segment@============================
+  /**
+   * How far past the end of the next segment is kept buffered.
+   */
+  private static final long SEGMENT_BUFFER_MARGIN_MS = 1000;
+  /**
+   * The minimum interval of segment checks, when the clock lags behind the boundary.
+   */
+  private static final long MIN_SEGMENT_CHECK_INTERVAL_MS = 10;
+
+  /**
+   * Notified on the playback looper when playback enters another segment.
+   */
+  public interface OnSegmentChangedListener {
+
+    /**
+     * @param segment The index of the segment, or {@link C#INDEX_UNSET} before the first one.
+     */
+    void onSegmentChanged(ExoMediaPlayer player, int segment);
+  }
+
+  private volatile SegmentIndex segmentIndex;
+  private volatile OnSegmentChangedListener segmentListener;
+  private int currentSegment = C.INDEX_UNSET;
+
+  private final Runnable segmentCheck = new Runnable() {
+    @Override
+    public void run() {
+      checkSegment();
+    }
+  };
+
+  /**
+   * Sets the segments (e.g. sentences) of the current item, for {@link #nextSegment()}, {@link
+   * #previousSegment()} and {@link OnSegmentChangedListener segment changes}. While set, the
+   * player keeps the media up to the end of the next segment buffered, so jumping forward one
+   * segment doesn't rebuffer. Null clears it.
+   * <p>
+   * Only forward jumps are covered: ExoPlayer discards media once played, so jumping back
+   * ({@link #previousSegment()}, {@link #replaySegment()}) loads it again and may rebuffer
+   * briefly. With a {@link #setPrefetcher prefetcher}, the played media is in its cache, and it
+   * is loaded again from there instead of the network.
+   */
+  public void setSegmentIndex(final SegmentIndex index) {
+    segmentIndex = index;
+    runOnPlaybackThread(new Runnable() {
+      @Override
+      public void run() {
+        currentSegment = C.INDEX_UNSET;
+        if (index == null) {
+          eventHandler.removeCallbacks(segmentCheck);
+          loadControl.setBufferFloorUs(0);
+        } else {
+          checkSegment();
+        }
+      }
+    });
+  }
+
+  public SegmentIndex getSegmentIndex() {
+    return segmentIndex;
+  }
+
+  /**
+   * Sets the listener of segment changes, driven by the playback clock: checks are scheduled
+   * for the next boundary, not polled.
+   */
+  public void setOnSegmentChangedListener(OnSegmentChangedListener listener) {
+    segmentListener = listener;
+  }
+
+  /**
+   * @return The segment at the current position, or {@link C#INDEX_UNSET}.
+   */
+  public int getCurrentSegment() {
+    SegmentIndex index = segmentIndex;
+    return index != null ? index.indexOf(getCurrentPosition()) : C.INDEX_UNSET;
+  }
+
+  /**
+   * Jumps to the start of the next segment. Unlike {@link #seekTo}, doesn't notify {@code
+   * onSeekComplete}.
+   *
+   * @return Whether there is a next segment.
+   */
+  public boolean nextSegment() {
+    return seekToSegment(getCurrentSegment() + 1);
+  }
+
+  /**
+   * Jumps to the start of the previous segment. Unlike a forward jump, this is not kept
+   * buffered, see {@link #setSegmentIndex}.
+   *
+   * @return Whether there is a previous segment.
+   * @see #nextSegment()
+   */
+  public boolean previousSegment() {
+    return seekToSegment(getCurrentSegment() - 1);
+  }
+
+  /**
+   * Jumps to the start of the current segment, e.g. to repeat a sentence. Unlike a forward jump,
+   * this is not kept buffered, see {@link #setSegmentIndex}.
+   *
+   * @return Whether there is a current segment.
+   * @see #nextSegment()
+   */
+  public boolean replaySegment() {
+    return seekToSegment(getCurrentSegment());
+  }
+
+  /**
+   * Jumps to the start of {@code segment}.
+   *
+   * @return Whether the segment exists.
+   * @see #nextSegment()
+   */
+  public boolean seekToSegment(int segment) {
+    SegmentIndex index = segmentIndex;
+    if (index == null || segment < 0 || segment >= index.size()) {
+      return false;
     }
+    seek(index.getStartMs(segment), false);
+    return true;
   }
 
+  /**
+   * Notifies a segment change, and schedules the next check for when the clock reaches the next
+   * boundary. Playback thread only.
+   */
+  private void checkSegment() {
+    eventHandler.removeCallbacks(segmentCheck);
+    SegmentIndex index = segmentIndex;
+    SimpleExoPlayer player = internalPlayer;
+    if (index == null || player == null || released) {
+      return;
+    }
+    long positionMs = player.getCurrentPosition();
+    int segment = index.indexOf(positionMs);
+    if (segment != currentSegment) {
+      currentSegment = segment;
+      // Keep the next segment buffered, for a forward jump without rebuffering.
+      long nextEndMs = segment + 2 < index.size() ? index.getStartMs(segment + 2)
+          : player.getDuration();
+      loadControl.setBufferFloorUs(nextEndMs == C.TIME_UNSET ? 0
+          : (nextEndMs - positionMs + SEGMENT_BUFFER_MARGIN_MS) * 1000);
+      OnSegmentChangedListener listener = segmentListener;
+      if (listener != null) {
+        listener.onSegmentChanged(this, segment);
+      }
+    }
+    if (segment + 1 < index.size() && player.getPlayWhenReady()
+        && player.getPlaybackState() == ExoPlayer.STATE_READY) {
+      float speed = player.getPlaybackParameters().speed;
+      long delayMs = (long) ((index.getStartMs(segment + 1) - positionMs) / speed);
+      eventHandler.postDelayed(segmentCheck, Math.max(delayMs, MIN_SEGMENT_CHECK_INTERVAL_MS));
+    }
+  }
 
   // ============================@Control@============================
   @Override
   public boolean start() throws IllegalStateException {
-    if (internalPlayer.getPlaybackState() == ExoPlayer.STATE_ENDED) {
-      seekTo(0);
-      L.dd(TAG, "start()-$>seekTo(0)");//"-$>" internal actual call method
-    } else {
-      internalPlayer.setPlayWhenReady(true);
-      L.dd(TAG, "start()-$>setPlayWhenReady(true)");
-    }
+    runOnPlaybackThread(new Runnable() {
+      @Override
+      public void run() {
+        applyBufferScale(MemoryPressureCoordinator.getInstance().getPressure(), true);
+        loadControl.setPriority(SharedAllocator.PRIORITY_FOREGROUND);
+        if (shedForMemory) {
+          restoreShed();
+        }
+        if (player().getPlaybackState() == ExoPlayer.STATE_ENDED) {
+          seekTo(0);
+          L.dd(TAG, "start()-$>seekTo(0)");//"-$>" internal actual call method
+        } else {
+          player().setPlayWhenReady(true);
+          updateSnapshot();
+          L.dd(TAG, "start()-$>setPlayWhenReady(true)");
+        }
+      }
+    });
     return true;
   }
 
   @Override
   public boolean pause() throws IllegalStateException {
-    internalPlayer.setPlayWhenReady(false);
-    L.dd(TAG, "pause()-$>setPlayWhenReady(false)");
+    runOnPlaybackThread(new Runnable() {
+      @Override
+      public void run() {
+        // A player that isn't built yet is paused already; building it just to pause it
+        // would block for nothing.
+        SimpleExoPlayer player = internalPlayer;
+        if (player != null) {
+          player.setPlayWhenReady(false);
+        }
+        loadControl.setPriority(idlePriority());
+        updateSnapshot();
+        L.dd(TAG, "pause()-$>setPlayWhenReady(false)");
+      }
+    });
     return true;
   }
 
   @Override
-  public boolean seekTo(long ms) throws IllegalStateException {
-    internalPlayer.seekTo(ms);
-    playerListener.isSeekToing = true;
-    L.dd(TAG, "seekTo(" + ms + ")");//omit "-$>." internal same name methods
+  public boolean seekTo(final long ms) throws IllegalStateException {
+    seek(ms, true);
     return true;
   }
 
+  /**
+   * @param notify Whether to raise {@code isSeekToing}, for {@code notifyOnSeekComplete}.
+   */
+  private void seek(final long ms, final boolean notify) {
+    snapshot = snapshot.withPosition(ms);
+    runOnPlaybackThread(new Runnable() {
+      @Override
+      public void run() {
+        if (shedForMemory) {
+          shedPositionMs = ms;
+          return;
+        }
+        Tracer tracer = Tracing.begin("ExoMediaPlayer.seekTo");
+        try {
+          if (pendingClip != null) {
+            useClip(pendingClip, ms);
+          } else {
+            peakProcessor.onPositionReset(ms);
+            player().seekTo(ms);
+          }
+          if (notify && playerListener != null) {
+            playerListener.isSeekToing = true;
+          }
+          updateSnapshot();
+        } finally {
+          Tracing.end(tracer);
+        }
+        L.dd(TAG, "seekTo(" + ms + ")");//omit "-$>." internal same name methods
+      }
+    });
+  }
+
   @Override
   public void stop() throws IllegalStateException {
-    internalPlayer.stop();
-    L.dd(TAG, "stop()");
+    runOnPlaybackThread(new Runnable() {
+      @Override
+      public void run() {
+        shedForMemory = false;
+        SimpleExoPlayer player = internalPlayer;
+        if (player != null) {
+          player.stop();
+        }
+        loadControl.setPriority(idlePriority());
+        updateSnapshot();
+        L.dd(TAG, "stop()");
+      }
+    });
   }
 
   @Override
   public void reset() {
-    internalPlayer.stop();
-    L.dd(TAG, "reset()-$>stop()");
+    runOnPlaybackThread(new Runnable() {
+      @Override
+      public void run() {
+        shedForMemory = false;
+        preparedSource = null;
+        hold(preparedClip, null);
+        pendingClip = null;
+        SimpleExoPlayer player = internalPlayer;
+        if (player != null) {
+          player.stop();
+        }
+        loadControl.setPriority(idlePriority());
+        updateSnapshot();
+        L.dd(TAG, "reset()-$>stop()");
+      }
+    });
   }
 
   @Override
   public void release() {
-    internalPlayer.release();
-    internalPlayer.removeListener(playerListener);
-    internalPlayer.removeListener(eventLogger);
+    runOnPlaybackThread(detachForRelease());
+    L.dd(TAG, "release()-$>.>removeListener(.)");
+  }
+
+  // =========@Release Async
+  public static final long DEFAULT_RELEASE_TIMEOUT_MS = 2000;
+
+  /**
+   * Callback of {@link #releaseAsync}.
+   */
+  public interface ReleaseCallback {
+
+    /**
+     * @param player The player released.
+     * @param timedOut Whether the teardown didn't complete within the timeout. It still goes on
+     * in the background, but the caller shouldn't wait for it any longer.
+     */
+    void onReleased(ExoMediaPlayer player, boolean timedOut);
+  }
+
+  /**
+   * For player builds ({@link #warmUp()}), which may block on codecs for a long time on some
+   * devices, so never on a caller's looper.
+   */
+  private static final ExecutorService backgroundExecutor = Executors.newCachedThreadPool(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "ExoMediaPlayer:Background");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private static Handler releaseHandler;
+
+  /**
+   * For teardowns of players on the main looper, which would block it on the codecs.
+   */
+  private static synchronized Handler releaseHandler() {
+    if (releaseHandler == null) {
+      HandlerThread thread = new HandlerThread("ExoMediaPlayer:Release");
+      thread.setDaemon(true);
+      thread.start();
+      releaseHandler = new Handler(thread.getLooper());
+    }
+    return releaseHandler;
+  }
+
+  /**
+   * Like {@link #release()}, but only detaches listeners on the calling thread. The teardown of
+   * the player and its codecs, including dropping the video surface, runs on the playback looper
+   * if it is a dedicated one, or else on a private release thread, so the main thread never waits
+   * for the codecs. No more listener calls are made once this returns.
+   *
+   * @param callback Notified on the calling thread's looper (or the main looper) when the
+   * teardown completes, or when {@code timeoutMs} elapses first. May be null.
+   */
+  public void releaseAsync(final ReleaseCallback callback, long timeoutMs) {
+    final Runnable teardown = detachForRelease();
+    Looper looper = Looper.myLooper() != null ? Looper.myLooper() : Looper.getMainLooper();
+    final Handler callbackHandler = new Handler(looper);
+    final AtomicBoolean reported = new AtomicBoolean();
+    final Runnable timeout = new Runnable() {
+      @Override
+      public void run() {
+        if (reported.compareAndSet(false, true)) {
+          L.e(TAG, "releaseAsync() timed out");
+          if (callback != null) {
+            callback.onReleased(ExoMediaPlayer.this, true);
+          }
+        }
+      }
+    };
+    callbackHandler.postDelayed(timeout, timeoutMs);
+    final Runnable teardownAndReport = new Runnable() {
+      @Override
+      public void run() {
+        teardown.run();
+        callbackHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            callbackHandler.removeCallbacks(timeout);
+            if (reported.compareAndSet(false, true) && callback != null) {
+              callback.onReleased(ExoMediaPlayer.this, false);
+            }
+          }
+        });
+      }
+    };
+    // Control calls already posted to the playback looper go first.
+    eventHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (eventHandler.getLooper() == Looper.getMainLooper()) {
+          releaseHandler().post(teardownAndReport);
+        } else {
+          teardownAndReport.run();
+        }
+      }
+    });
+    L.dd(TAG, "releaseAsync()");
+  }
+
+  /**
+   * Detaches listeners and video tracking right away. The video surface is left to the player's
+   * release, which drops it on ExoPlayer's internal thread without the caller waiting for it.
+   *
+   * @return The teardown of the internal player, to be run once, on the playback looper or the
+   * release thread.
+   */
+  private Runnable detachForRelease() {
+    MemoryPressureCoordinator.getInstance().removeParticipant(bufferPressure);
+    MemoryPressureCoordinator.getInstance().removeParticipant(idlePressure);
+    audioOnlyWhenHidden = false;
+    mainHandler.removeCallbacks(videoVisibilityCheck);
+    setVideoTarget(null);
+    synchronized (owners) {
+      owners.values().remove(this);
+    }
+    liveMode = false;
+    final LiveLatencyController liveLatencyController = this.liveLatencyController;
+    final SurfaceHandoff surfaceHandoff = this.surfaceHandoff;
+    if (surfaceHandoff != null) {
+      // The player may still render to the placeholder, release it after the player.
+      surfaceHandoff.cancel();
+      this.surfaceHandoff = null;
+    }
+    final SimpleExoPlayer player;
+    synchronized (buildLock) {
+      released = true;
+      player = internalPlayer;
+    }
+    if (player != null) {
+      player.removeListener(playerListener);
+      player.removeListener(eventLogger);
+      player.setVideoListener(null);
+    }
+    if (eventLogger != null && eventLogger.getTraceRecorder() != null) {
+      eventLogger.getTraceRecorder().flush();
+    }
     eventLogger = null;
     playerListener = null;
-    L.dd(TAG, "release()-$>.>removeListener(.)");
+    return new Runnable() {
+      @Override
+      public void run() {
+        eventHandler.removeCallbacks(snapshotRefresh);
+        eventHandler.removeCallbacks(segmentCheck);
+        if (liveLatencyController != null) {
+          eventHandler.removeCallbacks(liveLatencyController);
+        }
+        if (player != null) {
+          player.release();
+        }
+        peakProcessor.save();
+        hold(sourceClip, null);
+        hold(preparedClip, null);
+        if (surfaceHandoff != null) {
+          surfaceHandoff.release();
+        }
+        snapshot = Snapshot.IDLE;
+      }
+    };
+  }
+
+  // ============================@Memory Pressure@============================
+  /**
+   * The source the player was prepared with, subtitles merged. Playback thread only.
+   */
+  private MediaSource preparedSource;
+  private volatile boolean shedForMemory;
+  private volatile long shedPositionMs;
+
+  private final MemoryPressureCoordinator.Participant bufferPressure =
+      new MemoryPressureCoordinator.Participant() {
+        @Override
+        public void onMemoryPressure(int level) {
+          applyBufferScale(level, snapshot.playWhenReady);
+        }
+      };
+
+  private final MemoryPressureCoordinator.Participant idlePressure =
+      new MemoryPressureCoordinator.Participant() {
+        @Override
+        public void onMemoryPressure(int level) {
+          if (level == MemoryPressureCoordinator.LEVEL_CRITICAL && internalPlayer != null
+              && !snapshot.playWhenReady) {
+            runOnPlaybackThread(new Runnable() {
+              @Override
+              public void run() {
+                shed();
+              }
+            });
+          }
+        }
+      };
+
+  /**
+   * @return This player's client of the process-wide {@link SharedAllocator}, for utilisation
+   * metrics.
+   */
+  public SharedAllocator.Client getSharedAllocatorClient() {
+    return loadControl.getSharedAllocatorClient();
+  }
+
+  private volatile boolean preloading;
+
+  /**
+   * Sets whether this player only preloads, e.g. a feed item next to the visible one. Until
+   * {@link #start()}, it then loads at {@link SharedAllocator#PRIORITY_BACKGROUND} and only buffers
+   * enough to start playback, leaving bandwidth and buffers to the players in use. Started
+   * players always load at foreground priority.
+   */
+  public void setPreloading(boolean preloading) {
+    this.preloading = preloading;
+    runOnPlaybackThread(new Runnable() {
+      @Override
+      public void run() {
+        SimpleExoPlayer player = internalPlayer;
+        if (player == null || !player.getPlayWhenReady()) {
+          loadControl.setPriority(idlePriority());
+        }
+      }
+    });
+  }
+
+  /**
+   * @return The load priority while not playing.
+   */
+  private int idlePriority() {
+    return preloading ? SharedAllocator.PRIORITY_BACKGROUND : SharedAllocator.PRIORITY_NORMAL;
+  }
+
+  /**
+   * The playing player keeps more of its buffer than the ones paused or preloading.
+   */
+  private void applyBufferScale(int level, boolean playing) {
+    float scale;
+    if (level == MemoryPressureCoordinator.LEVEL_CRITICAL) {
+      scale = playing ? 0.5f : 0.25f;
+    } else if (level == MemoryPressureCoordinator.LEVEL_MODERATE) {
+      scale = playing ? 0.75f : 0.5f;
+    } else {
+      scale = 1f;
+    }
+    loadControl.setBufferScale(scale);
+  }
+
+  /**
+   * Drops the buffers and codecs of a paused or idle player, keeping its source and position for
+   * {@link #restoreShed()} at the next {@link #start()}.
+   */
+  private void shed() {
+    SimpleExoPlayer player = internalPlayer;
+    if (released || player == null || shedForMemory || preparedSource == null
+        || player.getPlayWhenReady() || player.getPlaybackState() == ExoPlayer.STATE_IDLE) {
+      return;
+    }
+    shedPositionMs = player.getCurrentPosition();
+    player.stop();
+    shedForMemory = true;
+    updateSnapshot();
+    L.dd(TAG, "shed() at " + shedPositionMs + "ms");
+  }
+
+  private void restoreShed() {
+    shedForMemory = false;
+    SimpleExoPlayer player = player();
+    peakProcessor.onPositionReset(shedPositionMs);
+    player.prepare(preparedSource);
+    player.seekTo(shedPositionMs);
+    L.dd(TAG, "restoreShed() at " + shedPositionMs + "ms");
   }
 
   // ============================@Video@============================
+  private SurfaceHandoff surfaceHandoff;
+
+  /**
+   * Whether {@link #videoTarget} was set before the player was built, for the build to apply.
+   */
+  private boolean videoOutputPending;
+  /**
+   * Applies the video output set before the build, and starts tracking its visibility.
+   */
+  private final Runnable videoAfterBuild = new Runnable() {
+    @Override
+    public void run() {
+      SimpleExoPlayer player = internalPlayer;
+      if (player == null || released) {
+        return;
+      }
+      if (videoOutputPending) {
+        videoOutputPending = false;
+        applyVideoOutput(player, videoTarget);
+      }
+      checkVideoVisibility();
+    }
+  };
+
   @Override
   public void setVideo(SurfaceView surfaceView) {
-    internalPlayer.setVideoSurfaceView(surfaceView);
+    setVideoOutput(surfaceView);
   }
 
   @Override
   public void setVideo(TextureView textureView) {
-    internalPlayer.setVideoTextureView(textureView);
+    setVideoOutput(textureView);
+  }
+
+  /**
+   * Sets {@code target} on the player, or keeps it for the build if the player isn't built yet.
+   */
+  private void setVideoOutput(Object target) {
+    if (!videoEnabled) {
+      return;
+    }
+    cancelVideoHandoff();
+    SimpleExoPlayer player = internalPlayer;
+    if (player != null) {
+      applyVideoOutput(player, target);
+    }
+    videoOutputPending = player == null;
+    releaseVideoPlaceholder();
+    setVideoTarget(target);
+  }
+
+  private static void applyVideoOutput(SimpleExoPlayer player, Object target) {
+    if (target instanceof SurfaceView) {
+      player.setVideoSurfaceView((SurfaceView) target);
+    } else if (target instanceof TextureView) {
+      player.setVideoTextureView((TextureView) target);
+    } else if (target instanceof SurfaceHolder) {
+      player.setVideoSurfaceHolder((SurfaceHolder) target);
+    } else if (target instanceof Surface) {
+      player.setVideoSurface((Surface) target);
+    }
   }
 
   @Override
   public void clearVideo() {
-    internalPlayer.setVideoSurfaceView(null);
-    internalPlayer.setVideoTextureView(null);
+    if (!videoEnabled) {
+      return;
+    }
+    cancelVideoHandoff();
+    SimpleExoPlayer player = internalPlayer;
+    if (player != null) {
+      player.setVideoSurfaceView(null);
+      player.setVideoTextureView(null);
+    }
+    videoOutputPending = false;
+    releaseVideoPlaceholder();
+    setVideoTarget(null);
+  }
+
+  /**
+   * Detaches the current video view but keeps the decoder alive on an offscreen placeholder
+   * surface. Use before moving playback to another view, then {@link #handoffVideo(SurfaceView)}
+   * or {@link #handoffVideo(TextureView)}. From API 23 on, unlike {@link #clearVideo()}, this
+   * causes neither a decoder re-initialization nor a rebuffer. Below API 23 ExoPlayer can't move
+   * a decoder between surfaces, so nothing is parked and the decoder is re-created once, when the
+   * next view is attached. Before the player is built there is no decoder to keep, this then just
+   * forgets the view.
+   */
+  public void detachVideo() {
+    if (!videoEnabled) {
+      return;
+    }
+    SurfaceHandoff surfaceHandoff = surfaceHandoff();
+    if (surfaceHandoff != null) {
+      surfaceHandoff.park();
+    }
+    videoOutputPending = false;
+    setVideoTarget(null);
+    L.dd(TAG, "detachVideo()-$>park()");
+  }
+
+  /**
+   * Moves video output to {@code surfaceView} without re-initializing the decoder (from API 23,
+   * see {@link #detachVideo()}). If the surface is not created yet, the decoder stays parked
+   * until it is.
+   */
+  public void handoffVideo(SurfaceView surfaceView) {
+    SurfaceHandoff surfaceHandoff = surfaceHandoff();
+    if (surfaceHandoff == null) {
+      setVideo(surfaceView);
+      return;
+    }
+    surfaceHandoff.attach(surfaceView);
+    videoOutputPending = false;
+    setVideoTarget(surfaceView);
+    L.dd(TAG, "handoffVideo(SurfaceView)");
+  }
+
+  /**
+   * Moves video output to {@code textureView} without re-initializing the decoder (from API 23,
+   * see {@link #detachVideo()}). If the surface texture is not available yet, the decoder stays
+   * parked until it is.
+   */
+  public void handoffVideo(TextureView textureView) {
+    SurfaceHandoff surfaceHandoff = surfaceHandoff();
+    if (surfaceHandoff == null) {
+      setVideo(textureView);
+      return;
+    }
+    surfaceHandoff.attach(textureView);
+    videoOutputPending = false;
+    setVideoTarget(textureView);
+    L.dd(TAG, "handoffVideo(TextureView)");
+  }
+
+  /**
+   * @return The handoff of the built player, or null if video is disabled or the player isn't
+   * built yet; video outputs are then set as usual, for the build to apply.
+   */
+  private SurfaceHandoff surfaceHandoff() {
+    SimpleExoPlayer player = internalPlayer;
+    if (!videoEnabled || player == null) {
+      return null;
+    }
+    if (surfaceHandoff == null) {
+      surfaceHandoff = new SurfaceHandoff(player);
+    }
+    return surfaceHandoff;
+  }
+
+  private void cancelVideoHandoff() {
+    if (surfaceHandoff != null) {
+      surfaceHandoff.cancel();
+    }
+  }
+
+  private void releaseVideoPlaceholder() {
+    if (surfaceHandoff != null) {
+      surfaceHandoff.release();
+    }
+  }
+
+  // =========@Audio Only When Hidden
+  public static final long DEFAULT_AUDIO_ONLY_GRACE_MS = 5000;
+
+  /**
+   * The players built by instances, for video outputs set on them directly. Guarded by itself.
+   */
+  private static final Map<SimpleExoPlayer, ExoMediaPlayer> owners = new WeakHashMap<>();
+
+  /**
+   * The current video output: a SurfaceView, TextureView, SurfaceHolder, Surface or null.
+   */
+  private Object videoTarget;
+  private boolean audioOnlyWhenHidden;
+  private long audioOnlyGraceMs = DEFAULT_AUDIO_ONLY_GRACE_MS;
+  /**
+   * Since when no visible surface is attached, or {@link C#TIME_UNSET} while one is.
+   */
+  private long hiddenSinceMs = C.TIME_UNSET;
+  private volatile boolean videoDisabledWhileHidden;
+  /**
+   * Runs on surface and view changes, and once more when the grace period of a hidden surface
+   * ends.
+   */
+  private final Runnable videoVisibilityCheck = new Runnable() {
+    @Override
+    public void run() {
+      checkVideoVisibility();
+    }
+  };
+  private final VideoTargetListener videoTargetListener = new VideoTargetListener();
+
+  private final class VideoTargetListener implements SurfaceHolder.Callback,
+      View.OnAttachStateChangeListener {
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+      checkVideoVisibility();
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+      // Do nothing.
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+      // The surface is only invalid once this returns.
+      mainHandler.post(videoVisibilityCheck);
+    }
+
+    @Override
+    public void onViewAttachedToWindow(View v) {
+      checkVideoVisibility();
+    }
+
+    @Override
+    public void onViewDetachedFromWindow(View v) {
+      mainHandler.post(videoVisibilityCheck);
+    }
+  }
+
+  /**
+   * Sets whether video is disabled while no visible surface is attached, e.g. when the view is
+   * detached or the app goes to the background. Once no visible surface has been seen for
+   * {@code graceMs}, the video renderer is disabled, so only audio is downloaded and decoded.
+   * Video is enabled again at the current position as soon as a visible surface returns.
+   * <p>
+   * Video outputs set through this player ({@code setVideo}, {@link #setDisplay}, {@link
+   * #setSurface}, {@code handoffVideo}) and by {@link ExoPlayerView#setPlayer} are tracked, and
+   * checked whenever their surface is created or destroyed and their view attached or detached.
+   * A plain {@link Surface} is only checked when set. Call from the main thread.
+   *
+   * @param enabled Whether the mode is enabled.
+   * @param graceMs How long the surface may be missing before video is disabled.
+   */
+  public void setAudioOnlyWhenHidden(boolean enabled, long graceMs) {
+    audioOnlyWhenHidden = enabled;
+    audioOnlyGraceMs = graceMs;
+    hiddenSinceMs = C.TIME_UNSET;
+    checkVideoVisibility();
+  }
+
+  /**
+   * @return Whether this player was built with a video renderer.
+   */
+  public boolean isVideoEnabled() {
+    return videoEnabled;
+  }
+
+  /**
+   * @return Whether video is currently disabled because no visible surface is attached.
+   */
+  public boolean isVideoDisabledWhileHidden() {
+    return videoDisabledWhileHidden;
+  }
+
+  /**
+   * Tracks {@code target} as the video output of {@code player}, if an instance built it, when
+   * set on the player directly (e.g. by {@link ExoPlayerView}). Null stops tracking {@code
+   * previous}, if that is still the output. Main thread only.
+   */
+  static void onVideoTargetChanged(SimpleExoPlayer player, Object previous, Object target) {
+    ExoMediaPlayer owner;
+    synchronized (owners) {
+      owner = owners.get(player);
+    }
+    if (owner == null || (target == null && owner.videoTarget != previous)) {
+      return;
+    }
+    owner.videoOutputPending = false;
+    owner.setVideoTarget(target);
+  }
+
+  private void setVideoTarget(Object target) {
+    if (videoTarget == target) {
+      checkVideoVisibility();
+      return;
+    }
+    if (videoTarget instanceof SurfaceView) {
+      ((SurfaceView) videoTarget).getHolder().removeCallback(videoTargetListener);
+    } else if (videoTarget instanceof SurfaceHolder) {
+      ((SurfaceHolder) videoTarget).removeCallback(videoTargetListener);
+    }
+    if (videoTarget instanceof View) {
+      ((View) videoTarget).removeOnAttachStateChangeListener(videoTargetListener);
+    }
+    videoTarget = target;
+    if (target instanceof SurfaceView) {
+      ((SurfaceView) target).getHolder().addCallback(videoTargetListener);
+    } else if (target instanceof SurfaceHolder) {
+      ((SurfaceHolder) target).addCallback(videoTargetListener);
+    }
+    if (target instanceof View) {
+      ((View) target).addOnAttachStateChangeListener(videoTargetListener);
+    }
+    checkVideoVisibility();
+  }
+
+  /**
+   * Enables video if a visible surface is attached. Otherwise disables it once hidden for the
+   * grace period, checking again when it ends; nothing polls in between.
+   */
+  private void checkVideoVisibility() {
+    mainHandler.removeCallbacks(videoVisibilityCheck);
+    if (!audioOnlyWhenHidden) {
+      setVideoRendererDisabled(false);
+      return;
+    } else if (internalPlayer == null) {
+      // Checked again once built.
+      return;
+    }
+    long nowMs = SystemClock.elapsedRealtime();
+    if (hasVisibleVideoSurface()) {
+      hiddenSinceMs = C.TIME_UNSET;
+      setVideoRendererDisabled(false);
+      return;
+    }
+    if (hiddenSinceMs == C.TIME_UNSET) {
+      hiddenSinceMs = nowMs;
+    }
+    long hiddenMs = nowMs - hiddenSinceMs;
+    if (hiddenMs >= audioOnlyGraceMs) {
+      setVideoRendererDisabled(true);
+    } else {
+      mainHandler.postDelayed(videoVisibilityCheck, audioOnlyGraceMs - hiddenMs);
+    }
+  }
+
+  private boolean hasVisibleVideoSurface() {
+    Object target = videoTarget;
+    if (target instanceof SurfaceView) {
+      SurfaceView surfaceView = (SurfaceView) target;
+      return isVisible(surfaceView) && isValid(surfaceView.getHolder());
+    } else if (target instanceof TextureView) {
+      TextureView textureView = (TextureView) target;
+      return isVisible(textureView) && textureView.isAvailable();
+    } else if (target instanceof SurfaceHolder) {
+      return isValid((SurfaceHolder) target);
+    } else if (target instanceof Surface) {
+      return ((Surface) target).isValid();
+    }
+    return false;
+  }
+
+  private static boolean isVisible(View view) {
+    return view.isShown() && view.getWindowVisibility() == View.VISIBLE;
+  }
+
+  private static boolean isValid(SurfaceHolder holder) {
+    Surface surface = holder.getSurface();
+    return surface != null && surface.isValid();
+  }
+
+  private void setVideoRendererDisabled(final boolean disabled) {
+    if (videoDisabledWhileHidden == disabled) {
+      return;
+    }
+    videoDisabledWhileHidden = disabled;
+    runOnPlaybackThread(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (buildLock) {
+          if (internalPlayer == null) {
+            // The build applies it.
+            return;
+          }
+        }
+        disableVideoRenderers(internalPlayer, videoDisabledWhileHidden);
+      }
+    });
+  }
+
+  private void disableVideoRenderers(SimpleExoPlayer player, boolean disabled) {
+    for (int i = 0; i < player.getRendererCount(); i++) {
+      if (player.getRendererType(i) == C.TRACK_TYPE_VIDEO) {
+        trackSelector.setRendererDisabled(i, disabled);
+      }
+    }
+    L.dd(TAG, "setVideoRendererDisabled(" + disabled + ")");
   }
 
   // ============================@Set/Get/Is@============================
@@ -211,23 +1993,36 @@ public class ExoMediaPlayer extends AMediaPlayer {
   }
 
   @Override
-  public void setVolume(float leftVolume, float rightVolume) {
-    internalPlayer.setVolume(leftVolume);
+  public void setVolume(final float leftVolume, float rightVolume) {
+    runOnPlaybackThread(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (buildLock) {
+          if (internalPlayer == null) {
+            pendingVolume = leftVolume;
+            snapshot = snapshot.withVolume(leftVolume);
+            return;
+          }
+        }
+        internalPlayer.setVolume(leftVolume);
+        updateSnapshot();
+      }
+    });
   }
 
   @Override
   public float getVolume() {
-    return internalPlayer.getVolume();
+    return canReadPlayer() ? internalPlayer.getVolume() : snapshot.volume;
   }
 
   @Override
   public void setDisplay(SurfaceHolder sh) {
-    internalPlayer.setVideoSurfaceHolder(sh);
+    setVideoOutput(sh);
   }
 
   @Override
   public void setSurface(Surface surface) {
-    internalPlayer.setVideoSurface(surface);
+    setVideoOutput(surface);
   }
 
   @Override
@@ -248,24 +2043,44 @@ public class ExoMediaPlayer extends AMediaPlayer {
   }
 
   @Override
-  public boolean setPlaybackSpeed(float speed) {
-    internalPlayer.setPlaybackParameters(new PlaybackParameters(speed, 1f));
+  public boolean setPlaybackSpeed(final float speed) {
+    runOnPlaybackThread(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (buildLock) {
+          if (internalPlayer == null) {
+            pendingSpeed = speed;
+            snapshot = snapshot.withSpeed(speed);
+            return;
+          }
+        }
+        internalPlayer.setPlaybackParameters(new PlaybackParameters(speed, 1f));
+        if (liveLatencyController != null) {
+          liveLatencyController.setUserSpeed(speed);
+        }
+        updateSnapshot();
+      }
+    });
     return true;
   }
 
   @Override
   public float getPlaybackSpeed() {
-    return internalPlayer.getPlaybackParameters().speed;
+    return canReadPlayer() ? internalPlayer.getPlaybackParameters().speed : snapshot.speed;
   }
 
   @Override
   public long getCurrentPosition() {
-    return internalPlayer.getCurrentPosition();
+    if (shedForMemory) {
+      return shedPositionMs;
+    }
+    return canReadPlayer() ? internalPlayer.getCurrentPosition()
+        : snapshot.currentPositionMs();
   }
 
   @Override
   public long getDuration() {
-    return internalPlayer.getDuration();
+    return canReadPlayer() ? internalPlayer.getDuration() : snapshot.durationMs;
   }
 
   private int mVideoWidth;
@@ -288,12 +2103,12 @@ public class ExoMediaPlayer extends AMediaPlayer {
 
   @Override
   public int getPlaybackState() {
-    return internalPlayer.getPlaybackState();
+    return canReadPlayer() ? internalPlayer.getPlaybackState() : snapshot.playbackState;
   }
 
   @Override
   public boolean isPlayable() {
-    int state = internalPlayer.getPlaybackState();
+    int state = getPlaybackState();
     switch (state) {
       case ExoPlayer.STATE_IDLE:
       case ExoPlayer.STATE_BUFFERING:
@@ -305,11 +2120,48 @@ public class ExoMediaPlayer extends AMediaPlayer {
 
   @Override
   public boolean isPlaying() {
+    if (!canReadPlayer()) {
+      Snapshot s = snapshot;
+      return s.playWhenReady && s.playbackState == ExoPlayer.STATE_READY;
+    }
     return isPlayable() && internalPlayer.getPlaybackState() != ExoPlayer.STATE_ENDED
         && internalPlayer.getPlayWhenReady();
   }
 
   // ============================@Listener@============================
+  private final class AbrTrackSelectionFactory implements TrackSelection.Factory {
+
+    private final TrackSelection.Factory throughputFactory;
+    private final TrackSelection.Factory bufferBasedFactory;
+    private volatile int algorithm = ABR_THROUGHPUT;
+
+    private AbrTrackSelectionFactory(DefaultBandwidthMeter bandwidthMeter) {
+      throughputFactory = new AdaptiveTrackSelection.Factory(bandwidthMeter);
+      bufferBasedFactory = new BufferBasedTrackSelection.Factory(bandwidthMeter, eventHandler,
+          new BufferBasedTrackSelection.EventListener() {
+            @Override
+            public void onBufferBasedSwitch(Format from, Format to, long bufferedDurationMs) {
+              if (eventLogger != null) {
+                eventLogger.onBufferBasedSwitch(from, to, bufferedDurationMs);
+              }
+            }
+          });
+    }
+
+    private void setAlgorithm(int algorithm) {
+      if (algorithm != ABR_THROUGHPUT && algorithm != ABR_BUFFER_BASED) {
+        throw new IllegalArgumentException("Unsupported adaptive algorithm: " + algorithm);
+      }
+      this.algorithm = algorithm;
+    }
+
+    @Override
+    public TrackSelection createTrackSelection(TrackGroup group, int... tracks) {
+      return (algorithm == ABR_BUFFER_BASED ? bufferBasedFactory : throughputFactory)
+          .createTrackSelection(group, tracks);
+    }
+  }
+
   private class PlayerListener implements ExoPlayer.EventListener, SimpleExoPlayer.VideoListener {
 
     private boolean isPreparing = false;
@@ -332,7 +2184,7 @@ public class ExoMediaPlayer extends AMediaPlayer {
 
     @Override
     public void onTimelineChanged(Timeline timeline, Object manifest) {
-
+      updateSnapshot();
     }
 
     @Override
@@ -347,6 +2199,7 @@ public class ExoMediaPlayer extends AMediaPlayer {
 
     @Override
     public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+      updateSnapshot();
       setPlaybackState(playbackState);
 
       if (isBuffering && (playbackState == ExoPlayer.STATE_READY
@@ -401,12 +2254,12 @@ public class ExoMediaPlayer extends AMediaPlayer {
 
     @Override
     public void onPositionDiscontinuity() {
-
+      updateSnapshot();
     }
 
     @Override
     public void onPlaybackParametersChanged(PlaybackParameters playbackParameters) {
-      //Do nothing
+      updateSnapshot();
     }
   }
 }
\ No newline at end of file
@@ -19,7 +19,6 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
@@ -71,6 +70,8 @@ public final class ExoPlayerView extends APlayerView<ExoPlayerView> {
 
   private boolean useArtwork;
   private Bitmap defaultArtwork;
+  private byte[] artworkData;
+  private ArtworkLoader.Request artworkRequest;
   private int controllerShowTimeoutMs;
 
   public ExoPlayerView(Context context) {
@@ -116,6 +117,7 @@ public final class ExoPlayerView extends APlayerView<ExoPlayerView> {
     contentFrame = (AspectRatioFrameLayout) findViewById(R.id.exo_content_frame);
     if (contentFrame != null) {
       setResizeModeRaw(contentFrame, resizeMode);
+      contentFrame.addOnLayoutChangeListener(componentListener);
     }
 
     // Shutter view.
@@ -140,7 +142,18 @@ public final class ExoPlayerView extends APlayerView<ExoPlayerView> {
     artworkView = (ImageView) findViewById(R.id.exo_artwork);
     this.useArtwork = useArtwork && artworkView != null;
     if (defaultArtworkId != 0) {
-      defaultArtwork = BitmapFactory.decodeResource(context.getResources(), defaultArtworkId);
+      defaultArtwork = ArtworkLoader.getCachedResource(defaultArtworkId);
+      if (defaultArtwork == null) {
+        ArtworkLoader.loadResource(context.getResources(), defaultArtworkId,
+            new ArtworkLoader.Callback() {
+              @Override
+              public void onArtworkLoaded(Bitmap bitmap) {
+                if (defaultArtwork == null && bitmap != null) {
+                  setDefaultArtwork(bitmap);
+                }
+              }
+            });
+      }
     }
 
     // Subtitle view.
@@ -157,7 +170,16 @@ public final class ExoPlayerView extends APlayerView<ExoPlayerView> {
   }
 
   // ============================@Player@============================
+  /**
+   * How long a switched decoder may stay parked waiting for this view's surface.
+   */
+  private static final long HANDOFF_PARK_TIMEOUT_MS = 5000;
+
   private SimpleExoPlayer player;
+  /**
+   * The handoff that attached the player to this view, released when the player leaves it.
+   */
+  private SurfaceHandoff surfaceHandoff;
 
   /**
    * Returns the player currently set on this view, or null if no player is set.
@@ -179,6 +201,44 @@ public final class ExoPlayerView extends APlayerView<ExoPlayerView> {
    * @param player The {@link SimpleExoPlayer} to use.
    */
   public void setPlayer(SimpleExoPlayer player) {
+    setPlayer(player, null);
+  }
+
+  /**
+   * Switches the view targeted by a given {@link SimpleExoPlayer} (e.g. inline -> fullscreen)
+   * without re-initializing the video decoder. The decoder is parked on a placeholder surface
+   * until the new view's surface is available, so there is no rebuffer and no black flash
+   * caused by a decoder reset. If the surface doesn't arrive within a few seconds, the decoder is
+   * taken off the placeholder and the view attached the usual way. Below API 23 the decoder
+   * can't be moved between surfaces, so the new view is attached directly; see {@link
+   * SurfaceHandoff}.
+   *
+   * @param player The player whose target view is being switched.
+   * @param oldPlayerView The old view to detach from the player, or null.
+   * @param newPlayerView The new view to attach to the player, or null to just detach the old
+   * one, clearing the player's video surface like {@link #setPlayer(SimpleExoPlayer)} does.
+   */
+  public static void switchTargetView(SimpleExoPlayer player, ExoPlayerView oldPlayerView,
+      ExoPlayerView newPlayerView) {
+    if (oldPlayerView == newPlayerView) {
+      return;
+    }
+    if (newPlayerView == null) {
+      // Nothing would ever take the decoder off a placeholder, so don't park it on one.
+      if (oldPlayerView.player == player) {
+        oldPlayerView.setPlayer(null, null);
+      }
+      return;
+    }
+    SurfaceHandoff surfaceHandoff = new SurfaceHandoff(player, HANDOFF_PARK_TIMEOUT_MS);
+    surfaceHandoff.park();
+    if (oldPlayerView != null && oldPlayerView.player == player) {
+      oldPlayerView.setPlayer(null, surfaceHandoff);
+    }
+    newPlayerView.setPlayer(player, surfaceHandoff);
+  }
+
+  private void setPlayer(SimpleExoPlayer player, SurfaceHandoff surfaceHandoff) {
     if (this.player == player) {
       return;
     }
@@ -186,7 +246,15 @@ public final class ExoPlayerView extends APlayerView<ExoPlayerView> {
       this.player.setTextOutput(null);
       this.player.setVideoListener(null);
       this.player.removeListener(componentListener);
-      this.player.setVideoSurface(null);
+      if (surfaceHandoff == null) {
+        this.player.setVideoSurface(null);
+      }
+      ExoMediaPlayer.onVideoTargetChanged(this.player, surfaceView, null);
+    }
+    if (this.surfaceHandoff != null) {
+      // The player is off its placeholder by now: on a new handoff's, or on no surface.
+      this.surfaceHandoff.release();
+      this.surfaceHandoff = null;
     }
     this.player = player;
     if (useControlGroup) {
@@ -196,11 +264,21 @@ public final class ExoPlayerView extends APlayerView<ExoPlayerView> {
       shutterView.setVisibility(VISIBLE);
     }
     if (player != null) {
-      if (surfaceView instanceof TextureView) {
+      if (surfaceHandoff != null) {
+        this.surfaceHandoff = surfaceHandoff;
+        if (surfaceView instanceof TextureView) {
+          surfaceHandoff.attach((TextureView) surfaceView);
+        } else if (surfaceView instanceof SurfaceView) {
+          surfaceHandoff.attach((SurfaceView) surfaceView);
+        }
+      } else if (surfaceView instanceof TextureView) {
         player.setVideoTextureView((TextureView) surfaceView);
       } else if (surfaceView instanceof SurfaceView) {
         player.setVideoSurfaceView((SurfaceView) surfaceView);
       }
+      if (surfaceView != null) {
+        ExoMediaPlayer.onVideoTargetChanged(player, null, surfaceView);
+      }
       player.setVideoListener(componentListener);
       player.addListener(componentListener);
       player.setTextOutput(componentListener);
@@ -212,6 +290,30 @@ public final class ExoPlayerView extends APlayerView<ExoPlayerView> {
     }
   }
 
+  /**
+   * Listener to be notified about changes of the pixel size of the content frame, i.e. the size
+   * video is actually displayed at.
+   */
+  public interface ContentSizeListener {
+
+    void onContentSizeChanged(int width, int height);
+  }
+
+  private ContentSizeListener contentSizeListener;
+
+  /**
+   * Sets the {@link ContentSizeListener}, e.g. a {@link ViewportTrackConstraint}. If the content
+   * frame is already laid out, the listener is notified immediately.
+   *
+   * @param listener The listener, or null to clear it.
+   */
+  public void setContentSizeListener(ContentSizeListener listener) {
+    this.contentSizeListener = listener;
+    if (listener != null && contentFrame != null && contentFrame.getWidth() > 0) {
+      listener.onContentSizeChanged(contentFrame.getWidth(), contentFrame.getHeight());
+    }
+  }
+
   /**
    * Sets the resize mode.
    *
@@ -420,6 +522,15 @@ public final class ExoPlayerView extends APlayerView<ExoPlayerView> {
   }
 
   private void updateForCurrentTrackSelections() {
+    Tracer tracer = Tracing.begin("ExoPlayerView.updateForCurrentTrackSelections");
+    try {
+      updateForTrackSelections();
+    } finally {
+      Tracing.end(tracer);
+    }
+  }
+
+  private void updateForTrackSelections() {
     if (player == null) {
       return;
     }
@@ -449,6 +560,8 @@ public final class ExoPlayerView extends APlayerView<ExoPlayerView> {
           }
         }
       }
+      cancelArtworkRequest();
+      artworkData = null;
       if (setArtworkFromBitmap(defaultArtwork)) {
         return;
       }
@@ -461,14 +574,44 @@ public final class ExoPlayerView extends APlayerView<ExoPlayerView> {
     for (int i = 0; i < metadata.length(); i++) {
       Metadata.Entry metadataEntry = metadata.get(i);
       if (metadataEntry instanceof ApicFrame) {
-        byte[] bitmapData = ((ApicFrame) metadataEntry).pictureData;
-        Bitmap bitmap = BitmapFactory.decodeByteArray(bitmapData, 0, bitmapData.length);
-        return setArtworkFromBitmap(bitmap);
+        final byte[] bitmapData = ((ApicFrame) metadataEntry).pictureData;
+        if (bitmapData == artworkData) {
+          // Already shown or being decoded.
+          return true;
+        }
+        cancelArtworkRequest();
+        artworkData = bitmapData;
+        // Decode off the main thread, downsampled to the content frame size.
+        View sizeReference = contentFrame != null ? contentFrame : this;
+        artworkRequest = ArtworkLoader.load(bitmapData, sizeReference.getWidth(),
+            sizeReference.getHeight(), new ArtworkLoader.Callback() {
+              @Override
+              public void onArtworkLoaded(Bitmap bitmap) {
+                if (artworkData != bitmapData) {
+                  return;
+                }
+                artworkRequest = null;
+                if (!setArtworkFromBitmap(bitmap)) {
+                  artworkData = null;
+                  if (!useArtwork || !setArtworkFromBitmap(defaultArtwork)) {
+                    hideArtwork();
+                  }
+                }
+              }
+            });
+        return true;
       }
     }
     return false;
   }
 
+  private void cancelArtworkRequest() {
+    if (artworkRequest != null) {
+      artworkRequest.cancel();
+      artworkRequest = null;
+    }
+  }
+
   private boolean setArtworkFromBitmap(Bitmap bitmap) {
     if (bitmap != null) {
       int bitmapWidth = bitmap.getWidth();
@@ -486,6 +629,8 @@ public final class ExoPlayerView extends APlayerView<ExoPlayerView> {
   }
 
   private void hideArtwork() {
+    cancelArtworkRequest();
+    artworkData = null;
     if (artworkView != null) {
       artworkView.setImageResource(android.R.color.transparent); // Clears any bitmap reference.
       artworkView.setVisibility(INVISIBLE);
@@ -498,7 +643,20 @@ public final class ExoPlayerView extends APlayerView<ExoPlayerView> {
   }
 
   private final class ComponentListener implements SimpleExoPlayer.VideoListener,
-      TextRenderer.Output, ExoPlayer.EventListener {
+      TextRenderer.Output, ExoPlayer.EventListener, View.OnLayoutChangeListener {
+
+    // View.OnLayoutChangeListener implementation
+
+    @Override
+    public void onLayoutChange(View view, int left, int top, int right, int bottom, int oldLeft,
+        int oldTop, int oldRight, int oldBottom) {
+      int width = right - left;
+      int height = bottom - top;
+      if (contentSizeListener != null
+          && (width != oldRight - oldLeft || height != oldBottom - oldTop)) {
+        contentSizeListener.onContentSizeChanged(width, height);
+      }
+    }
 
     // TextRenderer.Output implementation
 
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import com.google.android.exoplayer2.DefaultRenderersFactory;
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.audio.AudioProcessor;
+import com.google.android.exoplayer2.drm.DrmSessionManager;
+import com.google.android.exoplayer2.drm.FrameworkMediaCrypto;
+import com.google.android.exoplayer2.metadata.MetadataRenderer;
+import com.google.android.exoplayer2.text.TextRenderer;
+import com.google.android.exoplayer2.video.VideoRendererEventListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A {@link DefaultRenderersFactory} that only builds the renderers asked for. The audio renderer
+ * is always built; video, text and metadata renderers are optional.
+ * <p>
+ * An {@link #audioOnly(Context) audio-only} factory skips the video renderer (and its decoder
+ * lookups, surface handling and buffers) entirely, which makes constructing and holding an
+ * {@link ExoMediaPlayer} for podcast-like flows noticeably cheaper.
+ */
+public class ExoRenderersFactory extends DefaultRenderersFactory {
+
+  public static final int RENDERER_VIDEO = 1;
+  public static final int RENDERER_TEXT = 1 << 1;
+  public static final int RENDERER_METADATA = 1 << 2;
+  public static final int RENDERER_ALL = RENDERER_VIDEO | RENDERER_TEXT | RENDERER_METADATA;
+
+  private final Context context;
+  private final int rendererFlags;
+  private AudioProcessor[] audioProcessors = new AudioProcessor[0];
+
+  /**
+   * @return A factory building audio and all other renderers, like {@link
+   * DefaultRenderersFactory}.
+   */
+  public static ExoRenderersFactory all(Context context) {
+    return new ExoRenderersFactory(context, RENDERER_ALL);
+  }
+
+  /**
+   * @return A factory building the audio renderer only.
+   */
+  public static ExoRenderersFactory audioOnly(Context context) {
+    return new ExoRenderersFactory(context, 0);
+  }
+
+  /**
+   * @param rendererFlags The optional renderers to build, a combination of {@link
+   * #RENDERER_VIDEO}, {@link #RENDERER_TEXT} and {@link #RENDERER_METADATA}.
+   */
+  public ExoRenderersFactory(Context context, int rendererFlags) {
+    super(context);
+    this.context = context;
+    this.rendererFlags = rendererFlags;
+  }
+
+  public boolean hasVideoRenderer() {
+    return (rendererFlags & RENDERER_VIDEO) != 0;
+  }
+
+  /**
+   * Adds a processor the audio renderer runs decoded PCM through, after the ones added before.
+   * Only effective before the renderers are built.
+   */
+  public void addAudioProcessor(AudioProcessor audioProcessor) {
+    audioProcessors = Arrays.copyOf(audioProcessors, audioProcessors.length + 1);
+    audioProcessors[audioProcessors.length - 1] = audioProcessor;
+  }
+
+  /**
+   * Leaves this factory, which may be shared between players, untouched. Subclasses overriding
+   * the build methods should override this too.
+   *
+   * @return A copy of this factory with the processor added after the ones it already has.
+   */
+  public ExoRenderersFactory withAudioProcessor(AudioProcessor audioProcessor) {
+    ExoRenderersFactory copy = new ExoRenderersFactory(context, rendererFlags);
+    copy.audioProcessors = audioProcessors;
+    copy.addAudioProcessor(audioProcessor);
+    return copy;
+  }
+
+  @Override
+  protected AudioProcessor[] buildAudioProcessors() {
+    return audioProcessors;
+  }
+
+  @Override
+  protected void buildVideoRenderers(Context context,
+      DrmSessionManager<FrameworkMediaCrypto> drmSessionManager, long allowedVideoJoiningTimeMs,
+      Handler eventHandler, VideoRendererEventListener eventListener,
+      int extensionRendererMode, ArrayList<Renderer> out) {
+    if ((rendererFlags & RENDERER_VIDEO) != 0) {
+      super.buildVideoRenderers(context, drmSessionManager, allowedVideoJoiningTimeMs,
+          eventHandler, eventListener, extensionRendererMode, out);
+    }
+  }
+
+  @Override
+  protected void buildTextRenderers(Context context, TextRenderer.Output output,
+      Looper outputLooper, int extensionRendererMode, ArrayList<Renderer> out) {
+    if ((rendererFlags & RENDERER_TEXT) != 0) {
+      super.buildTextRenderers(context, output, outputLooper, extensionRendererMode, out);
+    }
+  }
+
+  @Override
+  protected void buildMetadataRenderers(Context context, MetadataRenderer.Output output,
+      Looper outputLooper, int extensionRendererMode, ArrayList<Renderer> out) {
+    if ((rendererFlags & RENDERER_METADATA) != 0) {
+      super.buildMetadataRenderers(context, output, outputLooper, extensionRendererMode, out);
+    }
+  }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.SparseArray;
+import com.google.android.exoplayer2.C;
+import com.jcodeing.kmedia.utils.L;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Coordinates autoplay for list/feed UIs with a small, fixed set of {@link ExoMediaPlayer}s.
+ * <p>
+ * The most visible item gets active playback and a video surface. The next and previous
+ * {@code preloadCount} items are prepared without a surface, so they do not hold a video decoder,
+ * and {@link ExoMediaPlayer#setPreloading preloading}: they only buffer up to playback start, at
+ * background priority, so they don't compete with the active item. Players are reused across
+ * items instead of being built and released while scrolling, and the number of players holding a
+ * video decoder is capped across all managers by {@link #setMaxVideoDecoders(int)}.
+ */
+public class FeedAutoplayManager {
+
+  private static final String TAG = L.makeTag("FeedAutoplay");
+
+  public static final int DEFAULT_MAX_VIDEO_DECODERS = 1;
+  public static final int DEFAULT_PRELOAD_COUNT = 1;
+  public static final float DEFAULT_MIN_VISIBLE_FRACTION = 0.6f;
+
+  /**
+   * Supplies feed items to the manager.
+   */
+  public interface Adapter {
+
+    /**
+     * @return The media uri of the item at {@code position}, or null if it has no media.
+     */
+    Uri getUri(int position);
+
+    /**
+     * @return The {@link ExoPlayerView} currently bound to {@code position}, or null if the item
+     * is not bound to a view.
+     */
+    ExoPlayerView getPlayerView(int position);
+
+    /**
+     * @return The number of items in the feed.
+     */
+    int getItemCount();
+  }
+
+  // ============================@Decoder Budget@============================
+  private static int maxVideoDecoders = DEFAULT_MAX_VIDEO_DECODERS;
+  private static final LinkedList<Slot> decoderHolders = new LinkedList<>();
+
+  /**
+   * Sets the maximum number of players that may hold a video decoder (i.e. have a surface
+   * attached) at the same time, across all managers. Only the players of managers are counted: an
+   * {@link ExoMediaPlayer} used elsewhere in the process still holds its decoder on top of it.
+   */
+  public static void setMaxVideoDecoders(int maxVideoDecoders) {
+    FeedAutoplayManager.maxVideoDecoders = Math.max(1, maxVideoDecoders);
+    trimDecoderHolders(FeedAutoplayManager.maxVideoDecoders);
+  }
+
+  public static int getMaxVideoDecoders() {
+    return maxVideoDecoders;
+  }
+
+  private static void acquireDecoder(Slot slot) {
+    decoderHolders.remove(slot);
+    trimDecoderHolders(maxVideoDecoders - 1);
+    decoderHolders.addLast(slot);
+  }
+
+  private static void releaseDecoder(Slot slot) {
+    decoderHolders.remove(slot);
+  }
+
+  private static void trimDecoderHolders(int max) {
+    while (decoderHolders.size() > max) {
+      // Least recently activated first.
+      Slot evicted = decoderHolders.getFirst();
+      evicted.detachView();
+      evicted.player.pause();
+    }
+  }
+
+  // ============================@Manager@============================
+  private final Context context;
+  private final Adapter adapter;
+  private final int preloadCount;
+  private final List<Slot> slots;
+  private final SparseArray<Float> visibleFractions;
+
+  private float minVisibleFraction = DEFAULT_MIN_VISIBLE_FRACTION;
+  private int activePosition = C.INDEX_UNSET;
+  private boolean autoplay = true;
+
+  public FeedAutoplayManager(Context context, Adapter adapter) {
+    this(context, adapter, DEFAULT_PRELOAD_COUNT);
+  }
+
+  /**
+   * @param preloadCount The number of items to prepare ahead of and behind the active item.
+   */
+  public FeedAutoplayManager(Context context, Adapter adapter, int preloadCount) {
+    this.context = context.getApplicationContext();
+    this.adapter = adapter;
+    this.preloadCount = Math.max(0, preloadCount);
+    slots = new ArrayList<>();
+    for (int i = 0; i < 1 + 2 * this.preloadCount; i++) {
+      slots.add(new Slot(new ExoMediaPlayer(this.context)));
+    }
+    visibleFractions = new SparseArray<>();
+    MemoryPressureCoordinator.getInstance().install(this.context);
+    MemoryPressureCoordinator.getInstance()
+        .addParticipant(memoryPressure, MemoryPressureCoordinator.ORDER_PLAYERS);
+  }
+
+  /**
+   * Under critical pressure, frees the preloaded neighbours; they are bound again at the next
+   * active item change.
+   */
+  private final MemoryPressureCoordinator.Participant memoryPressure =
+      new MemoryPressureCoordinator.Participant() {
+        @Override
+        public void onMemoryPressure(int level) {
+          if (level != MemoryPressureCoordinator.LEVEL_CRITICAL) {
+            return;
+          }
+          for (Slot slot : slots) {
+            if (slot.position != activePosition) {
+              slot.unbind();
+            }
+          }
+        }
+      };
+
+  /**
+   * Sets the minimum visible fraction [0,1] an item needs to become the active item.
+   */
+  public void setMinVisibleFraction(float minVisibleFraction) {
+    this.minVisibleFraction = minVisibleFraction;
+  }
+
+  /**
+   * Sets whether the active item starts playing automatically. Default is true.
+   */
+  public void setAutoplay(boolean autoplay) {
+    this.autoplay = autoplay;
+    Slot active = findSlot(activePosition);
+    if (active != null) {
+      if (autoplay) {
+        active.player.start();
+      } else {
+        active.player.pause();
+      }
+    }
+  }
+
+  /**
+   * @return The position of the active item, or {@link C#INDEX_UNSET} if there is none.
+   */
+  public int getActivePosition() {
+    return activePosition;
+  }
+
+  /**
+   * @return The player bound to {@code position}, or null if the item has no player.
+   */
+  public ExoMediaPlayer getPlayer(int position) {
+    Slot slot = findSlot(position);
+    return slot != null ? slot.player : null;
+  }
+
+  /**
+   * Reports the visible fraction [0,1] of the item at {@code position}. Call from the list's
+   * scroll callback for every item whose visibility changed; 0 for items scrolled off screen.
+   */
+  public void onVisibilityChanged(int position, float visibleFraction) {
+    if (visibleFraction <= 0) {
+      visibleFractions.remove(position);
+    } else {
+      visibleFractions.put(position, visibleFraction);
+    }
+    int mostVisible = C.INDEX_UNSET;
+    float mostVisibleFraction = minVisibleFraction;
+    for (int i = 0; i < visibleFractions.size(); i++) {
+      float fraction = visibleFractions.valueAt(i);
+      if (fraction >= mostVisibleFraction && (mostVisible == C.INDEX_UNSET
+          || fraction > mostVisibleFraction)) {
+        mostVisible = visibleFractions.keyAt(i);
+        mostVisibleFraction = fraction;
+      }
+    }
+    setActivePosition(mostVisible);
+  }
+
+  /**
+   * Re-binds the player of {@code position} after its view was (re)bound by the adapter.
+   */
+  public void onViewBound(int position) {
+    if (position == activePosition) {
+      Slot slot = findSlot(position);
+      if (slot != null) {
+        slot.attachView(adapter.getPlayerView(position));
+      }
+    }
+  }
+
+  /**
+   * Detaches the player of {@code position} from its view before the view gets recycled.
+   */
+  public void onViewRecycled(int position) {
+    Slot slot = findSlot(position);
+    if (slot != null) {
+      slot.detachView();
+    }
+  }
+
+  /**
+   * Makes {@code position} the active item, or pauses everything for {@link C#INDEX_UNSET}.
+   */
+  public void setActivePosition(int position) {
+    if (activePosition == position) {
+      return;
+    }
+    L.dd(TAG, "setActivePosition(" + position + ")");
+    activePosition = position;
+    if (position == C.INDEX_UNSET) {
+      for (Slot slot : slots) {
+        slot.detachView();
+        slot.player.pause();
+      }
+      return;
+    }
+    // Positions wanted: active first, then nearest neighbours.
+    List<Integer> wanted = new ArrayList<>();
+    wanted.add(position);
+    for (int distance = 1; distance <= preloadCount; distance++) {
+      if (position + distance < adapter.getItemCount()) {
+        wanted.add(position + distance);
+      }
+      if (position - distance >= 0) {
+        wanted.add(position - distance);
+      }
+    }
+    // Free slots no longer wanted.
+    List<Slot> free = new ArrayList<>();
+    for (Slot slot : slots) {
+      if (slot.position == C.INDEX_UNSET || !wanted.contains(slot.position)) {
+        slot.unbind();
+        free.add(slot);
+      }
+    }
+    // Bind wanted positions to free slots, preparing them without rendering.
+    for (int wantedPosition : wanted) {
+      if (findSlot(wantedPosition) == null && !free.isEmpty()) {
+        free.remove(0).bind(wantedPosition, adapter.getUri(wantedPosition));
+      }
+    }
+    // Only the active slot renders and plays.
+    for (Slot slot : slots) {
+      if (slot.position == position) {
+        slot.player.setPreloading(false);
+        slot.attachView(adapter.getPlayerView(position));
+        if (autoplay) {
+          slot.player.start();
+        }
+      } else {
+        slot.detachView();
+        slot.player.setPreloading(true);
+        slot.player.pause();
+      }
+    }
+  }
+
+  /**
+   * Releases all players. The manager cannot be used afterwards. Codec teardown runs in the
+   * background, see {@link ExoMediaPlayer#releaseAsync}.
+   */
+  public void release() {
+    MemoryPressureCoordinator.getInstance().removeParticipant(memoryPressure);
+    for (Slot slot : slots) {
+      slot.detachView();
+      slot.player.releaseAsync(null, ExoMediaPlayer.DEFAULT_RELEASE_TIMEOUT_MS);
+    }
+    slots.clear();
+    visibleFractions.clear();
+    activePosition = C.INDEX_UNSET;
+  }
+
+  private Slot findSlot(int position) {
+    if (position == C.INDEX_UNSET) {
+      return null;
+    }
+    for (Slot slot : slots) {
+      if (slot.position == position) {
+        return slot;
+      }
+    }
+    return null;
+  }
+
+  // ============================@Slot@============================
+  private final class Slot {
+
+    private final ExoMediaPlayer player;
+    private int position = C.INDEX_UNSET;
+    private ExoPlayerView view;
+
+    private Slot(ExoMediaPlayer player) {
+      this.player = player;
+    }
+
+    private void bind(int position, Uri uri) {
+      this.position = position;
+      if (uri == null) {
+        return;
+      }
+      try {
+        player.setPreloading(true);
+        player.setDataSource(context, uri, null);
+        player.prepareAsync();
+      } catch (IOException e) {
+        L.e(TAG, "bind(" + position + ") " + uri, e);
+      }
+    }
+
+    private void unbind() {
+      detachView();
+      if (position != C.INDEX_UNSET) {
+        player.reset();
+        position = C.INDEX_UNSET;
+      }
+    }
+
+    private void attachView(ExoPlayerView view) {
+      if (this.view == view) {
+        if (view != null) {
+          acquireDecoder(this);
+        }
+        return;
+      }
+      detachView();
+      if (view != null) {
+        acquireDecoder(this);
+        this.view = view;
+        view.setPlayer(player.internalPlayer());
+      }
+    }
+
+    private void detachView() {
+      releaseDecoder(this);
+      if (view != null) {
+        if (view.getSimpleExoPlayer() == player.internalPlayer()) {
+          view.setPlayer(null);
+        }
+        view = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DataSource} for small files read by several consumers, e.g. a sideloaded subtitle
+ * that is both indexed and rendered. The sources of one {@link Factory} share a single fetch:
+ * the first open reads the whole file from upstream into memory, later opens (waiting for a
+ * fetch in progress) are served from it. A failed fetch is not kept, the next open tries again.
+ */
+public final class FetchOnceDataSource implements DataSource {
+
+  /**
+   * Factory for {@link FetchOnceDataSource} instances sharing their fetched files.
+   */
+  public static final class Factory implements DataSource.Factory {
+
+    private final DataSource.Factory upstreamFactory;
+    /**
+     * The last file fetched, and its uri. Guarded by the factory.
+     */
+    private Uri uri;
+    private ByteBuffer data;
+
+    public Factory(DataSource.Factory upstreamFactory) {
+      this.upstreamFactory = upstreamFactory;
+    }
+
+    @Override
+    public FetchOnceDataSource createDataSource() {
+      return new FetchOnceDataSource(this);
+    }
+
+    private synchronized ByteBuffer fetch(Uri uri) throws IOException {
+      if (data == null || !uri.equals(this.uri)) {
+        data = ByteBuffer.wrap(readFully(upstreamFactory.createDataSource(), uri));
+        this.uri = uri;
+      }
+      return data;
+    }
+
+    private static byte[] readFully(DataSource dataSource, Uri uri) throws IOException {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      try {
+        dataSource.open(new DataSpec(uri));
+        byte[] buffer = new byte[16 * 1024];
+        int read;
+        while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+          output.write(buffer, 0, read);
+        }
+      } finally {
+        dataSource.close();
+      }
+      return output.toByteArray();
+    }
+  }
+
+  private final Factory factory;
+  private ByteBufferDataSource dataSource;
+
+  private FetchOnceDataSource(Factory factory) {
+    this.factory = factory;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    dataSource = new ByteBufferDataSource(factory.fetch(dataSpec.uri));
+    return dataSource.open(dataSpec);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) {
+    return dataSource.read(buffer, offset, readLength);
+  }
+
+  @Override
+  public Uri getUri() {
+    return dataSource == null ? null : dataSource.getUri();
+  }
+
+  @Override
+  public void close() {
+    if (dataSource != null) {
+      dataSource.close();
+      dataSource = null;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A {@link Tracer} measuring the sections in memory, per name: count, total and maximum duration.
+ * For tests and benchmarks, e.g. to check how much main-thread time a change costs.
+ * <p>
+ * Thread-safe; each thread keeps its own stack of open sections. An end without a matching begin
+ * is ignored.
+ */
+public final class InMemoryTracer implements Tracer {
+
+  /**
+   * The durations recorded for one section name.
+   */
+  public static final class Stats {
+
+    private int count;
+    private long totalNs;
+    private long maxNs;
+
+    private Stats() {
+    }
+
+    private Stats(Stats stats) {
+      count = stats.count;
+      totalNs = stats.totalNs;
+      maxNs = stats.maxNs;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    public long getTotalNs() {
+      return totalNs;
+    }
+
+    public long getMaxNs() {
+      return maxNs;
+    }
+
+    public long getAverageNs() {
+      return count == 0 ? 0 : totalNs / count;
+    }
+
+    @Override
+    public String toString() {
+      return "x" + count + ", avg=" + getAverageNs() / 1000 + "us, max=" + maxNs / 1000
+          + "us, total=" + totalNs / 1000 + "us";
+    }
+  }
+
+  private static final class SectionStack {
+
+    private String[] names = new String[8];
+    private long[] startNs = new long[8];
+    private int size;
+  }
+
+  private final ThreadLocal<SectionStack> stacks = new ThreadLocal<SectionStack>() {
+    @Override
+    protected SectionStack initialValue() {
+      return new SectionStack();
+    }
+  };
+
+  // Guarded by itself.
+  private final Map<String, Stats> stats = new HashMap<>();
+
+  @Override
+  public void beginSection(String name) {
+    SectionStack stack = stacks.get();
+    if (stack.size == stack.names.length) {
+      stack.names = Arrays.copyOf(stack.names, stack.size * 2);
+      stack.startNs = Arrays.copyOf(stack.startNs, stack.size * 2);
+    }
+    stack.names[stack.size] = name;
+    stack.startNs[stack.size] = System.nanoTime();
+    stack.size++;
+  }
+
+  @Override
+  public void endSection() {
+    long endNs = System.nanoTime();
+    SectionStack stack = stacks.get();
+    if (stack.size == 0) {
+      return;
+    }
+    stack.size--;
+    String name = stack.names[stack.size];
+    stack.names[stack.size] = null;
+    long durationNs = endNs - stack.startNs[stack.size];
+    synchronized (stats) {
+      Stats nameStats = stats.get(name);
+      if (nameStats == null) {
+        nameStats = new Stats();
+        stats.put(name, nameStats);
+      }
+      nameStats.count++;
+      nameStats.totalNs += durationNs;
+      nameStats.maxNs = Math.max(nameStats.maxNs, durationNs);
+    }
+  }
+
+  /**
+   * @return A copy of the stats of the sections named {@code name}, or null if none ended yet.
+   */
+  public Stats getStats(String name) {
+    synchronized (stats) {
+      Stats nameStats = stats.get(name);
+      return nameStats != null ? new Stats(nameStats) : null;
+    }
+  }
+
+  /**
+   * @return A copy of the stats of all sections, sorted by name.
+   */
+  public Map<String, Stats> getAllStats() {
+    Map<String, Stats> copy = new TreeMap<>();
+    synchronized (stats) {
+      for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+        copy.put(entry.getKey(), new Stats(entry.getValue()));
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * Clears the stats. Sections open meanwhile are still measured when they end.
+   */
+  public void reset() {
+    synchronized (stats) {
+      stats.clear();
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("InMemoryTracer [");
+    for (Map.Entry<String, Stats> entry : getAllStats().entrySet()) {
+      builder.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+    }
+    return builder.append("]").toString();
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.os.Handler;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.PlaybackParameters;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.Timeline;
+import com.jcodeing.kmedia.utils.L;
+
+/**
+ * Keeps live playback at a target offset behind the live edge by nudging the playback speed,
+ * rather than seeking, so drift after a rebuffer is recovered without a visible jump.
+ * <p>
+ * The live latency is measured within the timeline window, as the distance from the playback
+ * position to the end of the window. It is not compared to the device clock, which may be off
+ * from the server's. The speed correction is proportional to the error, capped at {@link
+ * #MAX_SPEED_ADJUSTMENT}, and not applied within {@link #TOLERANCE_MS}. Must be used on the
+ * player's looper.
+ */
+public final class LiveLatencyController implements Runnable {
+
+  private static final String TAG = L.makeTag("LiveLatency");
+
+  public static final long DEFAULT_TARGET_OFFSET_MS = 3000;
+  /**
+   * The maximum relative speed change, so catching up stays unnoticeable for speech.
+   */
+  public static final float MAX_SPEED_ADJUSTMENT = 0.05f;
+  public static final long TOLERANCE_MS = 300;
+  /**
+   * Speed change per second of latency error.
+   */
+  private static final float SPEED_GAIN_PER_SECOND = 0.02f;
+  private static final long UPDATE_INTERVAL_MS = 1000;
+
+  private final SimpleExoPlayer player;
+  private final Handler handler;
+  private final Timeline.Window window = new Timeline.Window();
+
+  private long targetOffsetMs = DEFAULT_TARGET_OFFSET_MS;
+  private boolean started;
+  private float speed;
+  /**
+   * The speed set by the user, restored by {@link #stop()}.
+   */
+  private float userSpeed;
+  private volatile long liveLatencyMs = C.TIME_UNSET;
+
+  /**
+   * @param player The player to control.
+   * @param handler A handler on the player's looper.
+   */
+  public LiveLatencyController(SimpleExoPlayer player, Handler handler) {
+    this.player = player;
+    this.handler = handler;
+    speed = userSpeed = player.getPlaybackParameters().speed;
+  }
+
+  public void setTargetOffsetMs(long targetOffsetMs) {
+    this.targetOffsetMs = targetOffsetMs;
+  }
+
+  public long getTargetOffsetMs() {
+    return targetOffsetMs;
+  }
+
+  /**
+   * Records a speed the user set on the player, to be restored by {@link #stop()}. While
+   * started, the controller overrides it.
+   */
+  public void setUserSpeed(float userSpeed) {
+    this.userSpeed = userSpeed;
+    speed = userSpeed;
+  }
+
+  /**
+   * @return The last measured live latency, or {@link C#TIME_UNSET} if not playing live. Can be
+   * called from any thread.
+   */
+  public long getLiveLatencyMs() {
+    return liveLatencyMs;
+  }
+
+  public void start() {
+    if (!started) {
+      started = true;
+      handler.post(this);
+    }
+  }
+
+  /**
+   * Stops controlling and restores the speed set by the user.
+   */
+  public void stop() {
+    started = false;
+    handler.removeCallbacks(this);
+    liveLatencyMs = C.TIME_UNSET;
+    setSpeed(userSpeed);
+  }
+
+  @Override
+  public void run() {
+    if (!started) {
+      return;
+    }
+    liveLatencyMs = measureLiveLatencyMs();
+    if (liveLatencyMs == C.TIME_UNSET || !player.getPlayWhenReady()
+        || player.getPlaybackState() != ExoPlayer.STATE_READY) {
+      setSpeed(1f);
+    } else {
+      long errorMs = liveLatencyMs - targetOffsetMs;
+      if (Math.abs(errorMs) <= TOLERANCE_MS) {
+        setSpeed(1f);
+      } else {
+        float adjustment = errorMs / 1000f * SPEED_GAIN_PER_SECOND;
+        adjustment = Math.max(-MAX_SPEED_ADJUSTMENT, Math.min(adjustment, MAX_SPEED_ADJUSTMENT));
+        setSpeed(1f + adjustment);
+      }
+    }
+    handler.postDelayed(this, UPDATE_INTERVAL_MS);
+  }
+
+  private long measureLiveLatencyMs() {
+    Timeline timeline = player.getCurrentTimeline();
+    if (timeline.isEmpty()) {
+      return C.TIME_UNSET;
+    }
+    timeline.getWindow(player.getCurrentWindowIndex(), window);
+    if (!window.isDynamic) {
+      return C.TIME_UNSET;
+    }
+    long durationMs = window.getDurationMs();
+    return durationMs == C.TIME_UNSET ? C.TIME_UNSET
+        : Math.max(durationMs - player.getCurrentPosition(), 0);
+  }
+
+  private void setSpeed(float speed) {
+    // Avoid resetting the audio pipeline for negligible changes.
+    if (Math.abs(this.speed - speed) < 0.005f) {
+      return;
+    }
+    this.speed = speed;
+    player.setPlaybackParameters(new PlaybackParameters(speed, 1f));
+    L.d(TAG, "latency " + liveLatencyMs + "ms, target " + targetOffsetMs + "ms, speed " + speed);
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import com.google.android.exoplayer2.upstream.HttpDataSource.InvalidResponseCodeException;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * When and how long to wait before retrying a failed load: exponential backoff with jitter.
+ * Immutable.
+ */
+public final class LoadRetryPolicy {
+
+  /**
+   * 4 attempts, 250ms to 4s apart. Loaders reading through it should not retry on top of it.
+   */
+  public static final LoadRetryPolicy DEFAULT = new LoadRetryPolicy(4, 250, 4000, 2f, 0.5f);
+  /**
+   * Fails on the first error, like loads without a policy.
+   */
+  public static final LoadRetryPolicy NONE = new LoadRetryPolicy(1, 0, 0, 1f, 0f);
+
+  private static final Random random = new Random();
+
+  public final int maxAttempts;
+  public final long initialBackoffMs;
+  public final long maxBackoffMs;
+  public final float multiplier;
+  public final float jitter;
+
+  /**
+   * @param maxAttempts The number of attempts per load, including the first one.
+   * @param initialBackoffMs The wait before the first retry.
+   * @param maxBackoffMs The maximum wait between two attempts.
+   * @param multiplier The factor the wait grows by per attempt.
+   * @param jitter The fraction, in [0,1], of the wait that is randomized, so clients hitting the
+   * same failure don't retry in lockstep.
+   */
+  public LoadRetryPolicy(int maxAttempts, long initialBackoffMs, long maxBackoffMs,
+      float multiplier, float jitter) {
+    this.maxAttempts = Math.max(maxAttempts, 1);
+    this.initialBackoffMs = initialBackoffMs;
+    this.maxBackoffMs = maxBackoffMs;
+    this.multiplier = multiplier;
+    this.jitter = Math.max(0f, Math.min(jitter, 1f));
+  }
+
+  /**
+   * @param attempt The number of attempts made so far, from 1.
+   * @param untriedMirror Whether a mirror not tried yet is left for the next attempt.
+   * @return Whether to retry after {@code error}, of a remote load.
+   */
+  public boolean shouldRetry(IOException error, int attempt, boolean untriedMirror) {
+    if (attempt >= maxAttempts) {
+      return false;
+    }
+    if (error instanceof InvalidResponseCodeException) {
+      int responseCode = ((InvalidResponseCodeException) error).responseCode;
+      // Client errors won't go away, except for timeouts, throttling and a 404 from a mirror
+      // not in sync yet, when another one may have it.
+      return responseCode >= 500 || responseCode == 408 || responseCode == 429
+          || (responseCode == 404 && untriedMirror);
+    }
+    return true;
+  }
+
+  /**
+   * @param attempt The number of attempts made so far, from 1.
+   * @return The time to wait before the next attempt.
+   */
+  public long getBackoffMs(int attempt) {
+    double backoffMs = initialBackoffMs * Math.pow(multiplier, attempt - 1);
+    backoffMs = Math.min(backoffMs, maxBackoffMs);
+    double jitterMs;
+    synchronized (random) {
+      jitterMs = backoffMs * jitter * random.nextDouble();
+    }
+    return (long) (backoffMs - jitterMs);
+  }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.util.Util;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A {@link DataSource} for local files that serves reads and seeks from a memory mapping instead
+ * of {@code RandomAccessFile} reads, so many small reads cost no system calls.
+ * <p>
+ * Files are mapped in windows of at most {@code windowSize} bytes, so large files don't exhaust
+ * the address space. Mappings are shared by all sources of a process and outlive {@link
+ * #close()}: ExtractorMediaPeriod closes and reopens its source on every seek, which then reuses
+ * the windows already mapped. A few windows are kept per file, and a few files no source reads
+ * any more. Below Android 9, the ones dropped are unmapped once no source uses them; from
+ * Android 9 on, where the platform restricts the hidden API that does it, they are released
+ * when garbage collected.
+ * <p>
+ * Reading a mapped file that gets truncated raises SIGBUS, so only use this for files that
+ * don't change while played.
+ */
+public final class MappedFileDataSource implements DataSource {
+
+  /**
+   * Thrown when IOException is encountered during local file read operation.
+   */
+  public static class MappedFileDataSourceException extends IOException {
+
+    public MappedFileDataSourceException(IOException cause) {
+      super(cause);
+    }
+  }
+
+  /**
+   * Factory for {@link MappedFileDataSource} instances.
+   */
+  public static final class Factory implements DataSource.Factory {
+
+    private final long windowSize;
+    private final TransferListener<? super MappedFileDataSource> listener;
+
+    public Factory() {
+      this(DEFAULT_WINDOW_SIZE, null);
+    }
+
+    /**
+     * @param windowSize The maximum size of a mapping.
+     * @param listener An optional listener.
+     */
+    public Factory(long windowSize, TransferListener<? super MappedFileDataSource> listener) {
+      this.windowSize = windowSize;
+      this.listener = listener;
+    }
+
+    @Override
+    public MappedFileDataSource createDataSource() {
+      return new MappedFileDataSource(windowSize, listener);
+    }
+  }
+
+  public static final long DEFAULT_WINDOW_SIZE = 4 * 1024 * 1024;
+  /**
+   * Window starts are aligned so that nearby seeks reuse the current window.
+   */
+  private static final long WINDOW_ALIGNMENT = 64 * 1024;
+
+  private final long windowSize;
+  private final TransferListener<? super MappedFileDataSource> listener;
+
+  private MappedFile mappedFile;
+  private Uri uri;
+  private long position;
+  private long bytesRemaining;
+  /**
+   * A view of a window of {@link #mappedFile}, with a position of its own.
+   */
+  private ByteBuffer window;
+  private long windowStart;
+  private boolean opened;
+
+  public MappedFileDataSource() {
+    this(DEFAULT_WINDOW_SIZE, null);
+  }
+
+  /**
+   * @param windowSize The maximum size of a mapping.
+   * @param listener An optional listener.
+   */
+  public MappedFileDataSource(long windowSize,
+      TransferListener<? super MappedFileDataSource> listener) {
+    this.windowSize = Math.max(windowSize, WINDOW_ALIGNMENT);
+    this.listener = listener;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws MappedFileDataSourceException {
+    try {
+      uri = dataSpec.uri;
+      mappedFile = acquire(dataSpec.uri.getPath());
+      long fileLength = mappedFile.length;
+      position = dataSpec.position;
+      if (position > fileLength) {
+        throw new EOFException();
+      }
+      bytesRemaining = dataSpec.length == C.LENGTH_UNSET ? fileLength - position
+          : dataSpec.length;
+      if (bytesRemaining < 0 || position + bytesRemaining > fileLength) {
+        throw new EOFException();
+      }
+    } catch (IOException e) {
+      throw new MappedFileDataSourceException(e);
+    }
+    opened = true;
+    if (listener != null) {
+      listener.onTransferStart(this, dataSpec);
+    }
+    return bytesRemaining;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength)
+      throws MappedFileDataSourceException {
+    if (readLength == 0) {
+      return 0;
+    } else if (bytesRemaining == 0) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    try {
+      moveWindow();
+    } catch (IOException e) {
+      throw new MappedFileDataSourceException(e);
+    }
+    int windowOffset = (int) (position - windowStart);
+    int bytesRead = (int) Math.min(Math.min(window.limit() - windowOffset, bytesRemaining),
+        readLength);
+    window.position(windowOffset);
+    window.get(buffer, offset, bytesRead);
+    position += bytesRead;
+    bytesRemaining -= bytesRead;
+    if (listener != null) {
+      listener.onBytesTransferred(this, bytesRead);
+    }
+    return bytesRead;
+  }
+
+  @Override
+  public Uri getUri() {
+    return uri;
+  }
+
+  @Override
+  public void close() throws MappedFileDataSourceException {
+    uri = null;
+    window = null;
+    try {
+      if (mappedFile != null) {
+        release(mappedFile);
+      }
+    } catch (IOException e) {
+      throw new MappedFileDataSourceException(e);
+    } finally {
+      mappedFile = null;
+      if (opened) {
+        opened = false;
+        if (listener != null) {
+          listener.onTransferEnd(this);
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves to the window containing {@link #position}, if not there already.
+   */
+  private void moveWindow() throws IOException {
+    if (window != null && position >= windowStart && position < windowStart + window.limit()) {
+      return;
+    }
+    window = null;
+    windowStart = position - position % WINDOW_ALIGNMENT;
+    window = mappedFile.window(windowStart, windowSize);
+  }
+
+  // ============================@Mappings@============================
+  /**
+   * How many files no source reads any more stay mapped, for the next open.
+   */
+  private static final int MAX_IDLE_FILES = 2;
+  private static final int MAX_WINDOWS_PER_FILE = 4;
+
+  /**
+   * By path, least recently opened first. Guarded by the class.
+   */
+  private static final LinkedHashMap<String, MappedFile> mappedFiles =
+      new LinkedHashMap<>(8, 0.75f, true);
+
+  private static synchronized MappedFile acquire(String path) throws IOException {
+    MappedFile mappedFile = mappedFiles.get(path);
+    if (mappedFile != null && !mappedFile.isCurrent()) {
+      // Changed since mapped; its readers keep the old mapping until they close.
+      mappedFiles.remove(path);
+      if (mappedFile.refs == 0) {
+        mappedFile.close();
+      }
+      mappedFile = null;
+    }
+    if (mappedFile == null) {
+      mappedFile = new MappedFile(path);
+      mappedFiles.put(path, mappedFile);
+    }
+    mappedFile.refs++;
+    return mappedFile;
+  }
+
+  private static synchronized void release(MappedFile mappedFile) throws IOException {
+    mappedFile.refs--;
+    if (mappedFile.refs == 0 && mappedFiles.get(mappedFile.path) != mappedFile) {
+      mappedFile.close();
+      return;
+    }
+    int idleFiles = 0;
+    for (MappedFile file : mappedFiles.values()) {
+      if (file.refs == 0) {
+        idleFiles++;
+      }
+    }
+    Iterator<MappedFile> iterator = mappedFiles.values().iterator();
+    while (idleFiles > MAX_IDLE_FILES && iterator.hasNext()) {
+      MappedFile file = iterator.next();
+      if (file.refs == 0) {
+        iterator.remove();
+        idleFiles--;
+        file.close();
+      }
+    }
+  }
+
+  /**
+   * A file and its most recently used windows. Guarded by the class.
+   */
+  private static final class MappedFile {
+
+    private final String path;
+    private final long length;
+    private final long lastModified;
+    private final RandomAccessFile file;
+    /**
+     * Most recently used first.
+     */
+    private final ArrayList<MappedByteBuffer> windows = new ArrayList<>();
+    private final ArrayList<Long> windowStarts = new ArrayList<>();
+    private int refs;
+
+    private MappedFile(String path) throws IOException {
+      this.path = path;
+      lastModified = new File(path).lastModified();
+      file = new RandomAccessFile(path, "r");
+      length = file.length();
+    }
+
+    private boolean isCurrent() {
+      File current = new File(path);
+      return current.length() == length && current.lastModified() == lastModified;
+    }
+
+    /**
+     * @return A view of the window starting at {@code start}, mapped if needed.
+     */
+    private ByteBuffer window(long start, long windowSize) throws IOException {
+      synchronized (MappedFileDataSource.class) {
+        int index = windowStarts.indexOf(start);
+        MappedByteBuffer window;
+        if (index != -1) {
+          window = windows.remove(index);
+          windowStarts.remove(index);
+        } else {
+          window = file.getChannel().map(FileChannel.MapMode.READ_ONLY, start,
+              Math.min(windowSize, length - start));
+        }
+        windows.add(0, window);
+        windowStarts.add(0, start);
+        if (windows.size() > MAX_WINDOWS_PER_FILE) {
+          MappedByteBuffer eldest = windows.remove(windows.size() - 1);
+          windowStarts.remove(windowStarts.size() - 1);
+          if (refs <= 1) {
+            // Only the caller reads this file, and it has moved on.
+            unmap(eldest);
+          }
+        }
+        return window.duplicate();
+      }
+    }
+
+    private void close() throws IOException {
+      for (MappedByteBuffer window : windows) {
+        unmap(window);
+      }
+      windows.clear();
+      windowStarts.clear();
+      file.close();
+    }
+  }
+
+  // ============================@Unmap@============================
+  private static final Method freeDirectBuffer = findFreeDirectBuffer();
+
+  private static Method findFreeDirectBuffer() {
+    if (Util.SDK_INT >= 28) {
+      // Hidden platform API, restricted from Android 9 on; don't reflect on it there.
+      return null;
+    }
+    try {
+      return Class.forName("java.nio.NioUtils").getMethod("freeDirectBuffer", ByteBuffer.class);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Unmaps {@code buffer} right away. If the platform doesn't allow it, the mapping is released
+   * when the buffer is garbage collected.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    if (buffer == null || freeDirectBuffer == null) {
+      return;
+    }
+    try {
+      freeDirectBuffer.invoke(null, buffer);
+    } catch (Exception e) {
+      // Left to the garbage collector.
+    }
+  }
+}
@@ -0,0 +1,549 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.source.dash.DashSegmentIndex;
+import com.google.android.exoplayer2.source.dash.manifest.AdaptationSet;
+import com.google.android.exoplayer2.source.dash.manifest.DashManifest;
+import com.google.android.exoplayer2.source.dash.manifest.DashManifestParser;
+import com.google.android.exoplayer2.source.dash.manifest.Period;
+import com.google.android.exoplayer2.source.dash.manifest.RangedUri;
+import com.google.android.exoplayer2.source.dash.manifest.Representation;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMasterPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMasterPlaylist.HlsUrl;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist.Segment;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylistParser;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.google.android.exoplayer2.util.UriUtil;
+import com.google.android.exoplayer2.util.Util;
+import com.jcodeing.kmedia.utils.L;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Warms a {@link Cache} with the start of the items likely to be played next, so that playback
+ * of any of them starts from local data.
+ * <p>
+ * For each URI, in list order, the content type is resolved and:
+ * <ul>
+ * <li>DASH: the manifest is fetched and parsed (static manifests are kept and side-loaded by
+ * {@link ExoMediaPlayer}), then the init segment and the first segments of one representation
+ * per audio/video adaptation set are cached.</li>
+ * <li>HLS: the master and media playlists are fetched, then the init segment and the first
+ * segments of one variant are cached. Playlists are only served from the cache if they are
+ * VOD.</li>
+ * <li>Progressive: the first bytes of the file are cached.</li>
+ * <li>SmoothStreaming: not prefetched.</li>
+ * </ul>
+ * The representation or variant is the one an adaptive selection would start with: the highest
+ * bitrate fitting the bandwidth estimate, else the lowest. Prefetching runs one request at a time
+ * on a low-priority thread, stops at the byte budget, and is cancelled whenever {@link #prefetch}
+ * is called with a new list. Players read through {@link #dataSourceFactory()}.
+ */
+public final class MediaPrefetcher {
+
+  private static final String TAG = L.makeTag("MediaPrefetcher");
+
+  public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+  public static final long DEFAULT_PREFETCH_DURATION_MS = 4000;
+  public static final long DEFAULT_PROGRESSIVE_BYTES = 512 * 1024;
+  private static final float BANDWIDTH_FRACTION = 0.75f;
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private final Cache cache;
+  private final DataSource.Factory upstreamFactory;
+  private final BandwidthMeter bandwidthMeter;
+  private final ExecutorService executor;
+  private final Map<String, DashManifest> dashManifests = new ConcurrentHashMap<>();
+  /**
+   * Manifest URIs which don't change and can be served from the cache.
+   */
+  private final Set<String> staticManifestUris =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final Set<Uri> prefetchedUris =
+      Collections.newSetFromMap(new ConcurrentHashMap<Uri, Boolean>());
+
+  private volatile long maxBytes = DEFAULT_MAX_BYTES;
+  private volatile long prefetchDurationMs = DEFAULT_PREFETCH_DURATION_MS;
+  private volatile long progressiveBytes = DEFAULT_PROGRESSIVE_BYTES;
+
+  private List<Uri> pendingUris = Collections.emptyList();
+  private volatile int generation;
+  private long remainingBytes;
+
+  /**
+   * @param cache The cache to warm, shared with the players.
+   * @param upstreamFactory The source of the data, e.g. a {@code DefaultDataSourceFactory}.
+   * @param bandwidthMeter Used to pick the representation to prefetch, may be null.
+   */
+  public MediaPrefetcher(Cache cache, DataSource.Factory upstreamFactory,
+      BandwidthMeter bandwidthMeter) {
+    this.cache = cache;
+    this.upstreamFactory = upstreamFactory;
+    this.bandwidthMeter = bandwidthMeter;
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "MediaPrefetcher");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Sets the number of bytes a {@link #prefetch} round may download, for all items together.
+   */
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Sets how much media, from the start, is prefetched per adaptive (DASH/HLS) item.
+   */
+  public void setPrefetchDurationMs(long prefetchDurationMs) {
+    this.prefetchDurationMs = prefetchDurationMs;
+  }
+
+  /**
+   * Sets how many bytes, from the start, are prefetched per progressive item.
+   */
+  public void setProgressiveBytes(long progressiveBytes) {
+    this.progressiveBytes = progressiveBytes;
+  }
+
+  /**
+   * Replaces the items to prefetch, most likely first. An ongoing prefetch is cancelled; items
+   * prefetched already are skipped. Manifests kept for items no longer listed are dropped.
+   */
+  public synchronized void prefetch(List<Uri> uris) {
+    remainingBytes = maxBytes;
+    Set<String> listed = new HashSet<>();
+    for (Uri uri : uris) {
+      listed.add(uri.toString());
+    }
+    dashManifests.keySet().retainAll(listed);
+    schedule(uris);
+  }
+
+  /**
+   * Removes {@code uri} from the pending items, cancelling it if in progress, as the player loads
+   * it itself from now on. The rest goes on within the remaining budget.
+   */
+  public synchronized void onPlay(Uri uri) {
+    if (pendingUris.contains(uri)) {
+      List<Uri> uris = new ArrayList<>(pendingUris);
+      uris.remove(uri);
+      schedule(uris);
+    }
+  }
+
+  private void schedule(List<Uri> uris) {
+    pendingUris = new ArrayList<>(uris);
+    final int generation = ++this.generation;
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        runPrefetch(generation);
+      }
+    });
+  }
+
+  /**
+   * Cancels all pending items.
+   */
+  public synchronized void cancel() {
+    pendingUris = Collections.emptyList();
+    generation++;
+  }
+
+  /**
+   * Cancels all pending items and stops the prefetch thread.
+   */
+  public void release() {
+    cancel();
+    executor.shutdown();
+  }
+
+  /**
+   * @return The parsed manifest of a prefetched static DASH item, or null.
+   */
+  public DashManifest getDashManifest(Uri uri) {
+    return dashManifests.get(uri.toString());
+  }
+
+  /**
+   * @return A factory reading through the cache, from the prefetcher's upstream on misses.
+   * @see #dataSourceFactory(DataSource.Factory)
+   */
+  public DataSource.Factory dataSourceFactory() {
+    return dataSourceFactory(upstreamFactory);
+  }
+
+  /**
+   * @param upstreamFactory The source of cache misses, e.g. a player's factory reporting
+   * transfers to its bandwidth meter, so that adaptive selection sees them.
+   * @return A factory reading through the cache. Manifests are fetched from upstream unless they
+   * are known to be static, so live manifests are never stale.
+   */
+  public DataSource.Factory dataSourceFactory(final DataSource.Factory upstreamFactory) {
+    return new DataSource.Factory() {
+      @Override
+      public DataSource createDataSource() {
+        return new RoutingDataSource(upstreamFactory);
+      }
+    };
+  }
+
+  // ============================@Prefetch@============================
+  private void runPrefetch(int generation) {
+    List<Uri> uris;
+    synchronized (this) {
+      uris = pendingUris;
+    }
+    for (Uri uri : uris) {
+      if (isCancelled(generation)) {
+        return;
+      }
+      if (prefetchedUris.contains(uri)) {
+        continue;
+      }
+      try {
+        prefetchItem(uri, generation);
+        if (!isCancelled(generation)) {
+          prefetchedUris.add(uri);
+        }
+      } catch (IOException e) {
+        L.e(TAG, "prefetch " + uri, e);
+      } catch (CancellationException e) {
+        return;
+      }
+    }
+  }
+
+  private boolean isCancelled(int generation) {
+    return generation != this.generation || remainingBytes() <= 0;
+  }
+
+  private synchronized long remainingBytes() {
+    return remainingBytes;
+  }
+
+  private synchronized void consumeBytes(long bytes) {
+    remainingBytes -= bytes;
+  }
+
+  private void prefetchItem(Uri uri, int generation) throws IOException {
+    long startMs = SystemClock.elapsedRealtime();
+    switch (Util.inferContentType(uri)) {
+      case C.TYPE_DASH:
+        prefetchDash(uri, generation);
+        break;
+      case C.TYPE_HLS:
+        prefetchHls(uri, generation);
+        break;
+      case C.TYPE_OTHER:
+        cacheRange(uri, 0, progressiveBytes, null, generation);
+        break;
+      default:
+        L.d(TAG, "prefetch " + uri + " skipped, unsupported type");
+        return;
+    }
+    L.d(TAG, "prefetch " + uri + " in " + (SystemClock.elapsedRealtime() - startMs)
+        + "ms, budget left " + remainingBytes());
+  }
+
+  private void prefetchDash(Uri uri, int generation) throws IOException {
+    byte[] data = load(uri, false, generation);
+    DashManifest manifest = new DashManifestParser().parse(uri, new ByteArrayInputStream(data));
+    if (manifest.dynamic) {
+      // Live: the segments at the live edge will be others by the time it plays.
+      return;
+    }
+    dashManifests.put(uri.toString(), manifest);
+    Period period = manifest.getPeriod(0);
+    long periodDurationUs = manifest.getPeriodDurationUs(0);
+    for (AdaptationSet adaptationSet : period.adaptationSets) {
+      if ((adaptationSet.type != C.TRACK_TYPE_VIDEO && adaptationSet.type != C.TRACK_TYPE_AUDIO)
+          || adaptationSet.representations.isEmpty()) {
+        continue;
+      }
+      List<Format> formats = new ArrayList<>();
+      for (Representation representation : adaptationSet.representations) {
+        formats.add(representation.format);
+      }
+      Representation representation = adaptationSet.representations.get(selectFormat(formats));
+      prefetchRepresentation(representation, periodDurationUs, generation);
+    }
+  }
+
+  private void prefetchRepresentation(Representation representation, long periodDurationUs,
+      int generation) throws IOException {
+    String baseUrl = representation.baseUrl;
+    String cacheKey = representation.getCacheKey();
+    RangedUri initUri = representation.getInitializationUri();
+    if (initUri != null) {
+      cacheRange(initUri.resolveUri(baseUrl), initUri.start, initUri.length, cacheKey,
+          generation);
+    }
+    DashSegmentIndex index = representation.getIndex();
+    long prefetchDurationUs = C.msToUs(prefetchDurationMs);
+    if (index == null) {
+      // Single segment, indexed by a sidx box: cache the index and the first bytes.
+      RangedUri indexUri = representation.getIndexUri();
+      long position = 0;
+      if (indexUri != null) {
+        cacheRange(indexUri.resolveUri(baseUrl), indexUri.start, indexUri.length, cacheKey,
+            generation);
+        position = indexUri.start + indexUri.length;
+      }
+      long length = representation.format.bitrate == Format.NO_VALUE ? progressiveBytes
+          : representation.format.bitrate / 8 * prefetchDurationUs / C.MICROS_PER_SECOND;
+      cacheRange(Uri.parse(baseUrl), position, length, cacheKey, generation);
+      return;
+    }
+    int segmentCount = index.getSegmentCount(periodDurationUs);
+    int firstSegmentNum = index.getFirstSegmentNum();
+    long cachedDurationUs = 0;
+    for (int segmentNum = firstSegmentNum; cachedDurationUs < prefetchDurationUs
+        && (segmentCount == DashSegmentIndex.INDEX_UNBOUNDED
+        || segmentNum < firstSegmentNum + segmentCount); segmentNum++) {
+      RangedUri segmentUri = index.getSegmentUrl(segmentNum);
+      cacheRange(segmentUri.resolveUri(baseUrl), segmentUri.start, segmentUri.length, cacheKey,
+          generation);
+      cachedDurationUs += index.getDurationUs(segmentNum, periodDurationUs);
+    }
+  }
+
+  private void prefetchHls(Uri uri, int generation) throws IOException {
+    HlsPlaylistParser parser = new HlsPlaylistParser();
+    byte[] data = load(uri, true, generation);
+    HlsPlaylist playlist = parser.parse(uri, new ByteArrayInputStream(data));
+    Uri masterUri = null;
+    if (playlist instanceof HlsMasterPlaylist) {
+      HlsMasterPlaylist masterPlaylist = (HlsMasterPlaylist) playlist;
+      if (masterPlaylist.variants.isEmpty()) {
+        return;
+      }
+      List<Format> formats = new ArrayList<>();
+      for (HlsUrl variant : masterPlaylist.variants) {
+        formats.add(variant.format);
+      }
+      HlsUrl variant = masterPlaylist.variants.get(selectFormat(formats));
+      masterUri = uri;
+      uri = UriUtil.resolveToUri(masterPlaylist.baseUri, variant.url);
+      data = load(uri, true, generation);
+      playlist = parser.parse(uri, new ByteArrayInputStream(data));
+    }
+    if (!(playlist instanceof HlsMediaPlaylist)) {
+      return;
+    }
+    HlsMediaPlaylist mediaPlaylist = (HlsMediaPlaylist) playlist;
+    if (!mediaPlaylist.hasEndTag) {
+      // Live: the playlist must not be served from the cache.
+      removeCached(uri);
+      if (masterUri != null) {
+        removeCached(masterUri);
+      }
+      return;
+    }
+    staticManifestUris.add(uri.toString());
+    if (masterUri != null) {
+      staticManifestUris.add(masterUri.toString());
+    }
+    if (mediaPlaylist.initializationSegment != null) {
+      cacheSegment(mediaPlaylist, mediaPlaylist.initializationSegment, generation);
+    }
+    long prefetchDurationUs = C.msToUs(prefetchDurationMs);
+    long cachedDurationUs = 0;
+    for (Segment segment : mediaPlaylist.segments) {
+      if (cachedDurationUs >= prefetchDurationUs) {
+        break;
+      }
+      cacheSegment(mediaPlaylist, segment, generation);
+      cachedDurationUs += segment.durationUs;
+    }
+  }
+
+  private void cacheSegment(HlsMediaPlaylist playlist, Segment segment, int generation)
+      throws IOException {
+    Uri segmentUri = UriUtil.resolveToUri(playlist.baseUri, segment.url);
+    cacheRange(segmentUri, segment.byterangeOffset, segment.byterangeLength, null, generation);
+  }
+
+  /**
+   * @return The index of the format an adaptive selection would start with.
+   */
+  private int selectFormat(List<Format> formats) {
+    long bitrateEstimate = bandwidthMeter == null ? BandwidthMeter.NO_ESTIMATE
+        : bandwidthMeter.getBitrateEstimate();
+    int lowestIndex = 0;
+    int bestIndex = C.INDEX_UNSET;
+    for (int i = 0; i < formats.size(); i++) {
+      int bitrate = formats.get(i).bitrate;
+      if (bitrate < formats.get(lowestIndex).bitrate) {
+        lowestIndex = i;
+      }
+      if (bitrateEstimate != BandwidthMeter.NO_ESTIMATE
+          && bitrate <= bitrateEstimate * BANDWIDTH_FRACTION
+          && (bestIndex == C.INDEX_UNSET || bitrate > formats.get(bestIndex).bitrate)) {
+        bestIndex = i;
+      }
+    }
+    return bestIndex != C.INDEX_UNSET ? bestIndex : lowestIndex;
+  }
+
+  // ============================@IO@============================
+
+  /**
+   * Fetches a whole manifest, through the cache if {@code cached}.
+   */
+  private byte[] load(Uri uri, boolean cached, int generation)
+      throws IOException {
+    DataSource dataSource = cached ? newCacheDataSource() : upstreamFactory.createDataSource();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try {
+      dataSource.open(new DataSpec(uri));
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        output.write(buffer, 0, read);
+        consumeBytes(read);
+        checkCancelled(generation);
+      }
+    } finally {
+      dataSource.close();
+    }
+    return output.toByteArray();
+  }
+
+  /**
+   * Reads a range through the cache, discarding the data, up to the remaining budget.
+   */
+  private void cacheRange(Uri uri, long position, long length, String key, int generation)
+      throws IOException {
+    checkCancelled(generation);
+    long budget = remainingBytes();
+    if (budget <= 0) {
+      return;
+    }
+    if (length == C.LENGTH_UNSET || length > budget) {
+      length = budget;
+    }
+    DataSource dataSource = newCacheDataSource();
+    try {
+      dataSource.open(new DataSpec(uri, position, length, key));
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        consumeBytes(read);
+        checkCancelled(generation);
+      }
+    } finally {
+      dataSource.close();
+    }
+  }
+
+  private void checkCancelled(int generation) {
+    if (generation != this.generation) {
+      throw new CancellationException();
+    }
+  }
+
+  private CacheDataSource newCacheDataSource() {
+    return new CacheDataSource(cache, upstreamFactory.createDataSource(),
+        CacheDataSource.FLAG_BLOCK_ON_CACHE);
+  }
+
+  private void removeCached(Uri uri) {
+    for (CacheSpan span : cache.getCachedSpans(uri.toString())) {
+      try {
+        cache.removeSpan(span);
+      } catch (Cache.CacheException e) {
+        L.e(TAG, "removeCached " + uri, e);
+      }
+    }
+  }
+
+  /**
+   * Reads through the cache, except for manifests not known to be static.
+   */
+  private final class RoutingDataSource implements DataSource {
+
+    private final DataSource.Factory upstreamFactory;
+    private DataSource dataSource;
+
+    private RoutingDataSource(DataSource.Factory upstreamFactory) {
+      this.upstreamFactory = upstreamFactory;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      boolean manifest = Util.inferContentType(dataSpec.uri) != C.TYPE_OTHER;
+      if (manifest && !staticManifestUris.contains(dataSpec.uri.toString())) {
+        dataSource = upstreamFactory.createDataSource();
+      } else {
+        dataSource = new CacheDataSource(cache, upstreamFactory.createDataSource(),
+            CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+      }
+      return dataSource.open(dataSpec);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      return dataSource.read(buffer, offset, readLength);
+    }
+
+    @Override
+    public Uri getUri() {
+      return dataSource == null ? null : dataSource.getUri();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (dataSource != null) {
+        try {
+          dataSource.close();
+        } finally {
+          dataSource = null;
+        }
+      }
+    }
+  }
+}
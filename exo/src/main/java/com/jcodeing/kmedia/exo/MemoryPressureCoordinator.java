@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import com.jcodeing.kmedia.utils.L;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sheds media memory when the system runs low, driven by {@link ComponentCallbacks2#onTrimMemory}
+ * once {@link #install installed}, or explicitly by {@link #setPressure}.
+ * <p>
+ * {@link Participant Participants} are notified in their degradation order, the cheapest to
+ * rebuild first:
+ * <ol>
+ * <li>{@link #ORDER_CACHES}: decoded bitmaps and thumbnails ({@link ArtworkLoader}) are trimmed at
+ * {@link #LEVEL_MODERATE}, evicted at {@link #LEVEL_CRITICAL}.</li>
+ * <li>{@link #ORDER_BUFFERS}: players scale their buffer targets down, the ones not playing
+ * first.</li>
+ * <li>{@link #ORDER_PLAYERS}: at {@link #LEVEL_CRITICAL}, idle and paused players drop their
+ * buffers and codecs, and prepare again when started.</li>
+ * </ol>
+ * The system doesn't report when pressure is over; levels relax back to {@link #LEVEL_NORMAL}
+ * after {@link #RELAX_DELAY_MS} without a new trim, or at an explicit {@code setPressure}.
+ */
+public final class MemoryPressureCoordinator implements ComponentCallbacks2 {
+
+  private static final String TAG = L.makeTag("MemoryPressure");
+
+  public static final int LEVEL_NORMAL = 0;
+  public static final int LEVEL_MODERATE = 1;
+  public static final int LEVEL_CRITICAL = 2;
+
+  public static final int ORDER_CACHES = 100;
+  public static final int ORDER_BUFFERS = 200;
+  public static final int ORDER_PLAYERS = 300;
+
+  public static final long RELAX_DELAY_MS = 60 * 1000;
+
+  /**
+   * Notified on the main thread when the pressure level changes.
+   */
+  public interface Participant {
+
+    /**
+     * @param level One of {@link #LEVEL_NORMAL}, {@link #LEVEL_MODERATE} and {@link
+     * #LEVEL_CRITICAL}.
+     */
+    void onMemoryPressure(int level);
+  }
+
+  private static final MemoryPressureCoordinator instance = new MemoryPressureCoordinator();
+
+  public static MemoryPressureCoordinator getInstance() {
+    return instance;
+  }
+
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final List<Entry> entries = new ArrayList<>();
+  private boolean installed;
+  private int level = LEVEL_NORMAL;
+
+  private final Runnable relax = new Runnable() {
+    @Override
+    public void run() {
+      setPressure(LEVEL_NORMAL);
+    }
+  };
+
+  private final Participant caches = new Participant() {
+    @Override
+    public void onMemoryPressure(int level) {
+      if (level == LEVEL_MODERATE) {
+        ArtworkLoader.trimCache(ArtworkLoader.getCacheSize() / 2);
+      } else if (level == LEVEL_CRITICAL) {
+        ArtworkLoader.clearCache();
+      }
+    }
+  };
+
+  private MemoryPressureCoordinator() {
+    addParticipant(caches, ORDER_CACHES);
+  }
+
+  /**
+   * Registers for the system's trim callbacks. Idempotent.
+   */
+  public synchronized void install(Context context) {
+    if (!installed) {
+      installed = true;
+      context.getApplicationContext().registerComponentCallbacks(this);
+    }
+  }
+
+  /**
+   * Adds a participant, held weakly, so it can't leak through the process-wide coordinator.
+   * Keep a strong reference for as long as it should be notified.
+   *
+   * @param order Where it degrades, e.g. {@link #ORDER_BUFFERS}; lower orders go first.
+   */
+  public synchronized void addParticipant(Participant participant, int order) {
+    int index = 0;
+    while (index < entries.size() && entries.get(index).order <= order) {
+      index++;
+    }
+    entries.add(index, new Entry(participant, order));
+  }
+
+  public synchronized void removeParticipant(Participant participant) {
+    for (int i = entries.size() - 1; i >= 0; i--) {
+      Participant p = entries.get(i).participant.get();
+      if (p == null || p == participant) {
+        entries.remove(i);
+      }
+    }
+  }
+
+  public synchronized int getPressure() {
+    return level;
+  }
+
+  /**
+   * Applies a pressure level to all participants, e.g. from an app's own memory accounting.
+   * Can be called from any thread; participants are notified on the main thread.
+   */
+  public void setPressure(final int level) {
+    if (Looper.myLooper() != Looper.getMainLooper()) {
+      mainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          setPressure(level);
+        }
+      });
+      return;
+    }
+    mainHandler.removeCallbacks(relax);
+    if (level != LEVEL_NORMAL) {
+      mainHandler.postDelayed(relax, RELAX_DELAY_MS);
+    }
+    List<Participant> participants = new ArrayList<>();
+    synchronized (this) {
+      if (this.level == level) {
+        return;
+      }
+      this.level = level;
+      for (int i = entries.size() - 1; i >= 0; i--) {
+        Participant p = entries.get(i).participant.get();
+        if (p == null) {
+          entries.remove(i);
+        } else {
+          participants.add(0, p);
+        }
+      }
+    }
+    L.dd(TAG, "setPressure(" + level + ") " + participants.size() + " participants");
+    for (Participant participant : participants) {
+      participant.onMemoryPressure(level);
+    }
+  }
+
+  // ============================@ComponentCallbacks2@============================
+  @Override
+  public void onTrimMemory(int trimLevel) {
+    int level = toPressure(trimLevel);
+    if (level != LEVEL_NORMAL && level >= getPressure()) {
+      setPressure(level);
+    }
+  }
+
+  @Override
+  public void onLowMemory() {
+    setPressure(LEVEL_CRITICAL);
+  }
+
+  @Override
+  public void onConfigurationChanged(Configuration newConfig) {
+    //do nothing
+  }
+
+  private static int toPressure(int trimLevel) {
+    if (trimLevel >= TRIM_MEMORY_MODERATE || trimLevel == TRIM_MEMORY_RUNNING_LOW
+        || trimLevel == TRIM_MEMORY_RUNNING_CRITICAL) {
+      return LEVEL_CRITICAL;
+    } else if (trimLevel >= TRIM_MEMORY_RUNNING_MODERATE) {
+      return LEVEL_MODERATE;
+    }
+    return LEVEL_NORMAL;
+  }
+
+  private static final class Entry {
+
+    private final WeakReference<Participant> participant;
+    private final int order;
+
+    private Entry(Participant participant, int order) {
+      this.participant = new WeakReference<>(participant);
+      this.order = order;
+    }
+  }
+}
@@ -0,0 +1,577 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.SystemClock;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.jcodeing.kmedia.utils.L;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Picks the fastest mirror of a {@link MirrorSet} at startup by racing the first request (the
+ * manifest, or the start of a progressive file) across the top K mirrors. The first mirror to
+ * deliver data wins and keeps serving that request; the others are cancelled. The winner
+ * becomes the {@link MirrorSet#setPrimary primary} for the rest of the session.
+ * <p>
+ * A losing contender closes its own source once its blocking call returns, as sources aren't
+ * thread-safe. Sources implementing {@link Cancelable}, such as {@link CancelableHttpDataSource},
+ * are aborted right away instead of being waited for.
+ * <p>
+ * Latency (time to first data) and throughput are remembered per mirror base URL across
+ * sessions. Old figures decay towards a neutral prior with a half-life of {@link
+ * #STATS_HALF_LIFE_MS}, so a mirror that was slow once gets raced again later. The racing only
+ * depends on the {@link DataSource.Factory} given, so it can be exercised against local
+ * stand-in servers.
+ */
+public final class MirrorRacer {
+
+  private static final String TAG = L.makeTag("MirrorRacer");
+
+  public static final int DEFAULT_RACE_COUNT = 2;
+  public static final long STATS_HALF_LIFE_MS = 3 * 24 * 60 * 60 * 1000L;
+  private static final String PREFERENCES_NAME = "kmedia_mirror_racer";
+  private static final long PRIOR_LATENCY_MS = 300;
+  private static final long PRIOR_THROUGHPUT_BPS = 1000000;
+  /**
+   * The request size mirrors are ranked for.
+   */
+  private static final long REFERENCE_REQUEST_BYTES = 256 * 1024;
+  private static final float SMOOTHING = 0.3f;
+  private static final int FIRST_READ_SIZE = 16 * 1024;
+
+  private final SharedPreferences preferences;
+  private final Map<String, Stats> stats = new HashMap<>();
+  private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "MirrorRacer");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * @param context Used to persist the mirror figures, may be null to keep them in memory only.
+   */
+  public MirrorRacer(Context context) {
+    preferences = context == null ? null
+        : context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, 0);
+  }
+
+  /**
+   * Starts a race for a new session over {@code mirrors}. The first request through any factory
+   * {@link Race#wrap wrapped} by it is raced.
+   *
+   * @param raceCount The number of mirrors raced, K.
+   */
+  public Race newRace(MirrorSet mirrors, int raceCount) {
+    return new Race(mirrors, raceCount);
+  }
+
+  // ============================@Cancel@============================
+
+  /**
+   * A {@link DataSource} whose blocking calls can be aborted from another thread. Register it
+   * with {@link #onOpen} when opened: sources opened by a race contender, however wrapped, are
+   * then cancelled when the contender loses.
+   */
+  public interface Cancelable {
+
+    /**
+     * Aborts a blocking open or read, failing them and the ones after. Thread-safe.
+     */
+    void cancel();
+  }
+
+  /**
+   * The contender running on the calling thread, if it is a race thread.
+   */
+  private static final ThreadLocal<Contender> currentContender = new ThreadLocal<>();
+
+  /**
+   * Registers {@code cancelable}, being opened on the calling thread, with the race contender
+   * running there. Does nothing on other threads.
+   */
+  public static void onOpen(Cancelable cancelable) {
+    Contender contender = currentContender.get();
+    if (contender != null) {
+      contender.add(cancelable);
+    }
+  }
+
+  private static final class Contender {
+
+    private final List<Cancelable> cancelables = new ArrayList<>();
+    private boolean cancelled;
+
+    private void add(Cancelable cancelable) {
+      synchronized (this) {
+        if (!cancelled) {
+          cancelables.add(cancelable);
+          return;
+        }
+      }
+      cancelable.cancel();
+    }
+
+    private void cancel() {
+      List<Cancelable> cancelables;
+      synchronized (this) {
+        cancelled = true;
+        cancelables = new ArrayList<>(this.cancelables);
+      }
+      for (Cancelable cancelable : cancelables) {
+        cancelable.cancel();
+      }
+    }
+  }
+
+  // ============================@Stats@============================
+
+  /**
+   * @return The mirror indices ordered by expected time of a reference request, fastest first.
+   */
+  public synchronized int[] rankMirrors(MirrorSet mirrors) {
+    final long[] expectedMs = new long[mirrors.size()];
+    Integer[] order = new Integer[mirrors.size()];
+    long nowMs = System.currentTimeMillis();
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+      Stats s = getStats(mirrors.getBaseUrl(i));
+      expectedMs[i] = s == null ? estimateMs(PRIOR_LATENCY_MS, PRIOR_THROUGHPUT_BPS)
+          : s.estimateMs(nowMs);
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return expectedMs[a] < expectedMs[b] ? -1 : (expectedMs[a] == expectedMs[b] ? 0 : 1);
+      }
+    });
+    int[] result = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      result[i] = order[i];
+    }
+    return result;
+  }
+
+  /**
+   * @return The decayed latency estimate of {@code baseUrl}, or {@link C#TIME_UNSET}.
+   */
+  public synchronized long getLatencyMs(String baseUrl) {
+    Stats s = getStats(baseUrl);
+    return s == null ? C.TIME_UNSET : s.decayedLatencyMs(System.currentTimeMillis());
+  }
+
+  /**
+   * @return The decayed throughput estimate of {@code baseUrl} in bits per second, or {@link
+   * C#TIME_UNSET}.
+   */
+  public synchronized long getThroughputBps(String baseUrl) {
+    Stats s = getStats(baseUrl);
+    return s == null ? C.TIME_UNSET : s.decayedThroughputBps(System.currentTimeMillis());
+  }
+
+  private synchronized Stats getStats(String baseUrl) {
+    Stats s = stats.get(baseUrl);
+    if (s == null && preferences != null) {
+      s = Stats.fromString(preferences.getString(baseUrl, null));
+      if (s != null) {
+        stats.put(baseUrl, s);
+      }
+    }
+    return s;
+  }
+
+  private synchronized void onLatency(String baseUrl, long latencyMs) {
+    Stats s = getStats(baseUrl);
+    long nowMs = System.currentTimeMillis();
+    if (s == null) {
+      s = new Stats(latencyMs, PRIOR_THROUGHPUT_BPS, nowMs);
+      stats.put(baseUrl, s);
+    } else {
+      s.update(nowMs, latencyMs, C.TIME_UNSET);
+    }
+    save(baseUrl, s);
+  }
+
+  /**
+   * Records a lower bound of the latency of {@code baseUrl}, e.g. of a mirror that lost a race
+   * before answering. Only raises the estimate.
+   */
+  private synchronized void onLatencyAtLeast(String baseUrl, long latencyMs) {
+    Stats s = getStats(baseUrl);
+    if (s == null || s.decayedLatencyMs(System.currentTimeMillis()) < latencyMs) {
+      onLatency(baseUrl, latencyMs);
+    }
+  }
+
+  private synchronized void onThroughput(String baseUrl, long throughputBps) {
+    Stats s = getStats(baseUrl);
+    if (s == null) {
+      return;
+    }
+    s.update(System.currentTimeMillis(), C.TIME_UNSET, throughputBps);
+    save(baseUrl, s);
+  }
+
+  private void save(String baseUrl, Stats s) {
+    if (preferences != null) {
+      preferences.edit().putString(baseUrl, s.toString()).apply();
+    }
+  }
+
+  private static long estimateMs(long latencyMs, long throughputBps) {
+    return latencyMs + REFERENCE_REQUEST_BYTES * 8 * 1000 / Math.max(throughputBps, 1);
+  }
+
+  private static final class Stats {
+
+    private long latencyMs;
+    private long throughputBps;
+    private long timestampMs;
+
+    private Stats(long latencyMs, long throughputBps, long timestampMs) {
+      this.latencyMs = latencyMs;
+      this.throughputBps = throughputBps;
+      this.timestampMs = timestampMs;
+    }
+
+    private void update(long nowMs, long latencyMs, long throughputBps) {
+      // Start from the decayed figures, so a long-unseen mirror is mostly re-learnt.
+      this.latencyMs = decayedLatencyMs(nowMs);
+      this.throughputBps = decayedThroughputBps(nowMs);
+      if (latencyMs != C.TIME_UNSET) {
+        this.latencyMs = (long) (this.latencyMs * (1 - SMOOTHING) + latencyMs * SMOOTHING);
+      }
+      if (throughputBps != C.TIME_UNSET) {
+        this.throughputBps = (long) (this.throughputBps * (1 - SMOOTHING)
+            + throughputBps * SMOOTHING);
+      }
+      timestampMs = nowMs;
+    }
+
+    private double confidence(long nowMs) {
+      return Math.pow(0.5, Math.max(nowMs - timestampMs, 0) / (double) STATS_HALF_LIFE_MS);
+    }
+
+    private long decayedLatencyMs(long nowMs) {
+      double confidence = confidence(nowMs);
+      return (long) (latencyMs * confidence + PRIOR_LATENCY_MS * (1 - confidence));
+    }
+
+    private long decayedThroughputBps(long nowMs) {
+      double confidence = confidence(nowMs);
+      return (long) (throughputBps * confidence + PRIOR_THROUGHPUT_BPS * (1 - confidence));
+    }
+
+    private long estimateMs(long nowMs) {
+      return MirrorRacer.estimateMs(decayedLatencyMs(nowMs), decayedThroughputBps(nowMs));
+    }
+
+    @Override
+    public String toString() {
+      return latencyMs + ";" + throughputBps + ";" + timestampMs;
+    }
+
+    private static Stats fromString(String value) {
+      if (value == null) {
+        return null;
+      }
+      String[] parts = value.split(";");
+      try {
+        return new Stats(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+            Long.parseLong(parts[2]));
+      } catch (RuntimeException e) {
+        return null;
+      }
+    }
+  }
+
+  // ============================@Race@============================
+
+  /**
+   * The race of one session.
+   */
+  public final class Race {
+
+    private final MirrorSet mirrors;
+    private final int raceCount;
+    private boolean raced;
+
+    private Race(MirrorSet mirrors, int raceCount) {
+      this.mirrors = mirrors;
+      this.raceCount = Math.max(raceCount, 1);
+    }
+
+    /**
+     * @return A factory whose sources race the first request of the session, then behave like
+     * {@code upstreamFactory}'s.
+     */
+    public DataSource.Factory wrap(final DataSource.Factory upstreamFactory) {
+      return new DataSource.Factory() {
+        @Override
+        public DataSource createDataSource() {
+          return new RacingDataSource(Race.this, upstreamFactory);
+        }
+      };
+    }
+
+    /**
+     * @return Whether the caller is the one to race, true for the first request only.
+     */
+    private synchronized boolean claim() {
+      if (raced) {
+        return false;
+      }
+      raced = true;
+      return true;
+    }
+  }
+
+  /**
+   * The result of one contender: its opened source and first data.
+   */
+  private static final class Lap {
+
+    private final int mirrorIndex;
+    private final DataSource dataSource;
+    private final long length;
+    private final byte[] firstData;
+    private final int firstDataLength;
+
+    private Lap(int mirrorIndex, DataSource dataSource, long length, byte[] firstData,
+        int firstDataLength) {
+      this.mirrorIndex = mirrorIndex;
+      this.dataSource = dataSource;
+      this.length = length;
+      this.firstData = firstData;
+      this.firstDataLength = firstDataLength;
+    }
+  }
+
+  private final class RacingDataSource implements DataSource {
+
+    private final Race race;
+    private final DataSource.Factory upstreamFactory;
+
+    private DataSource dataSource;
+    private byte[] pendingData;
+    private int pendingOffset;
+    private int pendingLength;
+    private String winnerBaseUrl;
+    private long openTimeMs;
+    private long bytesRead;
+
+    private RacingDataSource(Race race, DataSource.Factory upstreamFactory) {
+      this.race = race;
+      this.upstreamFactory = upstreamFactory;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      if (race.mirrors.indexOf(dataSpec.uri) == -1 || !race.claim()) {
+        dataSource = upstreamFactory.createDataSource();
+        return dataSource.open(dataSpec);
+      }
+      openTimeMs = SystemClock.elapsedRealtime();
+      Lap winner = runRace(dataSpec);
+      dataSource = winner.dataSource;
+      pendingData = winner.firstData;
+      pendingOffset = 0;
+      pendingLength = winner.firstDataLength;
+      bytesRead = pendingLength;
+      winnerBaseUrl = race.mirrors.getBaseUrl(winner.mirrorIndex);
+      race.mirrors.setPrimary(winner.mirrorIndex);
+      return winner.length;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      if (pendingLength > 0) {
+        int length = Math.min(readLength, pendingLength);
+        System.arraycopy(pendingData, pendingOffset, buffer, offset, length);
+        pendingOffset += length;
+        pendingLength -= length;
+        return length;
+      }
+      int read = dataSource.read(buffer, offset, readLength);
+      if (read > 0) {
+        bytesRead += read;
+      }
+      return read;
+    }
+
+    @Override
+    public Uri getUri() {
+      return dataSource == null ? null : dataSource.getUri();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (winnerBaseUrl != null) {
+        long elapsedMs = SystemClock.elapsedRealtime() - openTimeMs;
+        // Too short transfers say little about throughput.
+        if (bytesRead >= FIRST_READ_SIZE && elapsedMs > 0) {
+          onThroughput(winnerBaseUrl, bytesRead * 8 * 1000 / elapsedMs);
+        }
+        winnerBaseUrl = null;
+      }
+      pendingData = null;
+      pendingLength = 0;
+      if (dataSource != null) {
+        try {
+          dataSource.close();
+        } finally {
+          dataSource = null;
+        }
+      }
+    }
+
+    private Lap runRace(final DataSpec dataSpec) throws IOException {
+      int[] ranking = rankMirrors(race.mirrors);
+      int count = Math.min(race.raceCount, ranking.length);
+      final Contender[] contenders = new Contender[count];
+      List<Future<Lap>> futures = new ArrayList<>(count);
+      ExecutorCompletionService<Lap> completion = new ExecutorCompletionService<>(executor);
+      final long startMs = SystemClock.elapsedRealtime();
+      // Laps of contenders that got through while the race was on. Guarded by itself, as is
+      // finished.
+      final List<Lap> laps = new ArrayList<>(count);
+      final boolean[] finished = new boolean[1];
+      for (int i = 0; i < count; i++) {
+        final int mirrorIndex = ranking[i];
+        final Contender contender = new Contender();
+        contenders[i] = contender;
+        futures.add(completion.submit(new Callable<Lap>() {
+          @Override
+          public Lap call() throws IOException {
+            currentContender.set(contender);
+            try {
+              return runLap();
+            } finally {
+              currentContender.remove();
+            }
+          }
+
+          private Lap runLap() throws IOException {
+            DataSource dataSource = upstreamFactory.createDataSource();
+            Uri uri = race.mirrors.resolve(dataSpec.uri, mirrorIndex);
+            String key = dataSpec.key != null ? dataSpec.key : dataSpec.uri.toString();
+            Lap lap;
+            try {
+              long length = dataSource.open(new DataSpec(uri, dataSpec.postBody,
+                  dataSpec.absoluteStreamPosition, dataSpec.position, dataSpec.length, key,
+                  dataSpec.flags));
+              byte[] firstData = new byte[FIRST_READ_SIZE];
+              int read = dataSource.read(firstData, 0, firstData.length);
+              lap = new Lap(mirrorIndex, dataSource, length, firstData, Math.max(read, 0));
+            } catch (IOException e) {
+              closeQuietly(dataSource);
+              throw e;
+            }
+            boolean lost;
+            synchronized (laps) {
+              lost = finished[0];
+              if (!lost) {
+                laps.add(lap);
+              }
+            }
+            if (lost) {
+              // Nothing else uses the source: the race is over and this thread is out of it.
+              closeQuietly(dataSource);
+              throw new InterruptedIOException();
+            }
+            onLatency(race.mirrors.getBaseUrl(mirrorIndex),
+                SystemClock.elapsedRealtime() - startMs);
+            return lap;
+          }
+        }));
+      }
+      Lap winner = null;
+      IOException lastError = null;
+      try {
+        for (int i = 0; i < count && winner == null; i++) {
+          try {
+            winner = completion.take().get();
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            lastError = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        lastError = new InterruptedIOException();
+      }
+      // From here on, contenders still running close their own source when they get through.
+      List<Lap> losers;
+      synchronized (laps) {
+        finished[0] = true;
+        losers = new ArrayList<>(laps);
+      }
+      losers.remove(winner);
+      boolean[] through = new boolean[race.mirrors.size()];
+      for (Lap loser : losers) {
+        // Their threads are done with them.
+        closeQuietly(loser.dataSource);
+        through[loser.mirrorIndex] = true;
+      }
+      long elapsedMs = SystemClock.elapsedRealtime() - startMs;
+      for (int i = 0; i < count; i++) {
+        if (!futures.get(i).isDone() && !through[ranking[i]]) {
+          if (winner != null) {
+            // Still waiting: slower than the race so far, which is worth remembering too.
+            onLatencyAtLeast(race.mirrors.getBaseUrl(ranking[i]), elapsedMs);
+          }
+          contenders[i].cancel();
+          futures.get(i).cancel(true);
+        }
+      }
+      if (winner == null) {
+        throw lastError != null ? lastError : new IOException("No mirror");
+      }
+      L.d(TAG, "race won by " + race.mirrors.getBaseUrl(winner.mirrorIndex) + " in "
+          + elapsedMs + "ms among " + count);
+      return winner;
+    }
+  }
+
+  private static void closeQuietly(DataSource dataSource) {
+    try {
+      dataSource.close();
+    } catch (IOException e) {
+      // Ignore, the contender is discarded.
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.net.Uri;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Alternate base URLs serving the same content, e.g. several CDNs, with a health score per
+ * mirror. Reuse an instance across sessions to keep the scores. Thread-safe.
+ * <p>
+ * A URI starting with one of the base URLs can be rewritten to any other mirror by replacing
+ * that prefix; URIs matching no base URL are left as is.
+ */
+public final class MirrorSet {
+
+  /**
+   * Weight of the latest result in the health score.
+   */
+  private static final float HEALTH_SMOOTHING = 0.3f;
+
+  private final String[] baseUrls;
+  private final float[] health;
+  private int primary = -1;
+
+  /**
+   * @param baseUrls The base URLs, preferred first, e.g. {@code https://cdn1.example.com/media/}.
+   */
+  public MirrorSet(List<String> baseUrls) {
+    if (baseUrls.isEmpty()) {
+      throw new IllegalArgumentException("No mirror");
+    }
+    this.baseUrls = baseUrls.toArray(new String[baseUrls.size()]);
+    health = new float[this.baseUrls.length];
+    Arrays.fill(health, 1f);
+  }
+
+  public int size() {
+    return baseUrls.length;
+  }
+
+  public String getBaseUrl(int index) {
+    return baseUrls[index];
+  }
+
+  public List<String> getBaseUrls() {
+    return Collections.unmodifiableList(Arrays.asList(baseUrls));
+  }
+
+  /**
+   * @return The health score of mirror {@code index}, in [0,1], 1 being healthy.
+   */
+  public synchronized float getHealth(int index) {
+    return health[index];
+  }
+
+  public synchronized void onSuccess(int index) {
+    health[index] = health[index] * (1 - HEALTH_SMOOTHING) + HEALTH_SMOOTHING;
+  }
+
+  public synchronized void onFailure(int index) {
+    health[index] = health[index] * (1 - HEALTH_SMOOTHING);
+  }
+
+  /**
+   * Sets the mirror to use first among equally healthy ones, e.g. the winner of a {@link
+   * MirrorRacer} race.
+   */
+  public synchronized void setPrimary(int index) {
+    primary = index;
+  }
+
+  public synchronized int getPrimary() {
+    return primary;
+  }
+
+  /**
+   * @return The mirror indices, healthiest first; ties go to the {@link #setPrimary primary},
+   * then keep the preferred order.
+   */
+  public synchronized int[] getMirrorOrder() {
+    Integer[] order = new Integer[baseUrls.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    final float[] health = this.health.clone();
+    final int primary = this.primary;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer first, Integer second) {
+        int a = first;
+        int b = second;
+        int result = Float.compare(health[b], health[a]);
+        if (result == 0 && a != b && (a == primary || b == primary)) {
+          result = a == primary ? -1 : 1;
+        }
+        return result;
+      }
+    });
+    int[] result = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      result[i] = order[i];
+    }
+    return result;
+  }
+
+  /**
+   * @return The index of the mirror {@code uri} belongs to, or -1.
+   */
+  public int indexOf(Uri uri) {
+    String url = uri.toString();
+    for (int i = 0; i < baseUrls.length; i++) {
+      if (url.startsWith(baseUrls[i])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return {@code uri} on mirror {@code index}, or {@code uri} if it belongs to no mirror.
+   */
+  public Uri resolve(Uri uri, int index) {
+    int current = indexOf(uri);
+    if (current == -1 || current == index) {
+      return uri;
+    }
+    String url = uri.toString();
+    return Uri.parse(baseUrls[index] + url.substring(baseUrls[current].length()));
+  }
+}
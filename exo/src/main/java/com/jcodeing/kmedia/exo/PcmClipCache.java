@@ -0,0 +1,531 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import com.google.android.exoplayer2.C;
+import com.jcodeing.kmedia.utils.L;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Short audio clips decoded once to PCM, in memory or on disk, so that playback and seeks of a
+ * clip played over and over (e.g. sentence drills) skip the extractor and decoder. Clips are
+ * kept as WAV, whose seeks are sample-accurate and need no decoding.
+ * <p>
+ * Only clips up to {@link #MAX_CLIP_DURATION_MS} without video are cached. Clips are evicted
+ * least recently used first, beyond the byte budget, and shed under memory pressure (in memory
+ * mode). Files of evicted clips still in use are kept until released, see {@link Clip#acquire()}.
+ * One cache is meant to be shared by all players, see {@link #getInstance()}.
+ */
+public final class PcmClipCache {
+
+  private static final String TAG = L.makeTag("PcmClipCache");
+
+  public static final long MAX_CLIP_DURATION_MS = 60 * 1000;
+
+  public static final long DEFAULT_BUDGET_BYTES =
+      Math.min(Runtime.getRuntime().maxMemory() / 16, 32 * 1024 * 1024);
+
+  private static final int WAV_HEADER_SIZE = 44;
+  /**
+   * Clip files modified before this were written by an earlier process. With some slack, as file
+   * times may be rounded down to the second.
+   */
+  private static final long STALE_BEFORE_MS = System.currentTimeMillis() - 2000;
+
+  /**
+   * Receives the result of {@link #loadAsync}.
+   */
+  public interface Callback {
+
+    void onClipLoaded(String contentId, Clip clip);
+
+    void onClipError(String contentId, IOException error);
+  }
+
+  /**
+   * Thrown for media that isn't a short audio clip.
+   */
+  public static final class NotAClipException extends IOException {
+
+    public NotAClipException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * A decoded clip, a WAV either in {@link #getData() memory} or in a {@link #getFile() file}.
+   * <p>
+   * While a clip is played from its file, hold it with {@link #acquire()}: the file of an evicted
+   * clip is deleted only once the last holder {@link #release() releases} it.
+   */
+  public static final class Clip {
+
+    private final PcmClipCache cache;
+    private final String contentId;
+    private final ByteBuffer data;
+    private final File file;
+    private final long sizeBytes;
+
+    // Guarded by the cache.
+    private int holders;
+    private boolean evicted;
+
+    private Clip(PcmClipCache cache, String contentId, ByteBuffer data, File file,
+        long sizeBytes) {
+      this.cache = cache;
+      this.contentId = contentId;
+      this.data = data;
+      this.file = file;
+      this.sizeBytes = sizeBytes;
+    }
+
+    /**
+     * Marks the clip as in use, keeping its file until {@link #release()}.
+     */
+    public void acquire() {
+      synchronized (cache) {
+        holders++;
+      }
+    }
+
+    /**
+     * Ends a use started with {@link #acquire()}.
+     */
+    public void release() {
+      synchronized (cache) {
+        if (holders > 0 && --holders == 0 && evicted) {
+          deleteFile();
+        }
+      }
+    }
+
+    private void evict() {
+      evicted = true;
+      if (holders == 0) {
+        deleteFile();
+      }
+    }
+
+    private void deleteFile() {
+      if (file != null) {
+        file.delete();
+      }
+    }
+
+    public String getContentId() {
+      return contentId;
+    }
+
+    /**
+     * @return A read-only view of the WAV, or null if on disk.
+     */
+    public ByteBuffer getData() {
+      return data != null ? data.asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * @return The WAV file, or null if in memory.
+     */
+    public File getFile() {
+      return file;
+    }
+
+    public long getSizeBytes() {
+      return sizeBytes;
+    }
+  }
+
+  private static PcmClipCache instance;
+
+  /**
+   * @return The process-wide in-memory cache, with {@link #DEFAULT_BUDGET_BYTES}.
+   */
+  public static synchronized PcmClipCache getInstance() {
+    if (instance == null) {
+      instance = new PcmClipCache(null, DEFAULT_BUDGET_BYTES);
+    }
+    return instance;
+  }
+
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "PcmClipCache");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+
+  private final File directory;
+  private final LinkedHashMap<String, Clip> clips = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<String, Future<?>> loads = new HashMap<>();
+  private final Set<String> rejected = new HashSet<>();
+  private long budgetBytes;
+  private long sizeBytes;
+
+  private final MemoryPressureCoordinator.Participant memoryPressure =
+      new MemoryPressureCoordinator.Participant() {
+        @Override
+        public void onMemoryPressure(int level) {
+          if (level == MemoryPressureCoordinator.LEVEL_MODERATE) {
+            trimToSize(getSizeBytes() / 2);
+          } else if (level == MemoryPressureCoordinator.LEVEL_CRITICAL) {
+            trimToSize(0);
+          }
+        }
+      };
+
+  /**
+   * @param directory Where clips are kept as files; null to keep them in memory.
+   * @param budgetBytes The bytes all clips together may take.
+   */
+  public PcmClipCache(File directory, long budgetBytes) {
+    this.directory = directory;
+    this.budgetBytes = budgetBytes;
+    if (directory == null) {
+      MemoryPressureCoordinator.getInstance()
+          .addParticipant(memoryPressure, MemoryPressureCoordinator.ORDER_CACHES);
+    } else {
+      executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          deleteStaleFiles();
+        }
+      });
+    }
+  }
+
+  /**
+   * Deletes the clip files left in the directory by an earlier process, e.g. of clips evicted
+   * while still held when it died. The index is kept in memory only, so they can't be found again.
+   */
+  private void deleteStaleFiles() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.getName().endsWith(".wav") && file.lastModified() < STALE_BEFORE_MS) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * @return The clip of {@code contentId}, or null if not cached.
+   */
+  public synchronized Clip get(String contentId) {
+    Clip clip = clips.get(contentId);
+    if (clip != null && clip.file != null && !clip.file.exists()) {
+      remove(contentId);
+      return null;
+    }
+    return clip;
+  }
+
+  /**
+   * @return Whether {@code contentId} was found not to be a short audio clip.
+   */
+  public synchronized boolean isRejected(String contentId) {
+    return rejected.contains(contentId);
+  }
+
+  public synchronized long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  /**
+   * Sets the byte budget, evicting the least recently used clips beyond it. Their files are
+   * deleted right away, or once released if still held.
+   */
+  public synchronized void setBudgetBytes(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+    trimToSize(budgetBytes);
+  }
+
+  public synchronized void remove(String contentId) {
+    Clip clip = clips.remove(contentId);
+    if (clip != null) {
+      sizeBytes -= clip.sizeBytes;
+      clip.evict();
+    }
+  }
+
+  public synchronized void trimToSize(long maxBytes) {
+    Iterator<Map.Entry<String, Clip>> iterator = clips.entrySet().iterator();
+    while (sizeBytes > maxBytes && iterator.hasNext()) {
+      Clip clip = iterator.next().getValue();
+      iterator.remove();
+      sizeBytes -= clip.sizeBytes;
+      clip.evict();
+    }
+  }
+
+  // ============================@Load@============================
+
+  /**
+   * Decodes {@code uri} into the cache on a background thread. The {@code callback} is invoked on
+   * {@code handler}, right away if cached, and not at all if a load of the same content is in
+   * progress already or the content was {@link #isRejected rejected} before.
+   *
+   * @param headers Request headers for network URIs. May be null.
+   */
+  public synchronized void loadAsync(final Context context, final Uri uri,
+      final Map<String, String> headers, final String contentId, final Handler handler,
+      final Callback callback) {
+    final Clip cached = get(contentId);
+    if (cached != null || rejected.contains(contentId) || loads.containsKey(contentId)) {
+      if (cached != null) {
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            callback.onClipLoaded(contentId, cached);
+          }
+        });
+      }
+      return;
+    }
+    final Context appContext = context.getApplicationContext();
+    loads.put(contentId, executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final Clip clip = load(appContext, uri, headers, contentId);
+          handler.post(new Runnable() {
+            @Override
+            public void run() {
+              callback.onClipLoaded(contentId, clip);
+            }
+          });
+        } catch (InterruptedIOException e) {
+          // Canceled.
+        } catch (final IOException e) {
+          handler.post(new Runnable() {
+            @Override
+            public void run() {
+              callback.onClipError(contentId, e);
+            }
+          });
+        } finally {
+          synchronized (PcmClipCache.this) {
+            loads.remove(contentId);
+          }
+        }
+      }
+    }));
+  }
+
+  /**
+   * Cancels a {@link #loadAsync} in progress.
+   */
+  public synchronized void cancelLoad(String contentId) {
+    Future<?> load = loads.remove(contentId);
+    if (load != null) {
+      load.cancel(true);
+    }
+  }
+
+  /**
+   * Decodes {@code uri} into the cache on the calling thread. A clip that no longer fits the
+   * budget, if it shrank meanwhile, is returned without being cached; its file is deleted once
+   * {@link Clip#release() released}.
+   *
+   * @throws NotAClipException If the media is too long or has video.
+   */
+  public Clip load(Context context, Uri uri, Map<String, String> headers, String contentId)
+      throws IOException {
+    Clip clip = get(contentId);
+    if (clip != null) {
+      return clip;
+    }
+    WavSink sink = new WavSink(directory != null
+        ? new File(directory, Integer.toHexString(contentId.hashCode()) + "-"
+        + System.nanoTime() + ".wav") : null);
+    try {
+      PcmDecoder.decode(context, uri, headers, sink);
+    } catch (NotAClipException e) {
+      synchronized (this) {
+        rejected.add(contentId);
+      }
+      sink.discard();
+      throw e;
+    } catch (IOException e) {
+      sink.discard();
+      throw e;
+    }
+    clip = sink.toClip(contentId);
+    synchronized (this) {
+      if (clip.sizeBytes <= budgetBytes) {
+        remove(contentId);
+        clips.put(contentId, clip);
+        sizeBytes += clip.sizeBytes;
+        trimToSize(budgetBytes);
+      } else {
+        // Not cached, nothing else would delete its file.
+        clip.evicted = true;
+      }
+    }
+    L.dd(TAG, "load(" + contentId + ") " + clip.sizeBytes + " bytes");
+    return clip;
+  }
+
+  // ============================@Wav@============================
+
+  /**
+   * Writes decoded PCM as a 16-bit WAV, growing an array in memory or appending to a file.
+   */
+  private final class WavSink implements PcmDecoder.Sink {
+
+    private final File file;
+    private RandomAccessFile output;
+    private byte[] data;
+    private int size = WAV_HEADER_SIZE;
+    private int sampleRateHz = C.LENGTH_UNSET;
+    private int channelCount;
+    private long durationUs;
+
+    private WavSink(File file) {
+      this.file = file;
+    }
+
+    @Override
+    public void onInputFormat(long durationUs, boolean hasVideo) throws IOException {
+      if (hasVideo) {
+        throw new NotAClipException("Has video");
+      } else if (durationUs == C.TIME_UNSET || durationUs > MAX_CLIP_DURATION_MS * 1000) {
+        throw new NotAClipException("Duration " + durationUs + "us");
+      }
+      this.durationUs = durationUs;
+      if (file != null) {
+        if (!directory.exists() && !directory.mkdirs()) {
+          throw new IOException("Can't create " + directory);
+        }
+        output = new RandomAccessFile(file, "rw");
+        output.setLength(0);
+        output.seek(WAV_HEADER_SIZE);
+      }
+    }
+
+    @Override
+    public void onOutputFormat(int sampleRateHz, int channelCount) throws IOException {
+      if (this.sampleRateHz != C.LENGTH_UNSET && (this.sampleRateHz != sampleRateHz
+          || this.channelCount != channelCount)) {
+        throw new NotAClipException("PCM format changed");
+      }
+      this.sampleRateHz = sampleRateHz;
+      this.channelCount = channelCount;
+      if (file == null && data == null) {
+        // The expected size, with some room for an inexact duration.
+        long expectedSize = durationUs * sampleRateHz / C.MICROS_PER_SECOND * channelCount * 2;
+        data = new byte[(int) Math.min(WAV_HEADER_SIZE + expectedSize * 21 / 20, budgetBytes)];
+      }
+    }
+
+    @Override
+    public void onPcm(ByteBuffer pcm, long presentationTimeUs) throws IOException {
+      int length = pcm.remaining();
+      if (size + (long) length > budgetBytes) {
+        throw new NotAClipException("Larger than the budget");
+      }
+      if (output != null) {
+        byte[] chunk = new byte[length];
+        pcm.get(chunk);
+        output.write(chunk);
+      } else {
+        if (size + length > data.length) {
+          byte[] grown = new byte[Math.max(data.length * 3 / 2, size + length)];
+          System.arraycopy(data, 0, grown, 0, size);
+          data = grown;
+        }
+        pcm.get(data, size, length);
+      }
+      size += length;
+    }
+
+    @Override
+    public void onEnd() throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      int dataSize = size - WAV_HEADER_SIZE;
+      header.putInt(0x46464952); // "RIFF"
+      header.putInt(dataSize + 36);
+      header.putInt(0x45564157); // "WAVE"
+      header.putInt(0x20746d66); // "fmt "
+      header.putInt(16);
+      header.putShort((short) 1); // PCM
+      header.putShort((short) channelCount);
+      header.putInt(sampleRateHz);
+      header.putInt(sampleRateHz * channelCount * 2);
+      header.putShort((short) (channelCount * 2));
+      header.putShort((short) 16);
+      header.putInt(0x61746164); // "data"
+      header.putInt(dataSize);
+      if (output != null) {
+        output.seek(0);
+        output.write(header.array());
+        output.close();
+        output = null;
+      } else {
+        System.arraycopy(header.array(), 0, data, 0, WAV_HEADER_SIZE);
+        if (data.length > size) {
+          data = Arrays.copyOf(data, size);
+        }
+      }
+    }
+
+    private Clip toClip(String contentId) {
+      if (file != null) {
+        return new Clip(PcmClipCache.this, contentId, null, file, size);
+      }
+      return new Clip(PcmClipCache.this, contentId, ByteBuffer.wrap(data), null, size);
+    }
+
+    private void discard() {
+      if (output != null) {
+        try {
+          output.close();
+        } catch (IOException e) {
+          //ignore
+        }
+        output = null;
+      }
+      if (file != null) {
+        file.delete();
+      }
+      data = null;
+    }
+  }
+}
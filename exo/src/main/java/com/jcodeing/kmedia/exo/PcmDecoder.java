@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+
+/**
+ * Decodes the audio track of a media file to 16-bit PCM as fast as the device allows, with the
+ * platform extractor and decoder, for work that needs the samples but no playback.
+ */
+final class PcmDecoder {
+
+  /**
+   * Receives the decoded audio, on the decoding thread. Throwing aborts the decoding.
+   */
+  interface Sink {
+
+    /**
+     * @param durationUs The duration of the audio track, or {@link C#TIME_UNSET} if unknown.
+     * @param hasVideo Whether the media has a video track too.
+     */
+    void onInputFormat(long durationUs, boolean hasVideo) throws IOException;
+
+    /**
+     * Called before the first samples, and whenever the PCM format changes.
+     */
+    void onOutputFormat(int sampleRateHz, int channelCount) throws IOException;
+
+    /**
+     * @param pcm Native order samples between the position and limit, valid during the call.
+     */
+    void onPcm(ByteBuffer pcm, long presentationTimeUs) throws IOException;
+
+    void onEnd() throws IOException;
+  }
+
+  private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+  private PcmDecoder() {
+  }
+
+  /**
+   * Decodes the first audio track of {@code uri} on the calling thread.
+   *
+   * @param headers Request headers for network URIs. May be null.
+   * @throws InterruptedIOException If the thread was interrupted.
+   */
+  static void decode(Context context, Uri uri, Map<String, String> headers, Sink sink)
+      throws IOException {
+    MediaExtractor extractor = new MediaExtractor();
+    MediaCodec codec = null;
+    try {
+      extractor.setDataSource(context, uri, headers);
+      int track = C.INDEX_UNSET;
+      boolean hasVideo = false;
+      for (int i = 0; i < extractor.getTrackCount(); i++) {
+        String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+        if (mime != null && mime.startsWith("audio/") && track == C.INDEX_UNSET) {
+          track = i;
+        } else if (mime != null && mime.startsWith("video/")) {
+          hasVideo = true;
+        }
+      }
+      if (track == C.INDEX_UNSET) {
+        throw new IOException("No audio track in " + uri);
+      }
+      extractor.selectTrack(track);
+      MediaFormat format = extractor.getTrackFormat(track);
+      sink.onInputFormat(format.containsKey(MediaFormat.KEY_DURATION)
+          ? format.getLong(MediaFormat.KEY_DURATION) : C.TIME_UNSET, hasVideo);
+      codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+      codec.configure(format, null, null, 0);
+      codec.start();
+      decode(extractor, codec, sink);
+    } catch (IllegalStateException | IllegalArgumentException e) {
+      throw new IOException(e);
+    } finally {
+      if (codec != null) {
+        try {
+          codec.stop();
+        } catch (IllegalStateException e) {
+          //ignore
+        }
+        codec.release();
+      }
+      extractor.release();
+    }
+  }
+
+  @SuppressWarnings("deprecation") // Buffer arrays, for API 16.
+  private static void decode(MediaExtractor extractor, MediaCodec codec, Sink sink)
+      throws IOException {
+    ByteBuffer[] inputBuffers = codec.getInputBuffers();
+    ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+    MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    MediaFormat outputFormat = null;
+    boolean inputEnded = false;
+    while (true) {
+      if (Thread.interrupted()) {
+        throw new InterruptedIOException();
+      }
+      if (!inputEnded) {
+        int inputIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+        if (inputIndex >= 0) {
+          int size = extractor.readSampleData(inputBuffers[inputIndex], 0);
+          if (size < 0) {
+            codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            inputEnded = true;
+          } else {
+            codec.queueInputBuffer(inputIndex, 0, size, extractor.getSampleTime(), 0);
+            extractor.advance();
+          }
+        }
+      }
+      int outputIndex = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+      if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+        outputFormat = codec.getOutputFormat();
+        sink.onOutputFormat(outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+            outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+      } else if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+        outputBuffers = codec.getOutputBuffers();
+      } else if (outputIndex >= 0) {
+        if (info.size > 0) {
+          if (outputFormat == null) {
+            outputFormat = codec.getOutputFormat();
+            sink.onOutputFormat(outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+          }
+          ByteBuffer output = outputBuffers[outputIndex];
+          output.order(ByteOrder.nativeOrder());
+          output.limit(info.offset + info.size);
+          output.position(info.offset);
+          sink.onPcm(output, info.presentationTimeUs);
+        }
+        codec.releaseOutputBuffer(outputIndex, false);
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+          sink.onEnd();
+          return;
+        }
+      }
+    }
+  }
+}
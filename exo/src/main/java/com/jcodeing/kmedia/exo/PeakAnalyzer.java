@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Builds the {@link PeakIndex} of a whole track without playing it, decoding as fast as the
+ * device allows, e.g. to draw the waveform of an item before it is played.
+ * <p>
+ * Uses the platform extractor and decoder directly ({@link PcmDecoder}), so nothing is rendered
+ * and no player is involved. Indexes are taken from and saved to a {@link PeakStore} if given.
+ */
+public final class PeakAnalyzer {
+
+  /**
+   * Receives the result of {@link #analyzeAsync}.
+   */
+  public interface Callback {
+
+    void onPeakIndexAnalyzed(String contentId, PeakIndex index);
+
+    void onPeakIndexError(String contentId, IOException error);
+  }
+
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "PeakAnalyzer");
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+
+  private PeakAnalyzer() {
+  }
+
+  /**
+   * Analyzes {@code uri} on a background thread. The {@code callback} is invoked on {@code
+   * handler}, unless canceled.
+   *
+   * @param store Where the index is taken from if complete, and saved to. May be null.
+   * @return A handle to {@link Future#cancel cancel(true)} the analysis.
+   */
+  public static Future<?> analyzeAsync(final Context context, final Uri uri,
+      final String contentId, final PeakStore store, final Handler handler,
+      final Callback callback) {
+    final Context appContext = context.getApplicationContext();
+    return executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final PeakIndex index = analyze(appContext, uri, contentId, store);
+          handler.post(new Runnable() {
+            @Override
+            public void run() {
+              callback.onPeakIndexAnalyzed(contentId, index);
+            }
+          });
+        } catch (InterruptedIOException e) {
+          // Canceled.
+        } catch (final IOException e) {
+          handler.post(new Runnable() {
+            @Override
+            public void run() {
+              callback.onPeakIndexError(contentId, e);
+            }
+          });
+        }
+      }
+    });
+  }
+
+  /**
+   * Analyzes {@code uri} on the calling thread.
+   *
+   * @throws InterruptedIOException If the thread was interrupted.
+   */
+  public static PeakIndex analyze(Context context, Uri uri, String contentId, PeakStore store)
+      throws IOException {
+    if (store != null) {
+      PeakIndex stored = store.load(contentId);
+      if (stored != null && stored.isComplete()) {
+        return stored;
+      }
+    }
+    final PeakIndex index = new PeakIndex();
+    PcmDecoder.decode(context, uri, null, new PcmDecoder.Sink() {
+
+      private PeakIndex.Accumulator accumulator;
+      private int sampleRateHz;
+      private int channelCount;
+
+      @Override
+      public void onInputFormat(long durationUs, boolean hasVideo) {
+        //do nothing
+      }
+
+      @Override
+      public void onOutputFormat(int sampleRateHz, int channelCount) {
+        this.sampleRateHz = sampleRateHz;
+        this.channelCount = channelCount;
+        accumulator = null;
+      }
+
+      @Override
+      public void onPcm(ByteBuffer pcm, long presentationTimeUs) {
+        if (accumulator == null) {
+          accumulator = new PeakIndex.Accumulator(index, sampleRateHz, channelCount);
+          accumulator.setPositionUs(presentationTimeUs);
+        }
+        accumulator.add(pcm);
+      }
+
+      @Override
+      public void onEnd() {
+        if (accumulator != null) {
+          accumulator.end();
+        }
+      }
+    });
+    if (store != null) {
+      store.saveAsync(contentId, index);
+    }
+    return index;
+  }
+}
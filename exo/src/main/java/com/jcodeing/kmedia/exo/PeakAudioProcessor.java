@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.audio.AudioProcessor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An {@link AudioProcessor} passing 16-bit PCM through unchanged while folding it into the
+ * {@link PeakIndex} of the content playing, so waveforms fill in as the user listens.
+ * <p>
+ * The per-sample work is a min/max/sum of squares, done as the buffers pass; loading and saving
+ * the index (see {@link PeakStore}) happen in the background. Once the index is complete (e.g.
+ * loaded from the store), samples just pass through.
+ * <p>
+ * Audio processors don't know the media position; the owner reports it with {@link
+ * #onPositionReset} before every seek or prepare, and samples after any other discontinuity are
+ * skipped until the next report.
+ */
+public final class PeakAudioProcessor implements AudioProcessor {
+
+  private static final ExecutorService loadExecutor = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "PeakAudioProcessor:Load");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private volatile PeakStore store;
+  private volatile String contentId;
+  private volatile PeakIndex index;
+  private volatile long reportedPositionUs = C.TIME_UNSET;
+  private volatile int positionReports;
+
+  // Playback thread only.
+  private PeakIndex accumulatedIndex;
+  private PeakIndex.Accumulator accumulator;
+  private int sampleRateHz = Format.NO_VALUE;
+  private int channelCount = Format.NO_VALUE;
+  private boolean active;
+  private ByteBuffer buffer = EMPTY_BUFFER;
+  private ByteBuffer outputBuffer = EMPTY_BUFFER;
+  private boolean inputEnded;
+  private int appliedPositionReports;
+  private long positionUs = C.TIME_UNSET;
+  private boolean inputSinceFlush;
+
+  /**
+   * @param store Where indexes are loaded from and saved to. Null disables the processor, at the
+   * next format change.
+   */
+  public void setStore(PeakStore store) {
+    this.store = store;
+  }
+
+  /**
+   * Starts a new index for {@code contentId} (e.g. the URI), loading the stored one in the
+   * background. Null for content that shouldn't be indexed.
+   */
+  public void setContentId(final String contentId) {
+    save();
+    this.contentId = contentId;
+    onPositionReset(0);
+    final PeakStore store = this.store;
+    if (contentId == null || store == null) {
+      index = null;
+      return;
+    }
+    final PeakIndex index = new PeakIndex();
+    this.index = index;
+    loadExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        PeakIndex stored = store.load(contentId);
+        if (stored != null) {
+          index.merge(stored);
+        }
+      }
+    });
+  }
+
+  /**
+   * @return The index of the current content, filling in; null if there is none.
+   */
+  public PeakIndex getPeakIndex() {
+    return index;
+  }
+
+  /**
+   * Reports the position playback continues from, before a seek or prepare.
+   */
+  public void onPositionReset(long positionMs) {
+    reportedPositionUs = positionMs * 1000;
+    positionReports++;
+  }
+
+  /**
+   * Saves the current index in the background, if it has anything new.
+   */
+  public void save() {
+    PeakStore store = this.store;
+    PeakIndex index = this.index;
+    if (store != null && index != null && contentId != null && index.getPeakCount() > 0) {
+      store.saveAsync(contentId, index);
+    }
+  }
+
+  // ============================@AudioProcessor@============================
+  @Override
+  public boolean configure(int sampleRateHz, int channelCount, int encoding) {
+    boolean active = encoding == C.ENCODING_PCM_16BIT && store != null;
+    if (this.active == active && this.sampleRateHz == sampleRateHz
+        && this.channelCount == channelCount) {
+      return false;
+    }
+    this.active = active;
+    this.sampleRateHz = sampleRateHz;
+    this.channelCount = channelCount;
+    accumulator = null;
+    return true;
+  }
+
+  @Override
+  public boolean isActive() {
+    return active;
+  }
+
+  @Override
+  public int getOutputChannelCount() {
+    return channelCount;
+  }
+
+  @Override
+  public int getOutputEncoding() {
+    return C.ENCODING_PCM_16BIT;
+  }
+
+  @Override
+  public void queueInput(ByteBuffer inputBuffer) {
+    int size = inputBuffer.remaining();
+    PeakIndex.Accumulator accumulator = accumulator();
+    if (accumulator != null) {
+      accumulator.add(inputBuffer);
+    }
+    inputSinceFlush = true;
+    if (buffer.capacity() < size) {
+      buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    } else {
+      buffer.clear();
+    }
+    buffer.put(inputBuffer);
+    buffer.flip();
+    outputBuffer = buffer;
+  }
+
+  @Override
+  public void queueEndOfStream() {
+    inputEnded = true;
+    PeakIndex.Accumulator accumulator = accumulator();
+    if (accumulator != null) {
+      accumulator.end();
+      save();
+    }
+  }
+
+  @Override
+  public ByteBuffer getOutput() {
+    ByteBuffer outputBuffer = this.outputBuffer;
+    this.outputBuffer = EMPTY_BUFFER;
+    return outputBuffer;
+  }
+
+  @Override
+  public boolean isEnded() {
+    return inputEnded && outputBuffer == EMPTY_BUFFER;
+  }
+
+  @Override
+  public void flush() {
+    outputBuffer = EMPTY_BUFFER;
+    inputEnded = false;
+    updatePosition();
+    inputSinceFlush = false;
+    PeakIndex.Accumulator accumulator = accumulator();
+    if (accumulator != null) {
+      accumulator.setPositionUs(positionUs);
+    }
+  }
+
+  /**
+   * Takes a newly reported position. Without one, a flush after input is a discontinuity of
+   * unknown position, while repeated flushes before any input (e.g. reconfigure, then reset)
+   * keep the one reported.
+   */
+  private void updatePosition() {
+    int reports = positionReports;
+    if (reports != appliedPositionReports) {
+      appliedPositionReports = reports;
+      positionUs = reportedPositionUs;
+    } else if (inputSinceFlush) {
+      positionUs = C.TIME_UNSET;
+    }
+  }
+
+  @Override
+  public void reset() {
+    flush();
+    buffer = EMPTY_BUFFER;
+    sampleRateHz = Format.NO_VALUE;
+    channelCount = Format.NO_VALUE;
+    active = false;
+    accumulator = null;
+  }
+
+  /**
+   * @return The accumulator of the current index, or null if there is nothing to index.
+   */
+  private PeakIndex.Accumulator accumulator() {
+    PeakIndex index = this.index;
+    if (index == null || index.isComplete() || !active) {
+      return null;
+    }
+    if (accumulator == null || accumulatedIndex != index) {
+      accumulatedIndex = index;
+      accumulator = new PeakIndex.Accumulator(index, sampleRateHz, channelCount);
+      updatePosition();
+      accumulator.setPositionUs(positionUs);
+    }
+    return accumulator;
+  }
+}
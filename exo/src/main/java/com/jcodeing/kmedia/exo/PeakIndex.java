@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import com.google.android.exoplayer2.C;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Waveform peaks of an audio track at a fixed resolution: the min, max and RMS of the (mixed
+ * down) samples of every {@code 1 / peaksPerSecond} slice, quantized to a byte each.
+ * <p>
+ * An index fills up incrementally, in any order (e.g. during playback with seeks); {@link
+ * #isFilled} tells which peaks are known yet. It is complete once the end of the track was reached
+ * and every peak before it is filled. Thread-safe.
+ */
+public final class PeakIndex {
+
+  public static final int DEFAULT_PEAKS_PER_SECOND = 50;
+
+  private static final int MAGIC = 0x4B504B31; // "KPK1"
+
+  private final int peaksPerSecond;
+  private byte[] mins;
+  private byte[] maxs;
+  private byte[] rms;
+  private final BitSet filled;
+  private int count;
+  private boolean endReached;
+
+  public PeakIndex() {
+    this(DEFAULT_PEAKS_PER_SECOND);
+  }
+
+  public PeakIndex(int peaksPerSecond) {
+    this.peaksPerSecond = peaksPerSecond;
+    mins = new byte[peaksPerSecond * 60];
+    maxs = new byte[mins.length];
+    rms = new byte[mins.length];
+    filled = new BitSet();
+  }
+
+  public int getPeaksPerSecond() {
+    return peaksPerSecond;
+  }
+
+  /**
+   * @return The number of peaks, up to the last one filled if the end isn't reached yet.
+   */
+  public synchronized int getPeakCount() {
+    return count;
+  }
+
+  /**
+   * @return The index of the peak at {@code positionMs}.
+   */
+  public int getPeakIndex(long positionMs) {
+    return (int) (positionMs * peaksPerSecond / 1000);
+  }
+
+  public synchronized boolean isFilled(int index) {
+    return filled.get(index);
+  }
+
+  public synchronized boolean isComplete() {
+    return endReached && filled.nextClearBit(0) >= count;
+  }
+
+  /**
+   * @return The min of peak {@code index}, in [-1,0]; 0 if not filled.
+   */
+  public synchronized float getMin(int index) {
+    return index < count ? mins[index] / 127f : 0;
+  }
+
+  /**
+   * @return The max of peak {@code index}, in [0,1]; 0 if not filled.
+   */
+  public synchronized float getMax(int index) {
+    return index < count ? maxs[index] / 127f : 0;
+  }
+
+  /**
+   * @return The RMS of peak {@code index}, in [0,1]; 0 if not filled.
+   */
+  public synchronized float getRms(int index) {
+    return index < count ? rms[index] / 127f : 0;
+  }
+
+  // ============================@Fill@============================
+  synchronized void put(int index, float min, float max, float rms) {
+    if (index >= mins.length) {
+      int capacity = Math.max(mins.length * 2, index + 1);
+      mins = Arrays.copyOf(mins, capacity);
+      maxs = Arrays.copyOf(maxs, capacity);
+      this.rms = Arrays.copyOf(this.rms, capacity);
+    }
+    mins[index] = quantize(min);
+    maxs[index] = quantize(max);
+    this.rms[index] = quantize(rms);
+    filled.set(index);
+    count = Math.max(count, index + 1);
+  }
+
+  /**
+   * Marks the end of the track at peak {@code endIndex}, exclusive.
+   */
+  synchronized void setEnd(int endIndex) {
+    endReached = true;
+    count = endIndex;
+    filled.clear(endIndex, Math.max(endIndex, filled.length()));
+  }
+
+  /**
+   * Copies the peaks {@code other} has and this index hasn't.
+   */
+  void merge(PeakIndex other) {
+    if (other.peaksPerSecond != peaksPerSecond) {
+      return;
+    }
+    synchronized (other) {
+      synchronized (this) {
+        for (int i = other.filled.nextSetBit(0); i >= 0 && i < other.count;
+            i = other.filled.nextSetBit(i + 1)) {
+          if (!filled.get(i)) {
+            put(i, other.mins[i] / 127f, other.maxs[i] / 127f, other.rms[i] / 127f);
+          }
+        }
+        if (other.endReached && !endReached) {
+          setEnd(other.count);
+        }
+      }
+    }
+  }
+
+  private static byte quantize(float value) {
+    return (byte) Math.round(Math.max(-1f, Math.min(1f, value)) * 127);
+  }
+
+  // ============================@Serialization@============================
+  synchronized void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(peaksPerSecond);
+    out.writeInt(count);
+    out.writeBoolean(endReached);
+    byte[] filledBytes = new byte[(count + 7) / 8];
+    for (int i = filled.nextSetBit(0); i >= 0 && i < count; i = filled.nextSetBit(i + 1)) {
+      filledBytes[i / 8] |= 1 << (i % 8);
+    }
+    out.write(filledBytes);
+    out.write(mins, 0, count);
+    out.write(maxs, 0, count);
+    out.write(rms, 0, count);
+  }
+
+  static PeakIndex readFrom(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a peak file");
+    }
+    PeakIndex index = new PeakIndex(in.readInt());
+    int count = in.readInt();
+    boolean endReached = in.readBoolean();
+    if (count < 0 || index.peaksPerSecond <= 0) {
+      throw new IOException("Corrupt peak file");
+    }
+    byte[] filledBytes = new byte[(count + 7) / 8];
+    in.readFully(filledBytes);
+    index.mins = new byte[Math.max(count, 1)];
+    index.maxs = new byte[index.mins.length];
+    index.rms = new byte[index.mins.length];
+    in.readFully(index.mins, 0, count);
+    in.readFully(index.maxs, 0, count);
+    in.readFully(index.rms, 0, count);
+    for (int i = 0; i < count; i++) {
+      if ((filledBytes[i / 8] & (1 << (i % 8))) != 0) {
+        index.filled.set(i);
+      }
+    }
+    index.count = count;
+    index.endReached = endReached;
+    return index;
+  }
+
+  // ============================@Accumulator@============================
+
+  /**
+   * Folds 16-bit PCM into the peaks of an index, tracking the position of the samples.
+   */
+  static final class Accumulator {
+
+    private final PeakIndex index;
+    private final int channelCount;
+    private final long framesPerPeak;
+    private final int sampleRateHz;
+
+    private long frame = C.TIME_UNSET;
+    private int peak = C.INDEX_UNSET;
+    private int peakFrames;
+    private float min;
+    private float max;
+    private double sumOfSquares;
+
+    Accumulator(PeakIndex index, int sampleRateHz, int channelCount) {
+      this.index = index;
+      this.sampleRateHz = sampleRateHz;
+      this.channelCount = channelCount;
+      framesPerPeak = Math.max(1, sampleRateHz / index.peaksPerSecond);
+    }
+
+    /**
+     * Sets the position of the next samples; {@link C#TIME_UNSET} drops samples until the
+     * position is known again.
+     */
+    void setPositionUs(long positionUs) {
+      flushPeak(false);
+      frame = positionUs == C.TIME_UNSET ? C.TIME_UNSET
+          : positionUs * sampleRateHz / C.MICROS_PER_SECOND;
+    }
+
+    /**
+     * Reads the samples between the position and limit of {@code buffer}, without consuming them.
+     */
+    void add(ByteBuffer buffer) {
+      if (frame == C.TIME_UNSET) {
+        return;
+      }
+      int frameSize = 2 * channelCount;
+      int limit = buffer.limit();
+      for (int i = buffer.position(); i + frameSize <= limit; i += frameSize) {
+        int sum = 0;
+        for (int c = 0; c < channelCount; c++) {
+          sum += buffer.getShort(i + 2 * c);
+        }
+        float sample = sum / (32768f * channelCount);
+        int framePeak = (int) (frame / framesPerPeak);
+        if (framePeak != peak) {
+          flushPeak(false);
+          peak = framePeak;
+        }
+        min = Math.min(min, sample);
+        max = Math.max(max, sample);
+        sumOfSquares += sample * sample;
+        peakFrames++;
+        frame++;
+      }
+    }
+
+    /**
+     * Marks the end of the track at the current position.
+     */
+    void end() {
+      flushPeak(true);
+      if (frame != C.TIME_UNSET) {
+        index.setEnd((int) ((frame + framesPerPeak - 1) / framesPerPeak));
+      }
+    }
+
+    /**
+     * Puts the current peak if at least half of it was seen (e.g. not right before a seek), or if
+     * {@code force}d at the end.
+     */
+    private void flushPeak(boolean force) {
+      if (peak != C.INDEX_UNSET && (force || peakFrames * 2 >= framesPerPeak)) {
+        index.put(peak, min, max, (float) Math.sqrt(sumOfSquares / peakFrames));
+      }
+      peak = C.INDEX_UNSET;
+      peakFrames = 0;
+      min = 0;
+      max = 0;
+      sumOfSquares = 0;
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import com.jcodeing.kmedia.utils.L;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Persists {@link PeakIndex peak indexes} as compact files in a directory, keyed by content ID
+ * (e.g. the media URI), so a waveform can be drawn right away the next time.
+ * <p>
+ * Files are written on a single background thread, through a temporary file so a crash never
+ * leaves a torn index behind.
+ */
+public final class PeakStore {
+
+  private static final String TAG = L.makeTag("PeakStore");
+
+  private static final ExecutorService writeExecutor = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "PeakStore:Write");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final File directory;
+
+  /**
+   * @param directory Where peak files go, e.g. a subdirectory of {@code getCacheDir()}.
+   */
+  public PeakStore(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Loads the index of {@code contentId}. Reads the disk, call off the main thread.
+   *
+   * @return The index, or null if none was stored or it can't be read.
+   */
+  public PeakIndex load(String contentId) {
+    File file = fileFor(contentId);
+    if (!file.exists()) {
+      return null;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      return PeakIndex.readFrom(in);
+    } catch (IOException e) {
+      L.e(TAG, "load(" + contentId + ")", e);
+      file.delete();
+      return null;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  /**
+   * Saves {@code index} for {@code contentId} in the background.
+   */
+  public void saveAsync(final String contentId, final PeakIndex index) {
+    writeExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        save(contentId, index);
+      }
+    });
+  }
+
+  private void save(String contentId, PeakIndex index) {
+    if (!directory.exists() && !directory.mkdirs()) {
+      L.e(TAG, "save(" + contentId + ") can't create " + directory);
+      return;
+    }
+    File file = fileFor(contentId);
+    File tempFile = new File(file.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      index.writeTo(out);
+      out.close();
+      out = null;
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Can't rename " + tempFile);
+      }
+    } catch (IOException e) {
+      L.e(TAG, "save(" + contentId + ")", e);
+      tempFile.delete();
+    } finally {
+      closeQuietly(out);
+    }
+  }
+
+  public void remove(String contentId) {
+    fileFor(contentId).delete();
+  }
+
+  private File fileFor(String contentId) {
+    return new File(directory, hash(contentId) + ".peaks");
+  }
+
+  private static String hash(String contentId) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(contentId.getBytes("UTF-8"));
+      StringBuilder name = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        name.append(Character.forDigit((b >> 4) & 0xF, 16))
+            .append(Character.forDigit(b & 0xF, 16));
+      }
+      return name.toString();
+    } catch (NoSuchAlgorithmException | IOException e) {
+      return Integer.toHexString(contentId.hashCode());
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        //ignore
+      }
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.Format;
+
+/**
+ * Aggregates quality-of-experience figures of a playback session: startup time, rebuffer time
+ * and ratio, time-weighted average bitrate and the number of quality switches.
+ * <p>
+ * All inputs carry their own timestamp, so the same figures can be computed live (from {@link
+ * EventLogger}) or offline from a recorded trace. Not thread-safe; feed it from one thread.
+ */
+public final class QoeMeter {
+
+  private long sessionStartMs = -1;
+  private long startupTimeMs = -1;
+  private long playingTimeMs;
+  private long rebufferTimeMs;
+  private int rebufferCount;
+  private int switchCount;
+  private long bitrateTimeProduct;
+
+  private boolean playWhenReady;
+  private int playbackState = ExoPlayer.STATE_IDLE;
+  private boolean hasBeenReady;
+  private int bitrate = Format.NO_VALUE;
+  private long lastUpdateMs = -1;
+
+  /**
+   * Reports a player state change.
+   */
+  public void onPlayerStateChanged(long nowMs, boolean playWhenReady, int playbackState) {
+    advance(nowMs);
+    if (sessionStartMs == -1 && playbackState != ExoPlayer.STATE_IDLE) {
+      sessionStartMs = nowMs;
+    }
+    if (playbackState == ExoPlayer.STATE_READY && !hasBeenReady) {
+      hasBeenReady = true;
+      startupTimeMs = sessionStartMs == -1 ? 0 : nowMs - sessionStartMs;
+    }
+    if (playbackState == ExoPlayer.STATE_BUFFERING && this.playbackState == ExoPlayer.STATE_READY
+        && hasBeenReady && playWhenReady) {
+      rebufferCount++;
+    }
+    if (playbackState == ExoPlayer.STATE_IDLE) {
+      // A new prepare starts a new startup phase, and its first format is no switch.
+      hasBeenReady = false;
+      sessionStartMs = -1;
+      bitrate = Format.NO_VALUE;
+    }
+    this.playWhenReady = playWhenReady;
+    this.playbackState = playbackState;
+  }
+
+  /**
+   * Reports the bitrate of the media being played, or {@link Format#NO_VALUE} if unknown. A
+   * change from one known bitrate to another counts as a quality switch, whichever track
+   * selection made it.
+   */
+  public void onBitrateChanged(long nowMs, int bitrate) {
+    advance(nowMs);
+    if (this.bitrate != Format.NO_VALUE && bitrate != Format.NO_VALUE
+        && bitrate != this.bitrate) {
+      switchCount++;
+    }
+    this.bitrate = bitrate;
+  }
+
+  /**
+   * Accounts time up to {@code nowMs}. Call before reading figures of an ongoing session.
+   */
+  public void advance(long nowMs) {
+    if (lastUpdateMs != -1 && nowMs > lastUpdateMs && playWhenReady) {
+      long elapsedMs = nowMs - lastUpdateMs;
+      if (playbackState == ExoPlayer.STATE_READY) {
+        playingTimeMs += elapsedMs;
+        if (bitrate != Format.NO_VALUE) {
+          bitrateTimeProduct += bitrate * elapsedMs;
+        }
+      } else if (playbackState == ExoPlayer.STATE_BUFFERING && hasBeenReady) {
+        rebufferTimeMs += elapsedMs;
+      }
+    }
+    lastUpdateMs = nowMs;
+  }
+
+  /**
+   * @return A copy of this meter, to be read or fed independently.
+   */
+  public QoeMeter copy() {
+    QoeMeter copy = new QoeMeter();
+    copy.sessionStartMs = sessionStartMs;
+    copy.startupTimeMs = startupTimeMs;
+    copy.playingTimeMs = playingTimeMs;
+    copy.rebufferTimeMs = rebufferTimeMs;
+    copy.rebufferCount = rebufferCount;
+    copy.switchCount = switchCount;
+    copy.bitrateTimeProduct = bitrateTimeProduct;
+    copy.playWhenReady = playWhenReady;
+    copy.playbackState = playbackState;
+    copy.hasBeenReady = hasBeenReady;
+    copy.bitrate = bitrate;
+    copy.lastUpdateMs = lastUpdateMs;
+    return copy;
+  }
+
+  public void reset() {
+    sessionStartMs = -1;
+    startupTimeMs = -1;
+    playingTimeMs = 0;
+    rebufferTimeMs = 0;
+    rebufferCount = 0;
+    switchCount = 0;
+    bitrateTimeProduct = 0;
+    playWhenReady = false;
+    playbackState = ExoPlayer.STATE_IDLE;
+    hasBeenReady = false;
+    bitrate = Format.NO_VALUE;
+    lastUpdateMs = -1;
+  }
+
+  /**
+   * @return The time from leaving idle to the first ready state, or -1 if not ready yet.
+   */
+  public long getStartupTimeMs() {
+    return startupTimeMs;
+  }
+
+  public long getPlayingTimeMs() {
+    return playingTimeMs;
+  }
+
+  public long getRebufferTimeMs() {
+    return rebufferTimeMs;
+  }
+
+  public int getRebufferCount() {
+    return rebufferCount;
+  }
+
+  public int getSwitchCount() {
+    return switchCount;
+  }
+
+  /**
+   * @return Rebuffer time / (rebuffer time + playing time), in [0,1].
+   */
+  public float getRebufferRatio() {
+    long total = rebufferTimeMs + playingTimeMs;
+    return total == 0 ? 0 : (float) rebufferTimeMs / total;
+  }
+
+  /**
+   * @return The playing-time weighted average bitrate, or {@link Format#NO_VALUE} if unknown.
+   */
+  public int getAverageBitrate() {
+    return playingTimeMs == 0 || bitrateTimeProduct == 0 ? Format.NO_VALUE
+        : (int) (bitrateTimeProduct / playingTimeMs);
+  }
+
+  @Override
+  public String toString() {
+    return "QoE [startup=" + startupTimeMs + "ms, playing=" + playingTimeMs + "ms, rebuffer="
+        + rebufferTimeMs + "ms x" + rebufferCount + ", ratio=" + getRebufferRatio()
+        + ", avgBitrate=" + getAverageBitrate() + ", switches=" + switchCount + "]";
+  }
+}
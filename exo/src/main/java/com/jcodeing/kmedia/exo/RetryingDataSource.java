@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.net.Uri;
+import android.text.TextUtils;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.jcodeing.kmedia.utils.L;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * A {@link DataSource} retrying failed opens and reads of an upstream source according to a
+ * {@link LoadRetryPolicy}, failing over across a {@link MirrorSet} if given.
+ * <p>
+ * Each attempt goes to the healthiest mirror not tried yet, then round-robin. A read failing
+ * mid-stream reopens at the current position, so the caller only sees a slower read. The cache
+ * key of the original URI is kept, so caches below or above this source stay consistent.
+ * <p>
+ * Local sources (files, content and assets) fail right away: a retry won't bring back a missing
+ * file.
+ */
+public final class RetryingDataSource implements DataSource {
+
+  private static final String TAG = L.makeTag("RetryingDS");
+
+  /**
+   * Factory for {@link RetryingDataSource} instances.
+   */
+  public static final class Factory implements DataSource.Factory {
+
+    private final DataSource.Factory upstreamFactory;
+    private final LoadRetryPolicy policy;
+    private final MirrorSet mirrors;
+
+    /**
+     * @param mirrors The mirrors to fail over to, may be null.
+     */
+    public Factory(DataSource.Factory upstreamFactory, LoadRetryPolicy policy,
+        MirrorSet mirrors) {
+      this.upstreamFactory = upstreamFactory;
+      this.policy = policy;
+      this.mirrors = mirrors;
+    }
+
+    @Override
+    public RetryingDataSource createDataSource() {
+      return new RetryingDataSource(upstreamFactory.createDataSource(), policy, mirrors);
+    }
+  }
+
+  private final DataSource upstream;
+  private final LoadRetryPolicy policy;
+  private final MirrorSet mirrors;
+
+  private DataSpec dataSpec;
+  private int[] mirrorOrder;
+  private int attempt;
+  private int mirrorIndex;
+  private long bytesRead;
+
+  /**
+   * @param mirrors The mirrors to fail over to, may be null.
+   */
+  public RetryingDataSource(DataSource upstream, LoadRetryPolicy policy, MirrorSet mirrors) {
+    this.upstream = upstream;
+    this.policy = policy;
+    this.mirrors = mirrors;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    this.dataSpec = dataSpec;
+    mirrorOrder = mirrors != null && mirrors.indexOf(dataSpec.uri) != -1
+        ? mirrors.getMirrorOrder() : null;
+    attempt = 0;
+    bytesRead = 0;
+    return openWithRetry();
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    while (true) {
+      try {
+        int read = upstream.read(buffer, offset, readLength);
+        if (read != C.RESULT_END_OF_INPUT) {
+          bytesRead += read;
+        }
+        return read;
+      } catch (IOException e) {
+        closeUpstreamQuietly();
+        onAttemptFailed(e);
+        // Resume where the failed read stopped.
+        openWithRetry();
+      }
+    }
+  }
+
+  @Override
+  public Uri getUri() {
+    return upstream.getUri();
+  }
+
+  @Override
+  public void close() throws IOException {
+    dataSpec = null;
+    closeUpstream();
+  }
+
+  private long openWithRetry() throws IOException {
+    while (true) {
+      attempt++;
+      DataSpec attemptSpec = attemptDataSpec();
+      try {
+        long length = upstream.open(attemptSpec);
+        if (mirrorOrder != null) {
+          mirrors.onSuccess(mirrorIndex);
+        }
+        return length;
+      } catch (IOException e) {
+        closeUpstreamQuietly();
+        onAttemptFailed(e);
+      }
+    }
+  }
+
+  /**
+   * Reports a failed attempt, then waits for the next one or throws {@code error} if there is
+   * none.
+   */
+  private void onAttemptFailed(IOException error) throws IOException {
+    if (mirrorOrder != null) {
+      mirrors.onFailure(mirrorIndex);
+    }
+    boolean untriedMirror = mirrorOrder != null && attempt < mirrorOrder.length;
+    if (error instanceof InterruptedIOException || isLocal(dataSpec.uri)
+        || !policy.shouldRetry(error, attempt, untriedMirror)) {
+      throw error;
+    }
+    long backoffMs = policy.getBackoffMs(attempt);
+    L.e(TAG, "load failed, attempt " + attempt + ", retry in " + backoffMs + "ms: "
+        + dataSpec.uri, error);
+    try {
+      Thread.sleep(backoffMs);
+    } catch (InterruptedException e) {
+      // The load is canceled.
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  /**
+   * @return Whether {@code uri} is read from the device, whose errors (e.g. a missing file) a
+   * retry won't fix.
+   */
+  private static boolean isLocal(Uri uri) {
+    String scheme = uri.getScheme();
+    return TextUtils.isEmpty(scheme) || "file".equals(scheme) || "content".equals(scheme)
+        || "asset".equals(scheme) || "android.resource".equals(scheme)
+        || "rawresource".equals(scheme);
+  }
+
+  private DataSpec attemptDataSpec() {
+    Uri uri = dataSpec.uri;
+    if (mirrorOrder != null) {
+      mirrorIndex = mirrorOrder[(attempt - 1) % mirrorOrder.length];
+      uri = mirrors.resolve(uri, mirrorIndex);
+    }
+    if (uri == dataSpec.uri && bytesRead == 0) {
+      return dataSpec;
+    }
+    String key = dataSpec.key != null ? dataSpec.key : dataSpec.uri.toString();
+    long length = dataSpec.length == C.LENGTH_UNSET ? C.LENGTH_UNSET
+        : dataSpec.length - bytesRead;
+    return new DataSpec(uri, dataSpec.postBody, dataSpec.absoluteStreamPosition + bytesRead,
+        dataSpec.position + bytesRead, length, key, dataSpec.flags);
+  }
+
+  private void closeUpstream() throws IOException {
+    upstream.close();
+  }
+
+  private void closeUpstreamQuietly() {
+    try {
+      closeUpstream();
+    } catch (IOException e) {
+      // Ignore, the attempt failed already.
+    }
+  }
+}
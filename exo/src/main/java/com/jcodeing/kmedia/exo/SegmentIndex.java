@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import com.google.android.exoplayer2.C;
+import java.util.Arrays;
+
+/**
+ * Segments (e.g. sentences) of a media item, given by their sorted start positions. A segment
+ * lasts until the next one starts; the last one until the end of the media.
+ *
+ * @see ExoMediaPlayer#setSegmentIndex
+ */
+public final class SegmentIndex {
+
+  private final long[] startMs;
+
+  /**
+   * @param boundariesMs The start positions of the segments, in milliseconds, sorted ascending.
+   * The array is copied.
+   * @throws IllegalArgumentException If the boundaries aren't sorted.
+   */
+  public SegmentIndex(long[] boundariesMs) {
+    startMs = Arrays.copyOf(boundariesMs, boundariesMs.length);
+    for (int i = 1; i < startMs.length; i++) {
+      if (startMs[i] < startMs[i - 1]) {
+        throw new IllegalArgumentException("Boundaries not sorted at " + i);
+      }
+    }
+  }
+
+  /**
+   * @return The number of segments.
+   */
+  public int size() {
+    return startMs.length;
+  }
+
+  public long getStartMs(int index) {
+    return startMs[index];
+  }
+
+  /**
+   * @return The end of segment {@code index}, or {@link C#TIME_UNSET} for the last one.
+   */
+  public long getEndMs(int index) {
+    return index + 1 < startMs.length ? startMs[index + 1] : C.TIME_UNSET;
+  }
+
+  /**
+   * O(log n) lookup of the segment containing {@code positionMs}.
+   *
+   * @return The index of the segment, or {@link C#INDEX_UNSET} before the first one.
+   */
+  public int indexOf(long positionMs) {
+    int low = 0;
+    int high = startMs.length - 1;
+    int floor = C.INDEX_UNSET;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (startMs[mid] <= positionMs) {
+        floor = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return floor;
+  }
+}
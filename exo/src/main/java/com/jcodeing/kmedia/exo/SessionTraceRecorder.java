@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import com.jcodeing.kmedia.utils.L;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Records player events into a compact append-only binary trace file, for offline analysis
+ * with {@link TraceReplay}.
+ * <p>
+ * Recording only appends a few bytes to a memory buffer; the buffer is written out on a
+ * background thread once it fills up, or on {@link #flush()}. When the file would exceed its
+ * size cap it's rotated to {@code <name>.1}, replacing the previous one, so a trace never takes
+ * more than twice the cap.
+ * <p>
+ * Format: every chunk written to a fresh file starts with a header ({@link #MAGIC}, the wall
+ * clock time and the elapsed time the following deltas are relative to, as longs). A record is
+ * a type byte, the unsigned varint time since the previous record in milliseconds, and the
+ * primitive payload of its type as varints (signed ones zigzag encoded).
+ */
+public final class SessionTraceRecorder {
+
+  private static final String TAG = L.makeTag("SessionTraceRecorder");
+
+  /**
+   * "KTR1".
+   */
+  public static final int MAGIC = 0x4B545231;
+
+  /**
+   * Payload: playWhenReady (0/1), playbackState.
+   */
+  public static final int TYPE_STATE = 1;
+  /**
+   * Payload: isLoading (0/1).
+   */
+  public static final int TYPE_LOADING = 2;
+  /**
+   * No payload.
+   */
+  public static final int TYPE_DISCONTINUITY = 3;
+  /**
+   * Payload: signed bitrate, -1 if unknown.
+   */
+  public static final int TYPE_BITRATE = 4;
+  /**
+   * Payload: signed from bitrate, signed to bitrate, buffered duration ms.
+   */
+  public static final int TYPE_SWITCH = 5;
+  /**
+   * Payload: track type (signed), load duration ms, bytes loaded.
+   */
+  public static final int TYPE_LOAD_COMPLETED = 6;
+  /**
+   * Payload: one of the ERROR_* kinds.
+   */
+  public static final int TYPE_ERROR = 7;
+  /**
+   * Payload: dropped frame count.
+   */
+  public static final int TYPE_DROPPED_FRAMES = 8;
+  /**
+   * Payload: audio buffer size ms.
+   */
+  public static final int TYPE_UNDERRUN = 9;
+
+  public static final int ERROR_PLAYER = 0;
+  public static final int ERROR_LOAD = 1;
+  public static final int ERROR_DRM = 2;
+
+  public static final int DEFAULT_MAX_FILE_BYTES = 1024 * 1024;
+  private static final int FLUSH_THRESHOLD_BYTES = 4 * 1024;
+  private static final int MAX_PENDING_BYTES = 256 * 1024;
+  private static final int MAX_RECORD_BYTES = 1 + 5 * 4;
+  private static final int BUFFER_BYTES = FLUSH_THRESHOLD_BYTES + MAX_RECORD_BYTES;
+  private static final int HEADER_BYTES = 4 + 8 + 8;
+
+  private static final ExecutorService writeExecutor = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "SessionTraceRecorder:Write");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+
+  private final File file;
+  private final File rotatedFile;
+  private final long maxFileBytes;
+
+  // Guarded by this.
+  private byte[] buffer = new byte[BUFFER_BYTES];
+  private byte[] spare = new byte[BUFFER_BYTES];
+  private int length;
+  private long lastRecordMs = -1;
+  private long bufferBaseMs;
+  private long bufferBaseWallClockMs;
+  private boolean flushScheduled;
+  private boolean closed;
+  private int droppedRecords;
+
+  // Write thread only.
+  private long fileBytes = -1;
+
+  private final Runnable flushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      write();
+    }
+  };
+
+  public SessionTraceRecorder(File file) {
+    this(file, DEFAULT_MAX_FILE_BYTES);
+  }
+
+  /**
+   * @param file The trace file, appended to if it exists.
+   * @param maxFileBytes The size at which the file is rotated.
+   */
+  public SessionTraceRecorder(File file, long maxFileBytes) {
+    this.file = file;
+    this.rotatedFile = new File(file.getPath() + ".1");
+    this.maxFileBytes = maxFileBytes;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return The number of records dropped because the writer couldn't keep up.
+   */
+  public synchronized int getDroppedRecords() {
+    return droppedRecords;
+  }
+
+  // ============================@Record@============================
+  public void recordState(long nowMs, boolean playWhenReady, int playbackState) {
+    synchronized (this) {
+      if (begin(TYPE_STATE, nowMs)) {
+        putVarint(playWhenReady ? 1 : 0);
+        putVarint(playbackState);
+        end();
+      }
+    }
+  }
+
+  public void recordLoading(long nowMs, boolean isLoading) {
+    synchronized (this) {
+      if (begin(TYPE_LOADING, nowMs)) {
+        putVarint(isLoading ? 1 : 0);
+        end();
+      }
+    }
+  }
+
+  public void recordDiscontinuity(long nowMs) {
+    synchronized (this) {
+      if (begin(TYPE_DISCONTINUITY, nowMs)) {
+        end();
+      }
+    }
+  }
+
+  public void recordBitrate(long nowMs, int bitrate) {
+    synchronized (this) {
+      if (begin(TYPE_BITRATE, nowMs)) {
+        putSignedVarint(bitrate);
+        end();
+      }
+    }
+  }
+
+  public void recordSwitch(long nowMs, int fromBitrate, int toBitrate, long bufferedDurationMs) {
+    synchronized (this) {
+      if (begin(TYPE_SWITCH, nowMs)) {
+        putSignedVarint(fromBitrate);
+        putSignedVarint(toBitrate);
+        putVarint(clamp(bufferedDurationMs));
+        end();
+      }
+    }
+  }
+
+  public void recordLoadCompleted(long nowMs, int trackType, long loadDurationMs,
+      long bytesLoaded) {
+    synchronized (this) {
+      if (begin(TYPE_LOAD_COMPLETED, nowMs)) {
+        putSignedVarint(trackType);
+        putVarint(clamp(loadDurationMs));
+        putVarint(clamp(bytesLoaded));
+        end();
+      }
+    }
+  }
+
+  /**
+   * @param kind {@link #ERROR_PLAYER}, {@link #ERROR_LOAD} or {@link #ERROR_DRM}.
+   */
+  public void recordError(long nowMs, int kind) {
+    synchronized (this) {
+      if (begin(TYPE_ERROR, nowMs)) {
+        putVarint(kind);
+        end();
+      }
+    }
+  }
+
+  public void recordDroppedFrames(long nowMs, int count) {
+    synchronized (this) {
+      if (begin(TYPE_DROPPED_FRAMES, nowMs)) {
+        putVarint(count);
+        end();
+      }
+    }
+  }
+
+  public void recordUnderrun(long nowMs, long bufferSizeMs) {
+    synchronized (this) {
+      if (begin(TYPE_UNDERRUN, nowMs)) {
+        putVarint(clamp(bufferSizeMs));
+        end();
+      }
+    }
+  }
+
+  /**
+   * Writes out what has been recorded so far, in the background.
+   */
+  public void flush() {
+    synchronized (this) {
+      if (closed || length == 0 || flushScheduled) {
+        return;
+      }
+      flushScheduled = true;
+    }
+    writeExecutor.execute(flushRunnable);
+  }
+
+  /**
+   * Flushes and stops recording. Later records are ignored.
+   */
+  public void close() {
+    flush();
+    synchronized (this) {
+      closed = true;
+    }
+  }
+
+  // =========@Encoding
+  private boolean begin(int type, long nowMs) {
+    if (closed) {
+      return false;
+    }
+    if (length + MAX_RECORD_BYTES > buffer.length) {
+      // The writer is behind; grow up to a bound, then drop.
+      if (buffer.length >= MAX_PENDING_BYTES) {
+        droppedRecords++;
+        return false;
+      }
+      buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_PENDING_BYTES));
+    }
+    if (lastRecordMs == -1) {
+      lastRecordMs = nowMs;
+    }
+    if (length == 0) {
+      bufferBaseMs = lastRecordMs;
+      bufferBaseWallClockMs = System.currentTimeMillis() - (nowMs - lastRecordMs);
+    }
+    long deltaMs = Math.max(0, nowMs - lastRecordMs);
+    lastRecordMs += deltaMs;
+    buffer[length++] = (byte) type;
+    putVarint(clamp(deltaMs));
+    return true;
+  }
+
+  private void end() {
+    if (length >= FLUSH_THRESHOLD_BYTES && !flushScheduled) {
+      flushScheduled = true;
+      writeExecutor.execute(flushRunnable);
+    }
+  }
+
+  private void putVarint(int value) {
+    while ((value & ~0x7F) != 0) {
+      buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[length++] = (byte) value;
+  }
+
+  private void putSignedVarint(int value) {
+    putVarint((value << 1) ^ (value >> 31));
+  }
+
+  private static int clamp(long value) {
+    return (int) Math.max(0, Math.min(Integer.MAX_VALUE, value));
+  }
+
+  // =========@Writing
+  private void write() {
+    byte[] data;
+    int dataLength;
+    long baseMs;
+    long baseWallClockMs;
+    synchronized (this) {
+      flushScheduled = false;
+      data = buffer;
+      dataLength = length;
+      baseMs = bufferBaseMs;
+      baseWallClockMs = bufferBaseWallClockMs;
+      buffer = spare != null ? spare : new byte[BUFFER_BYTES];
+      spare = null;
+      length = 0;
+    }
+    if (dataLength == 0) {
+      return;
+    }
+    if (fileBytes == -1) {
+      fileBytes = file.length();
+    }
+    if (fileBytes > 0 && fileBytes + HEADER_BYTES + dataLength > maxFileBytes) {
+      if (rotatedFile.exists()) {
+        rotatedFile.delete();
+      }
+      if (!file.renameTo(rotatedFile)) {
+        file.delete();
+      }
+      fileBytes = 0;
+    }
+    DataOutputStream out = null;
+    try {
+      // A header per chunk keeps the deltas of every chunk, and every file, self-contained.
+      out = new DataOutputStream(new FileOutputStream(file, true));
+      out.writeInt(MAGIC);
+      out.writeLong(baseWallClockMs);
+      out.writeLong(baseMs);
+      out.write(data, 0, dataLength);
+      fileBytes += HEADER_BYTES + dataLength;
+    } catch (IOException e) {
+      L.e(TAG, "write(" + file + ")", e);
+      fileBytes = -1;
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          //ignore
+        }
+      }
+    }
+    if (data.length == BUFFER_BYTES) {
+      synchronized (this) {
+        spare = data;
+      }
+    }
+  }
+}
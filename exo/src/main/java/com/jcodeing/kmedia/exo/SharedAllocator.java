@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.Allocation;
+import com.google.android.exoplayer2.upstream.Allocator;
+import com.google.android.exoplayer2.util.Util;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A process-wide pool of media buffer segments with a global byte budget, shared by all players
+ * through their {@link Client clients}.
+ * <p>
+ * Each client asks for its target buffer size and gets a share of the budget, weighted by its
+ * priority: the budget is split by weight, and what a client doesn't need goes to the others.
+ * The {@link #PRIORITY_FOREGROUND foreground} player gets the largest share. Segments released by
+ * one player are reused by the next, instead of every player keeping its own pool.
+ * <p>
+ * Allocation itself never fails; {@link ExoLoadControl} stops loading once a client is over its
+ * share, so the budget is enforced at load time.
+ */
+public final class SharedAllocator {
+
+  public static final int PRIORITY_BACKGROUND = 0;
+  public static final int PRIORITY_NORMAL = 1;
+  public static final int PRIORITY_FOREGROUND = 2;
+
+  private static final int[] PRIORITY_WEIGHTS = {1, 2, 4};
+
+  public static final int DEFAULT_BUDGET_BYTES =
+      (int) Math.min(Runtime.getRuntime().maxMemory() / 4, 64 * 1024 * 1024);
+
+  private static final SharedAllocator instance = new SharedAllocator(DEFAULT_BUDGET_BYTES);
+
+  public static SharedAllocator getInstance() {
+    return instance;
+  }
+
+  private final int individualAllocationLength;
+  private final List<Client> clients = new ArrayList<>();
+
+  private int budgetBytes;
+  private int allocatedCount;
+  private int peakAllocatedCount;
+  private int availableCount;
+  private Allocation[] availableAllocations = new Allocation[100];
+
+  /**
+   * Frees the pooled, unused segments first under pressure; they are only a cache.
+   */
+  private final MemoryPressureCoordinator.Participant memoryPressure =
+      new MemoryPressureCoordinator.Participant() {
+        @Override
+        public void onMemoryPressure(int level) {
+          if (level != MemoryPressureCoordinator.LEVEL_NORMAL) {
+            trimPool(0);
+          }
+        }
+      };
+
+  /**
+   * @param budgetBytes The bytes all clients together may keep allocated.
+   */
+  public SharedAllocator(int budgetBytes) {
+    individualAllocationLength = C.DEFAULT_BUFFER_SEGMENT_SIZE;
+    this.budgetBytes = budgetBytes;
+    MemoryPressureCoordinator.getInstance()
+        .addParticipant(memoryPressure, MemoryPressureCoordinator.ORDER_CACHES);
+  }
+
+  /**
+   * @return A new client, an {@link Allocator} for one player.
+   */
+  public Client newClient() {
+    return new Client();
+  }
+
+  public synchronized void setBudgetBytes(int budgetBytes) {
+    this.budgetBytes = budgetBytes;
+    updateShares();
+    trimPool(targetPoolCount());
+  }
+
+  // ============================@Metrics@============================
+  public synchronized int getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  public synchronized int getAllocatedBytes() {
+    return allocatedCount * individualAllocationLength;
+  }
+
+  /**
+   * @return The bytes of the released segments kept for reuse.
+   */
+  public synchronized int getPooledBytes() {
+    return availableCount * individualAllocationLength;
+  }
+
+  public synchronized int getPeakAllocatedBytes() {
+    return peakAllocatedCount * individualAllocationLength;
+  }
+
+  /**
+   * @return The allocated share of the budget, above 1 if the clients overran it.
+   */
+  public synchronized float getUtilization() {
+    return budgetBytes > 0 ? (float) getAllocatedBytes() / budgetBytes : 0;
+  }
+
+  /**
+   * @return The clients currently asking for or holding memory.
+   */
+  public synchronized int getActiveClientCount() {
+    return clients.size();
+  }
+
+  // ============================@Pool@============================
+  private synchronized Allocation allocate(Client client) {
+    allocatedCount++;
+    peakAllocatedCount = Math.max(peakAllocatedCount, allocatedCount);
+    client.allocatedCount++;
+    activate(client);
+    Allocation allocation;
+    if (availableCount > 0) {
+      allocation = availableAllocations[--availableCount];
+      availableAllocations[availableCount] = null;
+    } else {
+      allocation = new Allocation(new byte[individualAllocationLength], 0);
+    }
+    return allocation;
+  }
+
+  private synchronized void release(Client client, Allocation[] allocations) {
+    if (availableCount + allocations.length >= availableAllocations.length) {
+      availableAllocations = Arrays.copyOf(availableAllocations,
+          Math.max(availableAllocations.length * 2, availableCount + allocations.length));
+    }
+    for (Allocation allocation : allocations) {
+      availableAllocations[availableCount++] = allocation;
+    }
+    allocatedCount -= allocations.length;
+    client.allocatedCount -= allocations.length;
+    deactivateIfIdle(client);
+  }
+
+  /**
+   * Keeps as many pooled segments as the clients may still allocate within the budget.
+   */
+  private int targetPoolCount() {
+    int demandBytes = 0;
+    for (Client client : clients) {
+      demandBytes += client.targetBufferSize;
+    }
+    int targetCount = Util.ceilDivide(Math.min(demandBytes, budgetBytes),
+        individualAllocationLength);
+    return Math.max(0, targetCount - allocatedCount);
+  }
+
+  private synchronized void trimPool(int targetCount) {
+    if (targetCount >= availableCount) {
+      return;
+    }
+    Arrays.fill(availableAllocations, targetCount, availableCount, null);
+    availableCount = targetCount;
+  }
+
+  // ============================@Shares@============================
+  private void activate(Client client) {
+    if (!clients.contains(client)) {
+      clients.add(client);
+      updateShares();
+    }
+  }
+
+  private void deactivateIfIdle(Client client) {
+    if (client.targetBufferSize == 0 && client.allocatedCount == 0 && clients.remove(client)) {
+      client.shareBytes = 0;
+      updateShares();
+    }
+  }
+
+  /**
+   * Splits the budget by weight; clients asking for less than their split keep what they ask
+   * for, and the rest is split again among the others.
+   */
+  private void updateShares() {
+    List<Client> pending = new ArrayList<>(clients);
+    long remaining = budgetBytes;
+    while (!pending.isEmpty()) {
+      int totalWeight = 0;
+      for (Client client : pending) {
+        totalWeight += PRIORITY_WEIGHTS[client.priority];
+      }
+      boolean satisfiedAny = false;
+      for (int i = pending.size() - 1; i >= 0; i--) {
+        Client client = pending.get(i);
+        if (client.targetBufferSize
+            <= remaining * PRIORITY_WEIGHTS[client.priority] / totalWeight) {
+          client.shareBytes = client.targetBufferSize;
+          remaining -= client.targetBufferSize;
+          pending.remove(i);
+          satisfiedAny = true;
+        }
+      }
+      if (!satisfiedAny) {
+        for (Client client : pending) {
+          client.shareBytes = (int) (remaining * PRIORITY_WEIGHTS[client.priority] / totalWeight);
+        }
+        return;
+      }
+    }
+  }
+
+  // ============================@Client@============================
+
+  /**
+   * The {@link Allocator} of one player, drawing from the shared pool.
+   */
+  public final class Client implements Allocator {
+
+    private int priority = PRIORITY_NORMAL;
+    private int targetBufferSize;
+    private int allocatedCount;
+    private int shareBytes;
+
+    private Client() {
+    }
+
+    /**
+     * @param priority One of {@link #PRIORITY_BACKGROUND}, {@link #PRIORITY_NORMAL} and {@link
+     * #PRIORITY_FOREGROUND}.
+     */
+    public void setPriority(int priority) {
+      synchronized (SharedAllocator.this) {
+        if (this.priority != priority) {
+          this.priority = priority;
+          updateShares();
+        }
+      }
+    }
+
+    public int getPriority() {
+      synchronized (SharedAllocator.this) {
+        return priority;
+      }
+    }
+
+    /**
+     * Sets the bytes this client wants to keep allocated; 0 when it stops buffering.
+     */
+    public void setTargetBufferSize(int targetBufferSize) {
+      synchronized (SharedAllocator.this) {
+        if (this.targetBufferSize == targetBufferSize) {
+          return;
+        }
+        this.targetBufferSize = targetBufferSize;
+        if (targetBufferSize > 0) {
+          activate(this);
+        } else {
+          deactivateIfIdle(this);
+        }
+        updateShares();
+        trimPool(targetPoolCount());
+      }
+    }
+
+    public int getTargetBufferSize() {
+      synchronized (SharedAllocator.this) {
+        return targetBufferSize;
+      }
+    }
+
+    /**
+     * @return The bytes of the budget this client may keep allocated.
+     */
+    public int getShareBytes() {
+      synchronized (SharedAllocator.this) {
+        return shareBytes;
+      }
+    }
+
+    /**
+     * @return Whether this client holds more than its share while the budget is exhausted, so
+     * it shouldn't load more even below its low watermark, unless it is the foreground player.
+     */
+    public boolean isOverBudget() {
+      synchronized (SharedAllocator.this) {
+        return allocatedCount * individualAllocationLength >= shareBytes
+            && SharedAllocator.this.allocatedCount * individualAllocationLength >= budgetBytes;
+      }
+    }
+
+    @Override
+    public Allocation allocate() {
+      return SharedAllocator.this.allocate(this);
+    }
+
+    @Override
+    public void release(Allocation allocation) {
+      SharedAllocator.this.release(this, new Allocation[] {allocation});
+    }
+
+    @Override
+    public void release(Allocation[] allocations) {
+      SharedAllocator.this.release(this, allocations);
+    }
+
+    @Override
+    public void trim() {
+      synchronized (SharedAllocator.this) {
+        trimPool(targetPoolCount());
+      }
+    }
+
+    @Override
+    public int getTotalBytesAllocated() {
+      synchronized (SharedAllocator.this) {
+        return allocatedCount * individualAllocationLength;
+      }
+    }
+
+    @Override
+    public int getIndividualAllocationLength() {
+      return individualAllocationLength;
+    }
+  }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.text.Cue;
+import com.google.android.exoplayer2.text.Subtitle;
+import com.google.android.exoplayer2.text.SubtitleDecoder;
+import com.google.android.exoplayer2.text.SubtitleDecoderException;
+import com.google.android.exoplayer2.text.SubtitleDecoderFactory;
+import com.google.android.exoplayer2.text.SubtitleInputBuffer;
+import com.google.android.exoplayer2.text.SubtitleOutputBuffer;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An immutable, time-sorted index over the cues of a subtitle file (SRT, WebVTT, TTML, ...).
+ * <p>
+ * The file is parsed once, off the main thread, with ExoPlayer's own subtitle decoders and
+ * flattened into disjoint {@code [start, end)} intervals, so position lookup is a binary search.
+ * Cue texts are kept lower-cased as well for full-text search returning seek positions.
+ */
+public final class SubtitleIndex {
+
+  /**
+   * Receives the result of {@link #loadAsync}.
+   */
+  public interface Callback {
+
+    void onSubtitleIndexLoaded(Uri uri, SubtitleIndex index);
+
+    void onSubtitleIndexError(Uri uri, IOException error);
+  }
+
+  private static final long DECODE_TIMEOUT_MS = 10000;
+  private static final long DECODE_POLL_INTERVAL_MS = 5;
+
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "SubtitleIndex");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+
+  private final long[] startMs;
+  private final long[] endMs;
+  private final String[] texts;
+  private final String[] searchTexts;
+
+  private SubtitleIndex(long[] startMs, long[] endMs, String[] texts) {
+    this.startMs = startMs;
+    this.endMs = endMs;
+    this.texts = texts;
+    searchTexts = new String[texts.length];
+    for (int i = 0; i < texts.length; i++) {
+      searchTexts[i] = texts[i].toLowerCase(Locale.getDefault());
+    }
+  }
+
+  // ============================@Lookup@============================
+
+  /**
+   * @return The number of cue intervals.
+   */
+  public int size() {
+    return startMs.length;
+  }
+
+  public long getStartMs(int index) {
+    return startMs[index];
+  }
+
+  public long getEndMs(int index) {
+    return endMs[index];
+  }
+
+  public String getText(int index) {
+    return texts[index];
+  }
+
+  /**
+   * O(log n) lookup of the interval containing {@code positionMs}.
+   *
+   * @return The index of the interval, or {@link C#INDEX_UNSET} if no cue is shown then.
+   */
+  public int indexOf(long positionMs) {
+    int index = floorIndex(positionMs);
+    return index != C.INDEX_UNSET && positionMs < endMs[index] ? index : C.INDEX_UNSET;
+  }
+
+  /**
+   * O(log n) lookup of the first interval starting after {@code positionMs}.
+   *
+   * @return The index of the interval, or {@link C#INDEX_UNSET} if there is none.
+   */
+  public int nextIndex(long positionMs) {
+    int index = floorIndex(positionMs) + 1;
+    return index < startMs.length ? index : C.INDEX_UNSET;
+  }
+
+  /**
+   * Returns up to {@code count} intervals following {@code positionMs}, for prefetching
+   * (rendering, translation, dictionary lookups) ahead of playback.
+   *
+   * @return The indices of the upcoming intervals, possibly empty.
+   */
+  public int[] getUpcoming(long positionMs, int count) {
+    int first = nextIndex(positionMs);
+    if (first == C.INDEX_UNSET || count <= 0) {
+      return new int[0];
+    }
+    int[] upcoming = new int[Math.min(count, startMs.length - first)];
+    for (int i = 0; i < upcoming.length; i++) {
+      upcoming[i] = first + i;
+    }
+    return upcoming;
+  }
+
+  /**
+   * Case-insensitive full-text search.
+   *
+   * @return The start positions, in milliseconds, of all intervals containing {@code query}.
+   */
+  public long[] search(String query) {
+    if (query == null || query.isEmpty()) {
+      return new long[0];
+    }
+    String needle = query.toLowerCase(Locale.getDefault());
+    long[] positions = new long[searchTexts.length];
+    int count = 0;
+    for (int i = 0; i < searchTexts.length; i++) {
+      if (searchTexts[i].contains(needle)) {
+        positions[count++] = startMs[i];
+      }
+    }
+    return Arrays.copyOf(positions, count);
+  }
+
+  /**
+   * @return The index of the last interval starting at or before {@code positionMs}, or {@link
+   * C#INDEX_UNSET}.
+   */
+  private int floorIndex(long positionMs) {
+    int low = 0;
+    int high = startMs.length - 1;
+    int floor = C.INDEX_UNSET;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (startMs[mid] <= positionMs) {
+        floor = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return floor;
+  }
+
+  // ============================@Build@============================
+
+  /**
+   * Loads and indexes {@code uri} on a background thread. The {@code callback} is invoked on
+   * {@code handler}.
+   */
+  public static void loadAsync(final DataSource.Factory dataSourceFactory, final Uri uri,
+      final String mimeType, final Handler handler, final Callback callback) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final SubtitleIndex index = load(dataSourceFactory.createDataSource(), uri, mimeType);
+          handler.post(new Runnable() {
+            @Override
+            public void run() {
+              callback.onSubtitleIndexLoaded(uri, index);
+            }
+          });
+        } catch (final IOException e) {
+          handler.post(new Runnable() {
+            @Override
+            public void run() {
+              callback.onSubtitleIndexError(uri, e);
+            }
+          });
+        }
+      }
+    });
+  }
+
+  /**
+   * Loads and indexes {@code uri} on the calling thread.
+   */
+  public static SubtitleIndex load(DataSource dataSource, Uri uri, String mimeType)
+      throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try {
+      dataSource.open(new DataSpec(uri));
+      byte[] buffer = new byte[16 * 1024];
+      int read;
+      while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        output.write(buffer, 0, read);
+      }
+    } finally {
+      dataSource.close();
+    }
+    try {
+      return parse(output.toByteArray(), mimeType);
+    } catch (SubtitleDecoderException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Parses and indexes subtitle {@code data} of the given {@code mimeType} on the calling thread.
+   */
+  public static SubtitleIndex parse(byte[] data, String mimeType)
+      throws SubtitleDecoderException, InterruptedIOException {
+    Format format = Format.createTextSampleFormat(null, mimeType, 0, null);
+    if (!SubtitleDecoderFactory.DEFAULT.supportsFormat(format)) {
+      throw new SubtitleDecoderException("Unsupported subtitle type: " + mimeType);
+    }
+    SubtitleDecoder decoder = SubtitleDecoderFactory.DEFAULT.createDecoder(format);
+    try {
+      SubtitleInputBuffer inputBuffer = decoder.dequeueInputBuffer();
+      inputBuffer.ensureSpaceForWrite(data.length);
+      inputBuffer.data.put(data);
+      inputBuffer.flip();
+      inputBuffer.timeUs = 0;
+      inputBuffer.subsampleOffsetUs = 0;
+      decoder.queueInputBuffer(inputBuffer);
+      // Decoding happens on the decoder's own thread.
+      long deadlineMs = SystemClock.elapsedRealtime() + DECODE_TIMEOUT_MS;
+      SubtitleOutputBuffer outputBuffer;
+      while ((outputBuffer = decoder.dequeueOutputBuffer()) == null) {
+        if (SystemClock.elapsedRealtime() > deadlineMs) {
+          throw new SubtitleDecoderException("Timed out decoding " + mimeType);
+        }
+        try {
+          Thread.sleep(DECODE_POLL_INTERVAL_MS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+      try {
+        return fromSubtitle(outputBuffer);
+      } finally {
+        outputBuffer.release();
+      }
+    } finally {
+      decoder.release();
+    }
+  }
+
+  private static SubtitleIndex fromSubtitle(Subtitle subtitle) {
+    int eventTimeCount = subtitle.getEventTimeCount();
+    List<Long> starts = new ArrayList<>(eventTimeCount);
+    List<Long> ends = new ArrayList<>(eventTimeCount);
+    List<String> texts = new ArrayList<>(eventTimeCount);
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < eventTimeCount; i++) {
+      long timeUs = subtitle.getEventTime(i);
+      long nextTimeUs = i + 1 < eventTimeCount ? subtitle.getEventTime(i + 1) : timeUs;
+      builder.setLength(0);
+      for (Cue cue : subtitle.getCues(timeUs)) {
+        if (cue.text != null && cue.text.length() > 0) {
+          if (builder.length() > 0) {
+            builder.append('\n');
+          }
+          builder.append(cue.text);
+        }
+      }
+      if (builder.length() == 0 || nextTimeUs <= timeUs) {
+        continue;
+      }
+      long startMs = C.usToMs(timeUs);
+      long endMs = C.usToMs(nextTimeUs);
+      String text = builder.toString();
+      int last = texts.size() - 1;
+      if (last >= 0 && ends.get(last) == startMs && texts.get(last).equals(text)) {
+        // Same cues continue across an event boundary, extend the previous interval.
+        ends.set(last, endMs);
+      } else {
+        starts.add(startMs);
+        ends.add(endMs);
+        texts.add(text);
+      }
+    }
+    long[] startArray = new long[starts.size()];
+    long[] endArray = new long[ends.size()];
+    for (int i = 0; i < startArray.length; i++) {
+      startArray[i] = starts.get(i);
+      endArray[i] = ends.get(i);
+    }
+    return new SubtitleIndex(startArray, endArray, texts.toArray(new String[texts.size()]));
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.TextureView;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.util.Util;
+import com.google.android.exoplayer2.video.DummySurface;
+
+/**
+ * Moves the video output of a {@link SimpleExoPlayer} between {@link SurfaceView}/{@link
+ * TextureView} targets without releasing the video decoder.
+ * <p>
+ * While no target surface is available (e.g. inline -> fullscreen, recycled list cells) the
+ * decoder is parked on an offscreen placeholder surface instead of a null surface, so it is
+ * neither released nor flushed. The new target is attached as soon as its surface exists.
+ * <p>
+ * Swapping the output surface of a running decoder needs Android 6.0 (API 23); below it,
+ * ExoPlayer re-creates the decoder on every surface change. There, parking would only add a
+ * re-creation, so the target is handed straight to the player instead, at the cost of one decoder
+ * re-creation per handoff.
+ */
+public final class SurfaceHandoff {
+
+  private static final boolean CAN_SWAP_SURFACE = Util.SDK_INT >= 23;
+
+  private final SimpleExoPlayer player;
+  private final long parkTimeoutMs;
+  private final ComponentListener componentListener;
+  private final Handler handler;
+
+  private Surface placeholderSurface;
+  private SurfaceView pendingSurfaceView;
+  private TextureView pendingTextureView;
+
+  private final Runnable parkTimeout = new Runnable() {
+    @Override
+    public void run() {
+      unpark();
+    }
+  };
+
+  public SurfaceHandoff(SimpleExoPlayer player) {
+    this(player, C.TIME_UNSET);
+  }
+
+  /**
+   * @param parkTimeoutMs How long the decoder may stay parked, or {@link C#TIME_UNSET} for no
+   * limit. Then a pending target is handed straight to the player, which attaches it whenever
+   * its surface exists, or else the decoder is released; either way the placeholder is released.
+   */
+  public SurfaceHandoff(SimpleExoPlayer player, long parkTimeoutMs) {
+    this.player = player;
+    this.parkTimeoutMs = parkTimeoutMs;
+    componentListener = new ComponentListener();
+    handler = new Handler(Looper.getMainLooper());
+  }
+
+  /**
+   * Parks the decoder on the placeholder surface. The previous target can be detached or
+   * destroyed afterwards without affecting the decoder. Does nothing below API 23, see the class
+   * comment.
+   */
+  public void park() {
+    cancel();
+    if (!CAN_SWAP_SURFACE) {
+      return;
+    }
+    if (placeholderSurface == null) {
+      placeholderSurface = newPlaceholderSurface();
+    }
+    player.setVideoSurface(placeholderSurface);
+    if (parkTimeoutMs != C.TIME_UNSET) {
+      handler.removeCallbacks(parkTimeout);
+      handler.postDelayed(parkTimeout, parkTimeoutMs);
+    }
+  }
+
+  /**
+   * Attaches the decoder to the {@code surfaceView}, parking it until the surface is created.
+   */
+  public void attach(SurfaceView surfaceView) {
+    cancel();
+    Surface surface = surfaceView.getHolder().getSurface();
+    if (!CAN_SWAP_SURFACE || (surface != null && surface.isValid())) {
+      player.setVideoSurfaceView(surfaceView);
+      releasePlaceholder();
+    } else {
+      park();
+      pendingSurfaceView = surfaceView;
+      surfaceView.getHolder().addCallback(componentListener);
+    }
+  }
+
+  /**
+   * Attaches the decoder to the {@code textureView}, parking it until the surface texture is
+   * available.
+   */
+  public void attach(TextureView textureView) {
+    cancel();
+    if (!CAN_SWAP_SURFACE || textureView.isAvailable()) {
+      player.setVideoTextureView(textureView);
+      releasePlaceholder();
+    } else {
+      park();
+      pendingTextureView = textureView;
+      textureView.setSurfaceTextureListener(componentListener);
+    }
+  }
+
+  /**
+   * @return true if the decoder is currently parked on the placeholder surface.
+   */
+  public boolean isParked() {
+    return placeholderSurface != null;
+  }
+
+  /**
+   * Stops waiting for a pending target. The decoder stays wherever it currently is.
+   */
+  public void cancel() {
+    if (pendingSurfaceView != null) {
+      pendingSurfaceView.getHolder().removeCallback(componentListener);
+      pendingSurfaceView = null;
+    }
+    if (pendingTextureView != null) {
+      if (pendingTextureView.getSurfaceTextureListener() == componentListener) {
+        pendingTextureView.setSurfaceTextureListener(null);
+      }
+      pendingTextureView = null;
+    }
+  }
+
+  /**
+   * Cancels any pending target and releases the placeholder surface. Must only be called once
+   * the player has been moved off the placeholder (or released).
+   */
+  public void release() {
+    cancel();
+    releasePlaceholder();
+  }
+
+  /**
+   * Takes the decoder off the placeholder once parked for too long.
+   */
+  private void unpark() {
+    if (placeholderSurface == null) {
+      return;
+    }
+    SurfaceView surfaceView = pendingSurfaceView;
+    TextureView textureView = pendingTextureView;
+    cancel();
+    if (surfaceView != null) {
+      player.setVideoSurfaceView(surfaceView);
+    } else if (textureView != null) {
+      player.setVideoTextureView(textureView);
+    } else {
+      player.setVideoSurface(null);
+    }
+    releasePlaceholder();
+  }
+
+  private void releasePlaceholder() {
+    handler.removeCallbacks(parkTimeout);
+    if (placeholderSurface != null) {
+      placeholderSurface.release();
+      placeholderSurface = null;
+    }
+  }
+
+  /**
+   * Only called from API 23, where the decoder can be moved between surfaces.
+   */
+  @TargetApi(23)
+  private static Surface newPlaceholderSurface() {
+    return DummySurface.newInstanceV17(false);
+  }
+
+  private final class ComponentListener implements SurfaceHolder.Callback,
+      TextureView.SurfaceTextureListener {
+
+    // SurfaceHolder.Callback implementation
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+      SurfaceView surfaceView = pendingSurfaceView;
+      if (surfaceView != null && surfaceView.getHolder() == holder) {
+        attach(surfaceView);
+      }
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+      // Do nothing.
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+      // Do nothing.
+    }
+
+    // TextureView.SurfaceTextureListener implementation
+
+    @Override
+    public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture, int width, int height) {
+      TextureView textureView = pendingTextureView;
+      if (textureView != null) {
+        attach(textureView);
+      }
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surfaceTexture, int width,
+        int height) {
+      // Do nothing.
+    }
+
+    @Override
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture surfaceTexture) {
+      return true;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {
+      // Do nothing.
+    }
+  }
+}
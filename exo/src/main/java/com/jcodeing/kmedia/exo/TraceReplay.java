@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import com.google.android.exoplayer2.ExoPlayer;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Replays a trace written by {@link SessionTraceRecorder} into a {@link QoeMeter}, printing a
+ * timeline of the session and its QoE figures.
+ * <p>
+ * Plain JVM, no Android needed: pull the trace off the device and run with the library classes
+ * on the class path:
+ * <pre>
+ * adb pull /data/data/&lt;app&gt;/files/session.trace
+ * java -cp classes.jar com.jcodeing.kmedia.exo.TraceReplay session.trace
+ * </pre>
+ * The rotated {@code <name>.1} is replayed first if it's next to the given file.
+ */
+public final class TraceReplay {
+
+  private final PrintStream out;
+  private final QoeMeter qoeMeter = new QoeMeter();
+  private long firstMs = -1;
+  private long lastMs;
+  private int records;
+  private int droppedFrames;
+  private int underruns;
+  private int errors;
+  private long bytesLoaded;
+
+  public TraceReplay(PrintStream out) {
+    this.out = out;
+  }
+
+  public static void main(String[] args) {
+    if (args.length == 0) {
+      System.err.println("Usage: TraceReplay <trace file>...");
+      System.exit(1);
+    }
+    List<File> files = new ArrayList<>();
+    for (String arg : args) {
+      File rotated = new File(arg + ".1");
+      if (rotated.exists() && !files.contains(rotated)) {
+        files.add(rotated);
+      }
+      files.add(new File(arg));
+    }
+    TraceReplay replay = new TraceReplay(System.out);
+    try {
+      for (File file : files) {
+        replay.replay(file);
+      }
+    } catch (IOException e) {
+      System.err.println(e);
+      System.exit(1);
+    }
+    replay.printSummary();
+  }
+
+  public QoeMeter getQoeMeter() {
+    return qoeMeter;
+  }
+
+  /**
+   * Replays the records of {@code file}, printing one timeline line per record. A record torn by
+   * a crash ends the file.
+   */
+  public void replay(File file) throws IOException {
+    out.println("# " + file);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      long timeMs = -1;
+      while (true) {
+        int type = in.read();
+        if (type == -1) {
+          break;
+        }
+        if (type == SessionTraceRecorder.MAGIC >>> 24) {
+          if ((type << 24 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8
+              | in.readUnsignedByte()) != SessionTraceRecorder.MAGIC) {
+            throw new IOException("Not a trace: " + file);
+          }
+          long wallClockMs = in.readLong();
+          timeMs = in.readLong();
+          if (firstMs == -1) {
+            firstMs = timeMs;
+            out.println("# started " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US)
+                .format(new Date(wallClockMs)));
+          }
+          continue;
+        }
+        if (timeMs == -1) {
+          throw new IOException("Not a trace: " + file);
+        }
+        timeMs += readVarint(in);
+        replay(type, timeMs, in);
+      }
+    } catch (EOFException e) {
+      out.println("# truncated");
+    } finally {
+      in.close();
+    }
+  }
+
+  private void replay(int type, long timeMs, DataInputStream in) throws IOException {
+    String event;
+    switch (type) {
+      case SessionTraceRecorder.TYPE_STATE:
+        boolean playWhenReady = readVarint(in) != 0;
+        int playbackState = readVarint(in);
+        qoeMeter.onPlayerStateChanged(timeMs, playWhenReady, playbackState);
+        event = "state " + getStateString(playbackState) + (playWhenReady ? ", playing" : "");
+        break;
+      case SessionTraceRecorder.TYPE_LOADING:
+        event = readVarint(in) != 0 ? "loading" : "loading stopped";
+        break;
+      case SessionTraceRecorder.TYPE_DISCONTINUITY:
+        event = "discontinuity";
+        break;
+      case SessionTraceRecorder.TYPE_BITRATE:
+        int bitrate = readSignedVarint(in);
+        qoeMeter.onBitrateChanged(timeMs, bitrate);
+        event = "bitrate " + bitrate;
+        break;
+      case SessionTraceRecorder.TYPE_SWITCH:
+        int from = readSignedVarint(in);
+        int to = readSignedVarint(in);
+        int bufferedMs = readVarint(in);
+        event = "switch " + from + " -> " + to + ", buffer=" + bufferedMs + "ms";
+        break;
+      case SessionTraceRecorder.TYPE_LOAD_COMPLETED:
+        int trackType = readSignedVarint(in);
+        int loadDurationMs = readVarint(in);
+        int bytes = readVarint(in);
+        bytesLoaded += bytes;
+        event = "loaded track=" + trackType + ", " + bytes + " bytes in " + loadDurationMs + "ms";
+        break;
+      case SessionTraceRecorder.TYPE_ERROR:
+        int kind = readVarint(in);
+        errors++;
+        event = "error " + (kind == SessionTraceRecorder.ERROR_PLAYER ? "player"
+            : kind == SessionTraceRecorder.ERROR_LOAD ? "load" : "drm");
+        break;
+      case SessionTraceRecorder.TYPE_DROPPED_FRAMES:
+        int count = readVarint(in);
+        droppedFrames += count;
+        event = "dropped " + count + " frames";
+        break;
+      case SessionTraceRecorder.TYPE_UNDERRUN:
+        underruns++;
+        event = "audio underrun, buffer=" + readVarint(in) + "ms";
+        break;
+      default:
+        throw new IOException("Unknown record type " + type);
+    }
+    records++;
+    lastMs = timeMs;
+    out.println(String.format(Locale.US, "%10.3fs  %s", (timeMs - firstMs) / 1000f, event));
+  }
+
+  public void printSummary() {
+    qoeMeter.advance(lastMs);
+    out.println("# " + records + " records, " + (lastMs - firstMs) + "ms");
+    out.println("# " + qoeMeter);
+    out.println("# errors=" + errors + ", droppedFrames=" + droppedFrames + ", underruns="
+        + underruns + ", bytesLoaded=" + bytesLoaded);
+  }
+
+  // ============================@Decoding@============================
+  private static int readVarint(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  private static int readSignedVarint(DataInputStream in) throws IOException {
+    int value = readVarint(in);
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static String getStateString(int state) {
+    switch (state) {
+      case ExoPlayer.STATE_BUFFERING:
+        return "buffering";
+      case ExoPlayer.STATE_ENDED:
+        return "ended";
+      case ExoPlayer.STATE_IDLE:
+        return "idle";
+      case ExoPlayer.STATE_READY:
+        return "ready";
+      default:
+        return "?";
+    }
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+/**
+ * Receives named sections of the work done on the library's hot paths.
+ * <p>
+ * Sections nest and are ended on the thread that began them, innermost first.
+ *
+ * @see Tracing#setTracer
+ */
+public interface Tracer {
+
+  void beginSection(String name);
+
+  void endSection();
+}
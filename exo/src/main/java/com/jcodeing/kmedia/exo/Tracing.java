@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+/**
+ * Holds the {@link Tracer} the library reports its hot-path sections to. None by default, which
+ * costs a field read per section.
+ * <p>
+ * Sections are traced as
+ * <pre>
+ * Tracer tracer = Tracing.begin("Name");
+ * try {
+ *   ...
+ * } finally {
+ *   Tracing.end(tracer);
+ * }
+ * </pre>
+ * so a section begun with a tracer is ended with the same one, even if the tracer is changed in
+ * between.
+ */
+public final class Tracing {
+
+  private static volatile Tracer tracer;
+
+  private Tracing() {
+  }
+
+  /**
+   * @param tracer E.g. an {@link AndroidTracer} to see the sections in systrace, or an {@link
+   * InMemoryTracer} to measure them. Null disables tracing.
+   */
+  public static void setTracer(Tracer tracer) {
+    Tracing.tracer = tracer;
+  }
+
+  public static Tracer getTracer() {
+    return tracer;
+  }
+
+  /**
+   * Begins the section {@code name}, a constant to not allocate when tracing is disabled.
+   *
+   * @return The tracer to pass to {@link #end}, null if tracing is disabled.
+   */
+  public static Tracer begin(String name) {
+    Tracer tracer = Tracing.tracer;
+    if (tracer != null) {
+      tracer.beginSection(name);
+    }
+    return tracer;
+  }
+
+  /**
+   * @param tracer The tracer returned by the matching {@link #begin}.
+   */
+  public static void end(Tracer tracer) {
+    if (tracer != null) {
+      tracer.endSection();
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017 K Sun <jcodeing@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcodeing.kmedia.exo;
+
+import android.graphics.Point;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector.Parameters;
+
+/**
+ * Caps the video resolution picked by a {@link DefaultTrackSelector} to the pixel size of the
+ * view it is displayed in, so a thumbnail-sized player doesn't download and decode 1080p.
+ * <p>
+ * Register it with {@link ExoPlayerView#setContentSizeListener} to follow layout changes. The
+ * cap is the content size times a headroom factor; an {@link Adjuster} can override it. If no
+ * track fits, the selector still falls back to the smallest one.
+ */
+public final class ViewportTrackConstraint implements ExoPlayerView.ContentSizeListener {
+
+  public static final float DEFAULT_HEADROOM = 1.25f;
+
+  /**
+   * Hook to override the maximum video size derived from the viewport.
+   */
+  public interface Adjuster {
+
+    /**
+     * @param viewportWidth The content width in pixels.
+     * @param viewportHeight The content height in pixels.
+     * @param maxVideoSize The maximum video size derived from the viewport and headroom.
+     * @return The maximum video size to apply, or null to remove the constraint.
+     */
+    Point adjustMaxVideoSize(int viewportWidth, int viewportHeight, Point maxVideoSize);
+  }
+
+  private final DefaultTrackSelector trackSelector;
+
+  private float headroom = DEFAULT_HEADROOM;
+  private Adjuster adjuster;
+  private boolean enabled = true;
+  private int viewportWidth;
+  private int viewportHeight;
+
+  public ViewportTrackConstraint(DefaultTrackSelector trackSelector) {
+    this.trackSelector = trackSelector;
+  }
+
+  /**
+   * Sets the factor the viewport size is multiplied by to get the maximum video size. Default is
+   * {@link #DEFAULT_HEADROOM}.
+   */
+  public void setHeadroom(float headroom) {
+    this.headroom = headroom;
+    apply();
+  }
+
+  public void setAdjuster(Adjuster adjuster) {
+    this.adjuster = adjuster;
+    apply();
+  }
+
+  /**
+   * Enables or disables the constraint. Disabling removes any cap applied so far.
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+    apply();
+  }
+
+  @Override
+  public void onContentSizeChanged(int width, int height) {
+    if (viewportWidth == width && viewportHeight == height) {
+      return;
+    }
+    viewportWidth = width;
+    viewportHeight = height;
+    apply();
+  }
+
+  private void apply() {
+    Point maxVideoSize = null;
+    if (enabled && viewportWidth > 0 && viewportHeight > 0) {
+      maxVideoSize = new Point((int) Math.ceil(viewportWidth * headroom),
+          (int) Math.ceil(viewportHeight * headroom));
+      if (adjuster != null) {
+        maxVideoSize = adjuster.adjustMaxVideoSize(viewportWidth, viewportHeight, maxVideoSize);
+      }
+    }
+    int maxVideoWidth = maxVideoSize != null ? maxVideoSize.x : Integer.MAX_VALUE;
+    int maxVideoHeight = maxVideoSize != null ? maxVideoSize.y : Integer.MAX_VALUE;
+    Parameters parameters = trackSelector.getParameters();
+    if (parameters.maxVideoWidth != maxVideoWidth || parameters.maxVideoHeight != maxVideoHeight) {
+      trackSelector.setParameters(parameters.withMaxVideoSize(maxVideoWidth, maxVideoHeight));
+    }
+  }
+}